@@ -0,0 +1,558 @@
+package ffc;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import GiciException.*;
+import GiciFile.LoadFile;
+import GiciTransform.Reshape;
+
+
+/**
+ * Benchmarks of the stages of ffc and of raw image input/output ("ant benchmark"). Each benchmark is
+ * run over images of several shapes (tall and thin, square, many bands), with warmup iterations that
+ * let the JIT compiler optimize the code before the measured ones, and reports:
+ *   <ul>
+ *     <li> throughput, in millions of samples of the image processed each second (mean and standard
+ *          deviation of the measured iterations)
+ *     <li> allocation rate, in MB allocated each second by all the threads (as reported by the
+ *          virtual machine)
+ *   </ul>
+ * Stages computed in place are run over a fresh copy of the image each time; the copy is not measured.
+ * Usage:<br>
+ * &nbsp; java -cp benchmark/build:build ffc.StageBenchmark [-f filter] [-s ZxYxX[,ZxYxX...]] [-th threads] [-wi iterations] [-i iterations] [-t milliseconds]<br>
+ * where filter selects the benchmarks whose name contains it.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class StageBenchmark{
+
+	/**
+	 * Shapes of the images when "-s" is not given: tall and thin, square, and many bands (about 2M samples each).
+	 */
+	static final int[][] DEFAULT_SHAPES = {{4, 4096, 128}, {8, 512, 512}, {224, 96, 96}};
+
+	/**
+	 * One benchmark.
+	 */
+	static abstract class Case{
+
+		/**
+		 * Name of the benchmark.
+		 */
+		String name;
+
+		/**
+		 * True if the benchmark changes the image, so it is run over a fresh copy each time.
+		 */
+		boolean inPlace;
+
+		Case(String name, boolean inPlace){
+			this.name = name;
+			this.inPlace = inPlace;
+		}
+
+		/**
+		 * Prepares the benchmark for an image (not measured).
+		 *
+		 * @param image image of the benchmark
+		 *
+		 * @throws Exception when the benchmark can not be prepared
+		 */
+		void setUp(ImageBuffer image) throws Exception{
+		}
+
+		/**
+		 * Runs the benchmark once.
+		 *
+		 * @param image image of the benchmark (a fresh copy if {@link #inPlace})
+		 *
+		 * @throws Exception when the benchmark fails
+		 */
+		abstract void run(ImageBuffer image) throws Exception;
+
+		/**
+		 * Releases what {@link #setUp(ImageBuffer)} has prepared.
+		 */
+		void tearDown(){
+		}
+	}
+
+	/**
+	 * Threads of the parallel stages.
+	 */
+	int threads = 1;
+
+	/**
+	 * Warmup and measured iterations, and minimum time of each iteration in milliseconds.
+	 */
+	int warmupIterations = 3;
+	int iterations = 5;
+	long iterationTime = 500;
+
+	/**
+	 * Shapes of the images (zSize, ySize, xSize).
+	 */
+	int[][] shapes = DEFAULT_SHAPES;
+
+	/**
+	 * Only the benchmarks whose name contains this text are run (null for all).
+	 */
+	String filter = null;
+
+	/**
+	 * Allocation counters of the virtual machine (null if not supported).
+	 */
+	com.sun.management.ThreadMXBean allocation = null;
+
+	/**
+	 * Main method.
+	 *
+	 * @param args benchmark arguments (see the class description)
+	 */
+	public static void main(String[] args){
+		StageBenchmark benchmark = new StageBenchmark();
+		try{
+			benchmark.parseArguments(args);
+		}catch(ParameterException e){
+			System.err.println("ARGUMENTS ERROR: " + e.getMessage());
+			System.exit(1);
+		}
+		benchmark.run(System.out);
+	}
+
+	/**
+	 * Parses the benchmark arguments.
+	 *
+	 * @param args benchmark arguments
+	 *
+	 * @throws ParameterException when some argument is not valid
+	 */
+	void parseArguments(String[] args) throws ParameterException{
+		for(int numArg = 0; numArg < args.length; numArg += 2){
+			if(numArg + 1 >= args.length){
+				throw new ParameterException("Argument \"" + args[numArg] + "\" needs a value.");
+			}
+			String value = args[numArg + 1];
+			try{
+				if(args[numArg].equals("-f")){
+					filter = value;
+				}else if(args[numArg].equals("-th")){
+					threads = Integer.parseInt(value);
+				}else if(args[numArg].equals("-wi")){
+					warmupIterations = Integer.parseInt(value);
+				}else if(args[numArg].equals("-i")){
+					iterations = Math.max(1, Integer.parseInt(value));
+				}else if(args[numArg].equals("-t")){
+					iterationTime = Long.parseLong(value);
+				}else if(args[numArg].equals("-s")){
+					String[] list = value.split(",");
+					shapes = new int[list.length][];
+					for(int numShape = 0; numShape < list.length; numShape++){
+						String[] sizes = list[numShape].split("x");
+						if(sizes.length != 3){
+							throw new ParameterException("Shape \"" + list[numShape] + "\" must be ZxYxX.");
+						}
+						shapes[numShape] = new int[]{Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]), Integer.parseInt(sizes[2])};
+					}
+				}else{
+					throw new ParameterException("Unknown argument \"" + args[numArg] + "\".");
+				}
+			}catch(NumberFormatException e){
+				throw new ParameterException("Value \"" + value + "\" of argument \"" + args[numArg] + "\" is not valid.");
+			}
+		}
+	}
+
+	/**
+	 * Runs all the benchmarks over all the shapes.
+	 *
+	 * @param out stream for the results
+	 */
+	void run(PrintStream out){
+		Parallel.setThreads(threads);
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()){
+			allocation = (com.sun.management.ThreadMXBean) threadBean;
+			allocation.setThreadAllocatedMemoryEnabled(true);
+		}
+		out.println("Threads: " + Parallel.getThreads() + ", warmup iterations: " + warmupIterations + ", iterations: " + iterations + " of " + iterationTime + " ms");
+		out.println(String.format("%-44s %-12s %22s %14s", "Benchmark", "Shape", "Msamples/s", "MB/s allocated"));
+		List<Case> cases = getCases();
+		for(int[] shape: shapes){
+			ImageBuffer image = createImage(shape[0], shape[1], shape[2]);
+			String shapeName = shape[0] + "x" + shape[1] + "x" + shape[2];
+			for(Case benchmark: cases){
+				if(filter != null && benchmark.name.indexOf(filter) < 0){
+					continue;
+				}
+				try{
+					double[] result = measure(benchmark, image);
+					out.println(String.format("%-44s %-12s %12.2f +- %7.2f %14s", benchmark.name, shapeName, result[0], result[1],
+							result[2] < 0 ? "-": String.format("%.1f", result[2])));
+				}catch(Exception e){
+					out.println(String.format("%-44s %-12s %s", benchmark.name, shapeName, "FAILED: " + e));
+				}
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Measures a benchmark over an image.
+	 *
+	 * @param benchmark benchmark
+	 * @param image image (it is not changed)
+	 * @return throughput mean and standard deviation (millions of samples per second) and allocation rate (MB per second, -1 if unknown)
+	 *
+	 * @throws Exception when the benchmark fails
+	 */
+	double[] measure(Case benchmark, ImageBuffer image) throws Exception{
+		long samples = (long) image.getZSize() * image.getYSize() * image.getXSize();
+		double[] throughputs = new double[iterations];
+		long totalTime = 0;
+		long totalAllocated = 0;
+		benchmark.setUp(image);
+		try{
+			for(int iteration = -warmupIterations; iteration < iterations; iteration++){
+				long time = 0;
+				long operations = 0;
+				while(time < iterationTime * 1000000L){
+					ImageBuffer input = benchmark.inPlace ? copy(image): image;
+					long allocated = getAllocatedBytes();
+					long start = System.nanoTime();
+					benchmark.run(input);
+					time += System.nanoTime() - start;
+					if(iteration >= 0){
+						totalAllocated += getAllocatedBytes() - allocated;
+					}
+					operations++;
+				}
+				if(iteration >= 0){
+					throughputs[iteration] = operations * samples / (time / 1e9) / 1e6;
+					totalTime += time;
+				}
+			}
+		}finally{
+			benchmark.tearDown();
+		}
+		double mean = 0;
+		for(double throughput: throughputs){
+			mean += throughput / iterations;
+		}
+		double variance = 0;
+		for(double throughput: throughputs){
+			variance += (throughput - mean) * (throughput - mean) / iterations;
+		}
+		double allocationRate = allocation == null ? -1: totalAllocated / (totalTime / 1e9) / (1 << 20);
+		return new double[]{mean, Math.sqrt(variance), allocationRate};
+	}
+
+	/**
+	 * Bytes allocated so far by all the live threads (0 if unknown).
+	 */
+	long getAllocatedBytes(){
+		if(allocation == null){
+			return 0;
+		}
+		long total = 0;
+		for(long bytes: allocation.getThreadAllocatedBytes(allocation.getAllThreadIds())){
+			total += Math.max(0, bytes);
+		}
+		return total;
+	}
+
+	/**
+	 * Creates an image of 16 bit samples, with about a third of null samples.
+	 */
+	static ImageBuffer createImage(int zSize, int ySize, int xSize){
+		Random random = new Random(zSize * 31L + ySize * 17L + xSize);
+		ImageBuffer image = new ImageBuffer(zSize, ySize, xSize);
+		for(int z = 0; z < zSize; z++){
+			float[] band = image.getBand(z);
+			for(int i = 0; i < band.length; i++){
+				band[i] = random.nextInt(3) == 0 ? 0: random.nextInt(65536);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Copies an image.
+	 */
+	static ImageBuffer copy(ImageBuffer image){
+		float[][] bands = new float[image.getZSize()][];
+		for(int z = 0; z < bands.length; z++){
+			bands[z] = image.getBand(z).clone();
+		}
+		return new ImageBuffer(bands, image.getYSize(), image.getXSize());
+	}
+
+	/**
+	 * @return all the benchmarks
+	 */
+	List<Case> getCases(){
+		List<Case> cases = new ArrayList<Case>();
+
+		//TRANSFORM IMAGE METHODS
+		cases.add(new Case("TransformImage.forwardSpectralDWT", true){
+			void run(ImageBuffer image) throws Exception{
+				new TransformImage(image).forwardSpectralDWT(1, 1);
+			}
+		});
+		cases.add(new Case("TransformImage.inverseSpectralDWT", true){
+			void run(ImageBuffer image) throws Exception{
+				new TransformImage(image).inverseSpectralDWT(1, 1);
+			}
+		});
+		cases.add(new Case("TransformImage.coefficientsApproximation", true){
+			int[] approximation;
+			float[] minValue;
+			float[] maxValue;
+
+			void setUp(ImageBuffer image){
+				approximation = new int[image.getZSize()];
+				minValue = new float[image.getZSize()];
+				maxValue = new float[image.getZSize()];
+				Arrays.fill(approximation, 1);
+				Arrays.fill(minValue, 100);
+				Arrays.fill(maxValue, 60000);
+			}
+
+			void run(ImageBuffer image) throws Exception{
+				new TransformImage(image).coefficientsApproximation(approximation, minValue, maxValue, null, null, null, null, null);
+			}
+		});
+		cases.add(new Case("TransformImage.selectBands", false){
+			void run(ImageBuffer image){
+				new TransformImage(image).selectBands(0, image.getZSize() / 2 + 1);
+			}
+		});
+		cases.add(new Case("TransformImage.nonNullCoefficients", false){
+			int count;
+
+			void setUp(ImageBuffer image){
+				count = (int) new NonNullCompaction(image).getCount();
+			}
+
+			void run(ImageBuffer image) throws Exception{
+				new TransformImage(image).nonNullCoefficients(1, 1, count, count, System.err);
+			}
+		});
+		cases.add(new Case("TransformImage.SpatialForwardLeftDPCM", true){
+			void run(ImageBuffer image){
+				new TransformImage(image).SpatialForwardLeftDPCM();
+			}
+		});
+		cases.add(new Case("TransformImage.SpatialReverseLeftDPCM", true){
+			void run(ImageBuffer image){
+				new TransformImage(image).SpatialReverseLeftDPCM();
+			}
+		});
+		cases.add(new Case("TransformImage.cropImage", false){
+			void run(ImageBuffer image){
+				new TransformImage(image).cropImage(0, image.getYSize() / 4, image.getXSize() / 4, 0, image.getYSize() / 2, image.getXSize() / 2);
+			}
+		});
+		cases.add(new Case("TransformImage.rotateImage", false){
+			void run(ImageBuffer image){
+				new TransformImage(image).rotateImage(1);
+			}
+		});
+		cases.add(new Case("TransformImage.permuteComponents", false){
+			void run(ImageBuffer image){
+				new TransformImage(image).permuteComponents(0, 1);
+			}
+		});
+		cases.add(new Case("TransformImage.permuteImage", false){
+			int[] permutation;
+
+			void setUp(ImageBuffer image){
+				permutation = new int[image.getXSize()];
+				for(int x = 0; x < permutation.length; x++){
+					permutation[x] = permutation.length - 1 - x;
+				}
+			}
+
+			void run(ImageBuffer image) throws Exception{
+				new TransformImage(image).permuteImage(2, permutation);
+			}
+		});
+
+		//OTHER STAGES
+		cases.add(new Case("SpatialWaveletTransform (5/3, 2 levels)", true){
+			void run(ImageBuffer image) throws Exception{
+				int zSize = image.getZSize();
+				int[] types = new int[zSize];
+				int[] levels = new int[zSize];
+				Arrays.fill(types, 1);
+				Arrays.fill(levels, 2);
+				new SpatialWaveletTransform(image, types, levels, new int[zSize], true).run();
+			}
+		});
+		cases.add(new Case("SpectralDecorrelator.forwardDPCM", true){
+			void run(ImageBuffer image) throws Exception{
+				new SpectralDecorrelator(image).forwardDPCM(0);
+			}
+		});
+		for(final int quantizer: new int[]{BulkQuantizer.SDQ, BulkQuantizer.UQ}){
+			for(final int step: new int[]{3, 4}){
+				cases.add(new Case("BulkQuantizer " + (quantizer == BulkQuantizer.SDQ ? "SDQ": "UQ") + " step " + step, true){
+					BulkQuantizer bulkQuantizer = new BulkQuantizer(quantizer, step);
+
+					void run(ImageBuffer image){
+						for(int z = 0; z < image.getZSize(); z++){
+							float[] band = image.getBand(z);
+							bulkQuantizer.quantize(band, 0, band.length, band);
+						}
+					}
+				});
+			}
+		}
+		cases.add(new Case("PointwisePipeline range modification", true){
+			PointwisePipeline pipeline = PointwisePipeline.compile(null, new float[]{5}, null, null);
+
+			void run(ImageBuffer image){
+				pipeline.apply(image);
+			}
+		});
+		cases.add(new Case("DimensionTranspose 2 1 0", false){
+			void run(ImageBuffer image) throws Exception{
+				new DimensionTranspose(image, new int[]{2, 1, 0}).run();
+			}
+		});
+		cases.add(new Case("DimensionTranspose 1 2 0", false){
+			void run(ImageBuffer image) throws Exception{
+				new DimensionTranspose(image, new int[]{1, 2, 0}).run();
+			}
+		});
+		cases.add(new Case("Reshape.dimensionTranspose 2 1 0 (GICI)", false){
+			void run(ImageBuffer image){
+				new Reshape(image.toArray(false)).dimensionTranspose(new int[]{2, 1, 0});
+			}
+		});
+
+		//RAW INPUT AND OUTPUT
+		for(int sampleType = 0; sampleType <= 7; sampleType++){
+			for(int byteOrder = 0; byteOrder <= 1; byteOrder++){
+				addRawCases(cases, sampleType, byteOrder);
+			}
+		}
+		return cases;
+	}
+
+	/**
+	 * Adds the benchmarks of raw input and output of a sample type and byte order.
+	 */
+	static void addRawCases(List<Case> cases, final int sampleType, final int byteOrder){
+		final String suffix = " type " + sampleType + (byteOrder == 0 ? " BE": " LE");
+
+		cases.add(new Case("RawImageWriter.writeImage" + suffix, false){
+			File file;
+			ImageBuffer samples;
+
+			void setUp(ImageBuffer image) throws Exception{
+				file = File.createTempFile("ffcBenchmark", ".raw");
+				samples = fitToType(image, sampleType);
+			}
+
+			void run(ImageBuffer image) throws Exception{
+				file.delete();
+				RawImageWriter writer = new RawImageWriter(file.getPath(), sampleType, byteOrder);
+				try{
+					writer.writeImage(samples);
+				}finally{
+					writer.close();
+				}
+			}
+
+			void tearDown(){
+				file.delete();
+			}
+		});
+		cases.add(new RawReadCase("LoadFile" + suffix, sampleType, byteOrder){
+			void run(ImageBuffer image) throws Exception{
+				LoadFile load = new LoadFile(file.getPath(), image.getZSize(), image.getYSize(), image.getXSize(), sampleType, byteOrder, false);
+				ImageBuffer.fromArray(load.getImage(), true);
+			}
+		});
+		cases.add(new RawReadCase("MappedRawImage.getImage" + suffix, sampleType, byteOrder){
+			void run(ImageBuffer image) throws Exception{
+				new MappedRawImage(file.getPath(), image.getZSize(), image.getYSize(), image.getXSize(), sampleType, byteOrder).getImage();
+			}
+		});
+	}
+
+	/**
+	 * Benchmark that reads a raw file, which is written in {@link #setUp(ImageBuffer)}.
+	 */
+	static abstract class RawReadCase extends Case{
+
+		/**
+		 * Sample type and byte order of the file.
+		 */
+		int sampleType;
+		int byteOrder;
+
+		/**
+		 * File read.
+		 */
+		File file;
+
+		RawReadCase(String name, int sampleType, int byteOrder){
+			super(name, false);
+			this.sampleType = sampleType;
+			this.byteOrder = byteOrder;
+		}
+
+		void setUp(ImageBuffer image) throws Exception{
+			file = File.createTempFile("ffcBenchmark", ".raw");
+			file.delete();
+			RawImageWriter writer = new RawImageWriter(file.getPath(), sampleType, byteOrder);
+			try{
+				writer.writeImage(fitToType(image, sampleType));
+			}finally{
+				writer.close();
+			}
+		}
+
+		void tearDown(){
+			file.delete();
+		}
+	}
+
+	/**
+	 * Copies an image of 16 bit samples changing them to the range of a sample type, so no sample
+	 * is out of range when it is written.
+	 *
+	 * @param image image of 16 bit samples
+	 * @param sampleType sample type (see "-og")
+	 * @return the new image
+	 */
+	static ImageBuffer fitToType(ImageBuffer image, int sampleType){
+		ImageBuffer fitted = copy(image);
+		for(int z = 0; z < fitted.getZSize(); z++){
+			float[] band = fitted.getBand(z);
+			for(int i = 0; i < band.length; i++){
+				switch(sampleType){
+				case 0:
+					band[i] = band[i] != 0 ? 1: 0;
+					break;
+				case 1:
+					band[i] = band[i] % 256;
+					break;
+				case 3:
+					band[i] -= 32768;
+					break;
+				}
+			}
+		}
+		return fitted;
+	}
+}
@@ -1,6 +1,8 @@
 package ffc;
 
 import GiciException.ParameterException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Arguments parser for ffc. This class analyses a string of arguments and extract and check its validity.
@@ -130,7 +132,7 @@ public class ArgsParser{
 			"This parameter specifies the permutation applied if --permuteDimension is used (e.g. 0 2 1 3 swaps the middle components on a four component dimension)."
 		},
 		{"-nnc", "--nonNullCoefficients", "{int}", "null", "0",
-			"This parameter indicates the number of pixels in the input image that are different from zero(0). An output image is produced that contains only the original non-null pixels (i.e., all null pixels have been removed). The geometry of the output image can be thought of as a 1-dimensional array, where all non-null coefficients appear sequentially in a single row, or appropriate spatial dimensions can be passed as arguments. This routine is programmed only for application to a single component."
+			"This parameter indicates the number of pixels in the input image that are different from zero(0). An output image is produced that contains only the original non-null pixels (i.e., all null pixels have been removed). The geometry of the output image can be thought of as a 1-dimensional array, where all non-null coefficients appear sequentially in a single row, or appropriate spatial dimensions can be passed as arguments. This routine is programmed only for application to a single component. If 0, non-null pixels are counted and the output image is a single row with all of them (the output geometry dimensions are not used)."
 		},
 		{"-sv4not0p", "--subtractValueForNonZeroPixels", "{float[ float[ float[ ...]]]}", "null", "0",
 		"This parameter specifies the subtraction value that will be subtracted to those image pixels that are not zero(0). First value is for the first channel, second value for the second channel and so on. If only one value is specified, it will be the same for all channels. If no value is given, no subtraction value is considered (subtract = 0)."	
@@ -156,6 +158,65 @@ public class ArgsParser{
 					+ "1.- Uniform quantizer. (PAE = delta)."
 
 		},
+		{"-mm", "--memoryMappedInput", "", "", "0",
+			"Raw input images (\".raw\" or \".img\") are memory mapped instead of being fully loaded. Samples are decoded only when they are read, so when a crop is requested only the selected window is loaded. Images larger than the available memory can be cropped this way."
+		},
+		{"-ss", "--stripStreaming", "{int}", "0", "0",
+			"Number of rows of the strips used to stream the image from the input to the output file. Memory needed is then proportional to the strip size instead of to the image size. Only available when input and output images are raw data and the requested transformation can be computed row by row (coefficients approximation, quantization, spatial DPCM, crop and rotation). If 0, the whole image is loaded."
+		},
+		{"-th", "--threads", "{int}", "1", "0",
+			"Number of threads of the conversion. Stages that can be split in independent parts (components, blocks of rows or tiles of pixels) compute those parts in parallel, as do strip streaming and the out of core dimension permutation; the other stages and the load and save of the GICI libraries use one thread. The parallel parts are computed by the thread of the conversion and a pool of as many threads as available processors, shared by all the conversions of the virtual machine, so larger values do not create more threads. The output does not depend on this value. If 0, all the available processors are used."
+		},
+		{"-mb", "--memoryBudget", "{int}", "0", "0",
+			"Memory budget in MB of the dimension permutation (\"-cd\" parameter). If greater than 0 and input and output images are raw data, the input image is read by slabs that fit in the budget and each permuted slab is written at its final position in the output file, so images larger than the available memory can be permuted. If 0, the whole image is loaded."
+		},
+		{"-nncm", "--nonNullCoefficientsMap", "{int}", "0", "0",
+			"Map of the positions of the non-null pixels written along with the output of \"-nnc\", so the image can be rebuilt from them. The map is written to a file named as the output file plus the extension of the map type:\n"+
+			"\t 0 - No map.\n"+
+			"\t 1 - Positions (\".pos\"): position of each non-null pixel in the input image (z*ySize*xSize + y*xSize + x) as 64 bit big endian integers.\n"+
+			"\t 2 - Bitmap (\".map\"): one bit for each pixel of the input image in raster order, 1 if the pixel is not null (most significant bit first).\n"
+		},
+		{"-bt", "--batch", "{string}", "", "0",
+			"Job file of a batch of conversions run in this program, so the virtual machine is started only once. Each line of the file is the argument list of one conversion (arguments with spaces can be quoted with \"), and empty lines and lines beginning with # are skipped. The result of each job is reported when it ends, and a failing job does not stop the others. When this parameter is given, the only other parameter allowed is \"-bj\"."
+		},
+		{"-bj", "--batchJobs", "{int}", "1", "0",
+			"Number of jobs of the batch (\"-bt\" parameter) or of the server (\"-srv\" parameter) that are run concurrently. Each job uses the number of threads given by its own \"-th\" parameter. If 0, as many jobs as available processors are run."
+		},
+		{"-srv", "--server", "{int}", "", "0",
+			"Runs a conversion server listening on the given port of the loopback interface (0 to use any free port, which is printed). Clients (see ffc.ConversionClient) send one line for each conversion with its argument list, as in the job files of \"-bt\", and the server runs it and sends back its status, messages and time. All the conversions run in this virtual machine, so it is started only once. A line with SHUTDOWN stops the server. Conversions read and write any file that the user running the server can access, so clients must first send a random token that the server writes to \"~/.ffc-server-port.token\", readable only by this user (ffc.ConversionClient reads it). Any process that can read that file, or that runs as this user, can request conversions. Clients also send their working directory, against which relative file names of \"-i\" and \"-o\" are resolved (conversions with relative file names are refused when it is not sent). Connections that do not send the token within 10 seconds are closed, and at most 64 connections are served at once. When this parameter is given, the only other parameter allowed is \"-bj\"."
+		},
+		{"-pl", "--pipeline", "{string[ string[ ...]]}", "ca swt wt df sptDpcm crop rotate pd nnc cd rm pc q", "0",
+			"Order in which the requested stages are applied. When this parameter is given, several transformations can be requested at once. Stages are:\n"+
+			"\t ca - coefficients approximation (\"-ca\", \"-mn\", \"-mx\", \"-ltv\", \"-utv\", \"-sv\", \"-sv4not0p\" and \"-svim\").\n"+
+			"\t swt - spectral wavelet transform (\"-swt\").\n"+
+			"\t wt - spatial wavelet transform (\"-wt\").\n"+
+			"\t df - spectral DPCM (\"-df\").\n"+
+			"\t sptDpcm - spatial DPCM (\"-sptDpcm\").\n"+
+			"\t crop - crop (\"-z0\", \"-zl\", \"-zr\", \"-y0\", \"-yl\", \"-x0\" and \"-xl\").\n"+
+			"\t rotate - rotation (\"-ro\").\n"+
+			"\t pd - dimension permutation (\"-pd\" and \"-ps\").\n"+
+			"\t nnc - removal of null coefficients (\"-nnc\").\n"+
+			"\t cd - change of dimensions (\"-cd\").\n"+
+			"\t rm - range modification (\"-rm\").\n"+
+			"\t pc - component permutation (\"-pc\").\n"+
+			"\t q - quantization (\"-q\").\n"+
+			"Stages listed but not requested are skipped. The planner moves crops (and component selections) before the stages that give the same result on the cropped image, so fewer samples are transformed, and adjacent pointwise stages (ca, rm and q) are computed in a single sweep."
+		},
+		{"-pp", "--printPlan", "", "", "0",
+			"Prints the plan of the conversion (the stages in the order they are run and how each one is computed) before running it."
+		},
+		{"-dr", "--dryRun", "", "", "0",
+			"Estimates the peak of memory and the number of passes over the image of each step of the conversion, from the input image geometry and the requested stages, and prints them along with the execution chosen for the heap budget (\"-hb\" parameter, or the maximum heap of the virtual machine). Nothing is loaded nor written. Only available for raw input images."
+		},
+		{"-hb", "--heapBudget", "{int}", "0", "0",
+			"Heap budget in MB of the conversion. Before loading the input image, the peak of memory of the conversion is estimated (see \"-dr\"): if it does not fit in the budget, the conversion is done by strips (as with \"-ss\") or out of core (as with \"-mb\") when possible, with strips or slabs as large as the budget allows, and otherwise it is not started. Only available for raw input images. If 0, the conversion is always done as requested."
+		},
+		{"-st", "--stats", "[{string}]", "", "0",
+			"Prints statistics of each stage of the conversion (load, each step of the plan and save) when it ends: wall time, CPU time, samples processed and throughput, bytes read and written, bytes allocated and garbage collections during the stage. Without option, or with \"text\", they are printed as text; with \"json\", as a JSON object for other tools. CPU time and allocated bytes are the ones of the whole virtual machine, so they include other conversions run at once with \"-bt\" or \"-srv\"."
+		},
+		{"-hp", "--halfPrecision", "", "", "0",
+			"Keeps the image in IEEE half precision (16 bit floats) between the stages of the conversion, instead of in 32 bit floats, so it takes half the memory. Samples are widened to 32 bit floats only while a stage computes them: stages that compute each component independently (spatial wavelet transform, spatial DPCM, coefficients approximation and quantization) widen only a few components at once, the other ones widen the whole image. Half precision keeps 11 significant bits, so it is meant for lossy conversions whose output has at most 8 or 16 bits; the samples are rounded to half precision after each stage. It only applies to conversions computed in memory with 32 bit floats (not to raw to raw conversions, strip streaming, out of core permutations nor conversions of integer samples), and the memory estimated with \"-dr\" and \"-hb\" is still the one of 32 bit floats."
+		},
 	};
 
 	//ARGUMENTS VARIABLES
@@ -195,6 +256,25 @@ public class ArgsParser{
 	int spatialDPCM = 0;
 	int spatialOrder = 0;
 	int [] quantization = null;
+	boolean memoryMappedInput = false;
+	int stripStreaming = 0;
+	int threads = 1;
+	int memoryBudget = 0;
+	int nonNullCoefficientsMap = 0;
+	String batchFile = null;
+	int batchJobs = 1;
+	int serverPort = -1;
+	String[] pipeline = null;
+	boolean printPlan = false;
+	boolean dryRun = false;
+	int heapBudget = 0;
+	String stats = null;
+	boolean halfPrecision = false;
+
+	/**
+	 * Arguments as they were given, by short name of the argument (for instance, "-wt" to "-wt 4").
+	 */
+	Map<String, String> givenArguments = new HashMap<String, String>();
 
 	
 	private boolean isCoefficientApproximation = false;
@@ -240,6 +320,11 @@ public class ArgsParser{
 					String[] options = new String[numOptions];
 					System.arraycopy(args, argNum, options, 0, numOptions);
 					argNum = argOptions;
+					StringBuilder given = new StringBuilder(options[0]);
+					for(int numOption = 1; numOption < numOptions; numOption++){
+						given.append(" ").append(options[numOption]);
+					}
+					givenArguments.put(argsSpecification[argFound][0], given.toString());
 					switch(argFound){
 					case 0: //-h  --help
 						showArgsInfo();
@@ -386,6 +471,51 @@ public class ArgsParser{
 						quantization = parseIntegerArray(options);
 						isQuantization = true;
 						break;
+					case 37://"-mm", "--memoryMappedInput"
+						memoryMappedInput = parseFlag(options);
+						break;
+					case 38://"-ss", "--stripStreaming"
+						stripStreaming = parseIntegerPositive(options);
+						break;
+					case 39://"-th", "--threads"
+						threads = parseIntegerPositive(options);
+						break;
+					case 40://"-mb", "--memoryBudget"
+						memoryBudget = parseIntegerPositive(options);
+						break;
+					case 41://"-nncm", "--nonNullCoefficientsMap"
+						nonNullCoefficientsMap = parseIntegerPositive(options);
+						break;
+					case 42://"-bt", "--batch"
+						batchFile = parseString(options);
+						break;
+					case 43://"-bj", "--batchJobs"
+						batchJobs = parseIntegerPositive(options);
+						break;
+					case 44://"-srv", "--server"
+						serverPort = parseIntegerPositive(options);
+						break;
+					case 45://"-pl", "--pipeline"
+						pipeline = parseStringArray(options);
+						break;
+					case 46://"-pp", "--printPlan"
+						printPlan = parseFlag(options);
+						break;
+					case 47://"-dr", "--dryRun"
+						dryRun = parseFlag(options);
+						break;
+					case 48://"-hb", "--heapBudget"
+						heapBudget = parseIntegerPositive(options);
+						break;
+					case 49://"-st", "--stats"
+						stats = options.length == 1 ? "text": parseString(options);
+						if(!stats.equals("text") && !stats.equals("json")){
+							throw new Exception("Option of argument \"-st\" must be \"text\" or \"json\".");
+						}
+						break;
+					case 50://"-hp", "--halfPrecision"
+						halfPrecision = parseFlag(options);
+						break;
 					}
 				}else{
 					throw new Exception("Argument \"" + args[argNum] + "\" repeated.");
@@ -393,8 +523,10 @@ public class ArgsParser{
 			}else{
 				throw new Exception("Argument \"" + args[argNum] + "\" unrecognized.");
 			}
-			
-			// Check max. number of operations (only 1 is allowed)
+		}
+
+		// Check max. number of operations (only 1 is allowed, unless their order is given)
+		if(pipeline == null){
 			int numOfOperations = 0;
 			if (isCoefficientApproximation) numOfOperations++;
 			if (isSpectralWavelet) numOfOperations++;
@@ -409,9 +541,23 @@ public class ArgsParser{
 			if (isQuantization) numOfOperations++;
 			
 			if (numOfOperations >= 2) {
-				throw new Exception("FormatFileConverter can only perform one transformation at once");
+				throw new Exception("FormatFileConverter can only perform one transformation at once (unless their order is given with \"-pl\")");
 			}
-			
+		}
+
+		//A batch or a server has no other arguments, they are given in each job
+		if(batchFile != null || serverPort >= 0){
+			if(batchFile != null && serverPort >= 0){
+				throw new Exception("Arguments \"-bt\" and \"-srv\" can not be given together.");
+			}
+			for(int i = 0; i < argsSpecification.length; i++){
+				if(argsFound[i] && i != 42 && i != 43 && i != 44){
+					throw new Exception("Argument \"" + argsSpecification[i][0] + "\" can not be given along with \"" + (batchFile != null ? "-bt": "-srv") + "\".");
+				}
+			}
+			return;
+		}else if(argsFound[43]){
+			throw new Exception("Argument \"-bj\" can only be given along with \"-bt\" or \"-srv\".");
 		}
 
 		//Check mandatory arguments
@@ -448,7 +594,7 @@ public class ArgsParser{
 	 * This function shows arguments information to console.
 	 */
 	public void showArgsInfo(){
-		System.out.println(	"NOTE: Only one transformation can be performed at once");
+		System.out.println(	"NOTE: Several transformations can only be performed at once when their order is given with \"-pl\"");
 		
 		System.out.println("Arguments specification: ");
 		for(int numArg = 0; numArg < argsSpecification.length; numArg++){
@@ -490,6 +636,13 @@ public class ArgsParser{
 		return(value);
 	}
 
+	boolean parseFlag(String[] options) throws Exception{
+		if(options.length != 1){
+			throw new Exception("Argument \"" + options[0] + "\" takes no options. Try \"-h\" to display help.");
+		}
+		return(true);
+	}
+
 	int parseInteger(String[] options) throws Exception{
 		int value = 0;
 
@@ -552,6 +705,15 @@ public class ArgsParser{
 		return(value);
 	}
 	
+	String[] parseStringArray(String[] options) throws Exception{
+		if(options.length < 2){
+			throw new Exception("Argument \"" + options[0] + "\" takes one or more options. Try \"-h\" to display help.");
+		}
+		String[] value = new String[options.length - 1];
+		System.arraycopy(options, 1, value, 0, value.length);
+		return(value);
+	}
+
 	float[] parseFloatArray(String[] options) throws Exception{
 		float[] value = null;
 
@@ -594,6 +756,16 @@ public class ArgsParser{
 		return(value);
 	}
 
+	/**
+	 * Checks whether some transformation (of any kind) has been requested.
+	 *
+	 * @return true if the image is only converted from the input to the output format, false otherwise
+	 */
+	public boolean isTransformRequested(){
+		return isCoefficientApproximation || isSpectralWavelet || isDPCM || isSpatialWavlet || isCrop || isRotate || isPermutation
+				|| isRemoveNullCoefficients || isSpatialDPCM || isQuantization || changeDim != null || rangeModification != null || permuteType != null;
+	}
+
 	///////////////////////////
 	//ARGUMENTS GET FUNCTIONS//
 	///////////////////////////
@@ -688,6 +860,12 @@ public class ArgsParser{
 	public int[] getPermutationSequence(){
 		return(this.permutationSequence);
 	}
+	public boolean getRemoveNullCoefficientsRequested(){
+		return(this.isRemoveNullCoefficients);
+	}
+	public int getNonNullCoefficientsMap(){
+		return(this.nonNullCoefficientsMap);
+	}
 	public int getRemoveNullCoefficients(){
 		return(this.nonNullCoefficients);
 	}
@@ -706,5 +884,60 @@ public class ArgsParser{
     public int[] getQuantization(){
     		return(this.quantization);
     }
-}
+	public boolean getMemoryMappedInput(){
+		return(this.memoryMappedInput);
+	}
+	public int getStripStreaming(){
+		return(this.stripStreaming);
+	}
+	public int getThreads(){
+		return(this.threads);
+	}
+	public int getMemoryBudget(){
+		return(this.memoryBudget);
+	}
+	public String getBatchFile(){
+		return(this.batchFile);
+	}
+	public int getBatchJobs(){
+		return(this.batchJobs);
+	}
+	public int getServerPort(){
+		return(this.serverPort);
+	}
+	public String[] getPipeline(){
+		return(this.pipeline);
+	}
+	public boolean getPrintPlan(){
+		return(this.printPlan);
+	}
+	public boolean getDryRun(){
+		return(this.dryRun);
+	}
+	public int getHeapBudget(){
+		return(this.heapBudget);
+	}
+	public String getStats(){
+		return(this.stats);
+	}
+	public boolean getHalfPrecision(){
+		return(this.halfPrecision);
+	}
 
+	/**
+	 * Arguments given for some parameters, as they were written in the command line.
+	 *
+	 * @param names short names of the parameters (for instance, "-wt")
+	 * @return the arguments given, separated by spaces (an empty string if none has been given)
+	 */
+	public String getGivenArguments(String[] names){
+		StringBuilder given = new StringBuilder();
+		for(String name: names){
+			String argument = givenArguments.get(name);
+			if(argument != null){
+				given.append(given.length() > 0 ? " ": "").append(argument);
+			}
+		}
+		return(given.toString());
+	}
+}
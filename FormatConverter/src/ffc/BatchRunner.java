@@ -0,0 +1,316 @@
+package ffc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import GiciException.*;
+
+
+/**
+ * Batch of conversions run in the same virtual machine ("-bt" parameter). Each line of the job file
+ * is the argument list of one conversion, which is run with
+ * {@link FormatFileConverter#convert(String[], PrintStream, PrintStream)}, so the virtual machine is
+ * started (and the code compiled by the JIT compiler) only once for the whole batch.<br>
+ * Several jobs can be run concurrently ("-bj" parameter). The messages of each job are kept until
+ * it ends and then reported together with its result, so the reports of concurrent jobs are not mixed.
+ * A failing job does not stop the others, and neither does a line of the job file that can not be
+ * parsed: it is reported as a failed job with its argument error.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class BatchRunner{
+
+	/**
+	 * Job file.
+	 */
+	String jobFile;
+
+	/**
+	 * Number of jobs run concurrently.
+	 */
+	int concurrentJobs;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param jobFile definition in {@link #jobFile}
+	 * @param concurrentJobs number of jobs run concurrently, 0 to run as many jobs as available processors
+	 */
+	public BatchRunner(String jobFile, int concurrentJobs){
+		this.jobFile = jobFile;
+		this.concurrentJobs = concurrentJobs > 0 ? concurrentJobs: Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * One conversion of the batch.
+	 */
+	static class Job{
+
+		/**
+		 * Line of the job file.
+		 */
+		int line;
+
+		/**
+		 * Arguments of the conversion.
+		 */
+		String[] args;
+
+		/**
+		 * Error of the line of the job file, reported instead of running the conversion (null if none).
+		 */
+		String error = null;
+
+		/**
+		 * Exit status of the conversion (see {@link FormatFileConverter#convert(String[], PrintStream, PrintStream)}).
+		 */
+		int status;
+
+		/**
+		 * Messages and errors of the conversion (when they are kept, see {@link #run()}).
+		 */
+		String messages = "";
+
+		/**
+		 * Time spent in the conversion, in milliseconds.
+		 */
+		long time;
+
+		Job(int line, String[] args){
+			this.line = line;
+			this.args = args;
+		}
+
+		/**
+		 * Constructor of a line that can not be run.
+		 *
+		 * @param line definition in {@link #line}
+		 * @param error definition in {@link #error}
+		 */
+		Job(int line, String error){
+			this.line = line;
+			this.error = error;
+		}
+
+		/**
+		 * Runs the conversion, keeping its messages and result.
+		 */
+		void run(){
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			PrintStream stream = new PrintStream(buffer, true);
+			run(stream);
+			messages = buffer.toString();
+		}
+
+		/**
+		 * Runs the conversion, keeping its result.
+		 *
+		 * @param stream stream for the messages and errors of the conversion
+		 */
+		void run(PrintStream stream){
+			long start = System.nanoTime();
+			try{
+				if(error != null){
+					//Reported as FormatFileConverter reports the errors of the arguments
+					stream.println("ARGUMENTS ERROR: " + error);
+					status = 1;
+				}else{
+					status = FormatFileConverter.convert(args, stream, stream);
+				}
+			}catch(Throwable e){
+				//Unexpected errors (out of memory, for instance) only fail this job
+				e.printStackTrace(stream);
+				stream.println("Gici ERROR: " + e);
+				status = 4;
+			}
+			time = (System.nanoTime() - start) / 1000000;
+			stream.flush();
+		}
+	}
+
+	/**
+	 * Reads the jobs of the job file. Lines that can not be parsed are kept as jobs that fail with
+	 * their error.
+	 *
+	 * @return the jobs, in the order of the file
+	 *
+	 * @throws WarningException when the file can not be read
+	 */
+	List<Job> readJobs() throws WarningException{
+		List<Job> jobs = new ArrayList<Job>();
+		BufferedReader reader = null;
+		try{
+			reader = new BufferedReader(new FileReader(jobFile));
+			String text;
+			int line = 0;
+			while((text = reader.readLine()) != null){
+				line++;
+				text = text.trim();
+				if(text.length() == 0 || text.startsWith("#")){
+					continue;
+				}
+				try{
+					jobs.add(parseJob(text, line, "line " + line + " of the job file"));
+				}catch(ParameterException e){
+					jobs.add(new Job(line, e.getMessage()));
+				}
+			}
+		}catch(IOException e){
+			throw new WarningException("File \"" + jobFile + "\" can not be read: " + e.getMessage());
+		}finally{
+			if(reader != null){
+				try{
+					reader.close();
+				}catch(IOException e){
+					throw new WarningException("Error closing file \"" + jobFile + "\".");
+				}
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Parses a job. Arguments that would end the program or start another batch are not allowed.
+	 *
+	 * @param text arguments of the job (see {@link #split(String, String)})
+	 * @param line number of the line of the job (see {@link Job#line})
+	 * @param label where the job comes from, for the errors (for instance, "line 3 of the job file")
+	 * @return the job
+	 *
+	 * @throws ParameterException when the arguments can not be parsed or are not allowed
+	 */
+	static Job parseJob(String text, int line, String label) throws ParameterException{
+		String[] args = split(text, label);
+		for(String arg: args){
+			if(arg.equals("-h") || arg.equals("--help") || arg.equals("-bt") || arg.equals("--batch") || arg.equals("-srv") || arg.equals("--server")){
+				throw new ParameterException("Argument \"" + arg + "\" can not be used in a job (" + label + ").");
+			}
+		}
+		return new Job(line, args);
+	}
+
+	/**
+	 * Splits a line of the job file in arguments. Arguments are separated by spaces or tabs, and may
+	 * be quoted with " to contain them.
+	 *
+	 * @param text line of the job file
+	 * @param label where the line comes from, for the errors
+	 * @return the arguments
+	 *
+	 * @throws ParameterException when a quote is not closed
+	 */
+	static String[] split(String text, String label) throws ParameterException{
+		List<String> args = new ArrayList<String>();
+		StringBuilder arg = null;
+		boolean quoted = false;
+		for(int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if(c == '"'){
+				quoted = !quoted;
+				if(arg == null){
+					arg = new StringBuilder();
+				}
+			}else if(!quoted && (c == ' ' || c == '\t')){
+				if(arg != null){
+					args.add(arg.toString());
+					arg = null;
+				}
+			}else{
+				if(arg == null){
+					arg = new StringBuilder();
+				}
+				arg.append(c);
+			}
+		}
+		if(quoted){
+			throw new ParameterException("Unclosed quote (" + label + ").");
+		}
+		if(arg != null){
+			args.add(arg.toString());
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+	/**
+	 * Creates the threads that run the jobs (daemon threads, so they never keep the program alive).
+	 *
+	 * @param concurrentJobs number of threads
+	 * @return the executor of the jobs
+	 */
+	static ExecutorService newJobExecutor(int concurrentJobs){
+		return Executors.newFixedThreadPool(concurrentJobs, new ThreadFactory(){
+			final AtomicInteger numThreads = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(StageStats.recordingExit(runnable), "ffc-job-" + numThreads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs all the jobs of the batch and reports the result of each one when it ends.
+	 *
+	 * @param out stream for the results of the jobs
+	 * @param err stream for the errors of the batch itself
+	 * @return 0 if all the jobs have succeeded, otherwise the greatest exit status of the failed jobs
+	 */
+	public int run(final PrintStream out, PrintStream err){
+		List<Job> jobs;
+		try{
+			jobs = readJobs();
+		}catch(Exception e){
+			err.println("BATCH ERROR: " + e.getMessage());
+			return 2;
+		}
+
+		ExecutorService executor = newJobExecutor(concurrentJobs);
+		final int numJobs = jobs.size();
+		final int[] summary = new int[2];
+		long start = System.nanoTime();
+		for(int numJob = 0; numJob < numJobs; numJob++){
+			final Job job = jobs.get(numJob);
+			final int jobNumber = numJob + 1;
+			executor.execute(new Runnable(){
+				public void run(){
+					job.run();
+					synchronized(out){
+						out.println("Job " + jobNumber + "/" + numJobs + " (line " + job.line + "): "
+								+ (job.status == 0 ? "OK": "FAILED (status " + job.status + ")") + " in " + job.time + " ms");
+						if(job.messages.length() > 0){
+							out.print(job.messages);
+						}
+						out.flush();
+						if(job.status != 0){
+							summary[0]++;
+							summary[1] = Math.max(summary[1], job.status);
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try{
+			while(!executor.awaitTermination(1, TimeUnit.MINUTES));
+		}catch(InterruptedException e){
+			err.println("BATCH ERROR: interrupted");
+			return 4;
+		}
+		synchronized(out){
+			out.println("Batch: " + numJobs + " jobs, " + (numJobs - summary[0]) + " succeeded, " + summary[0] + " failed in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+			return summary[1];
+		}
+	}
+}
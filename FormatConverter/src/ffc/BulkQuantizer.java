@@ -0,0 +1,207 @@
+package ffc;
+
+
+/**
+ * Quantization and dequantization of whole arrays of samples with the quantizers of
+ * GiciQuantization (SDQ and UQ). Results are exactly the ones of calling
+ * <code>quantize((long) sample)</code> or <code>dequantize((long) sample)</code> of those classes for
+ * each sample, but without a call per sample, and with the parameters that only depend on the
+ * quantization step computed once:
+ *   <ul>
+ *     <li> SDQ with a power of two step divides by shifting
+ *     <li> UQ divides by 2*step+1 multiplying by its reciprocal (the result is corrected to be exact)
+ *   </ul>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class BulkQuantizer{
+
+	/**
+	 * Quantizer types (see "-q" parameter).
+	 */
+	public static final int SDQ = 0;
+	public static final int UQ = 1;
+
+	/**
+	 * Quantizer type.
+	 */
+	final int quantizer;
+
+	/**
+	 * Quantization step.
+	 */
+	final int step;
+
+	/**
+	 * log2 of the step if it is a power of two, -1 otherwise.
+	 */
+	final int stepShift;
+
+	/**
+	 * Divisor of UQ (2*step+1).
+	 */
+	final int divisor;
+
+	/**
+	 * 1/{@link #divisor}.
+	 */
+	final double reciprocal;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param quantizer {@link #SDQ} or {@link #UQ}
+	 * @param step quantization step
+	 */
+	public BulkQuantizer(int quantizer, int step){
+		if(quantizer != SDQ && quantizer != UQ){
+			throw new IllegalArgumentException("Unknown quantizer " + quantizer + ".");
+		}
+		this.quantizer = quantizer;
+		this.step = step;
+		this.stepShift = (step > 0 && (step & (step - 1)) == 0) ? Integer.numberOfTrailingZeros(step): -1;
+		this.divisor = 2 * step + 1;
+		this.reciprocal = 1d / divisor;
+	}
+
+	/**
+	 * Quantizes a run of samples.
+	 *
+	 * @param src samples to quantize
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 * @param dst array where the quantized samples are stored, at the same positions (it may be src)
+	 */
+	public void quantize(float[] src, int offset, int length, float[] dst){
+		int end = offset + length;
+		if(quantizer == SDQ){
+			if(stepShift >= 0){
+				for(int x = offset; x < end; x++){
+					long value = (long) src[x];
+					//(float) |value| is an integer, so dividing it by 2^stepShift and flooring is a shift
+					long magnitude = ((long) (float) Math.abs(value)) >> stepShift;
+					dst[x] = value < 0 ? -saturate(magnitude): saturate(magnitude);
+				}
+			}else{
+				float floatStep = step;
+				for(int x = offset; x < end; x++){
+					long value = (long) src[x];
+					int magnitude = (int) Math.floor((float) Math.abs(value) / floatStep);
+					dst[x] = value < 0 ? -magnitude: magnitude;
+				}
+			}
+		}else{
+			float floatStep = step;
+			float floatDivisor = divisor;
+			for(int x = offset; x < end; x++){
+				long value = (long) src[x];
+				if(value >= 0){
+					dst[x] = divide((int) Math.floor(value + step));
+				}else{
+					dst[x] = (int) ((int) Math.floor((float) value - floatStep) / floatDivisor);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dequantizes a run of samples.
+	 *
+	 * @param src samples to dequantize
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 * @param dst array where the dequantized samples are stored, at the same positions (it may be src)
+	 */
+	public void dequantize(float[] src, int offset, int length, float[] dst){
+		int end = offset + length;
+		if(quantizer == SDQ && stepShift >= 0){
+			for(int x = offset; x < end; x++){
+				dst[x] = ((long) src[x]) << stepShift;
+			}
+		}else{
+			long factor = quantizer == SDQ ? step: divisor;
+			for(int x = offset; x < end; x++){
+				dst[x] = ((long) src[x]) * factor;
+			}
+		}
+	}
+
+	/**
+	 * Quantizes a run of integer samples (see {@link IntegerPipeline}). Quotients are computed
+	 * exactly, so results are the ones of {@link #quantize(float[], int, int, float[])} for samples
+	 * that a float holds exactly (up to 2^24).
+	 *
+	 * @param src samples to quantize
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 * @param dst array where the quantized samples are stored, at the same positions (it may be src)
+	 */
+	public void quantize(long[] src, int offset, int length, long[] dst){
+		int end = offset + length;
+		if(quantizer == SDQ){
+			for(int x = offset; x < end; x++){
+				long value = src[x];
+				long magnitude = value == Long.MIN_VALUE ? Long.MAX_VALUE: Math.abs(value);
+				magnitude = saturate(stepShift >= 0 ? magnitude >> stepShift: magnitude / step);
+				dst[x] = value < 0 ? -magnitude: magnitude;
+			}
+		}else{
+			for(int x = offset; x < end; x++){
+				long value = src[x];
+				//The float version converts the sum to int before dividing, and divides negative values truncating
+				dst[x] = value >= 0 ? saturate(value + step) / divisor: saturate(value - step) / divisor;
+			}
+		}
+	}
+
+	/**
+	 * Dequantizes a run of integer samples (see {@link IntegerPipeline}), with the results of
+	 * {@link #dequantize(float[], int, int, float[])} computed without rounding them to float.
+	 *
+	 * @param src samples to dequantize
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 * @param dst array where the dequantized samples are stored, at the same positions (it may be src)
+	 */
+	public void dequantize(long[] src, int offset, int length, long[] dst){
+		int end = offset + length;
+		if(quantizer == SDQ && stepShift >= 0){
+			for(int x = offset; x < end; x++){
+				dst[x] = src[x] << stepShift;
+			}
+		}else{
+			long factor = quantizer == SDQ ? step: divisor;
+			for(int x = offset; x < end; x++){
+				dst[x] = src[x] * factor;
+			}
+		}
+	}
+
+	/**
+	 * Integer division by {@link #divisor} (as the / operator does) using its reciprocal.
+	 *
+	 * @param dividend dividend
+	 * @return the quotient
+	 */
+	int divide(int dividend){
+		if(dividend < 0 || divisor <= 0){
+			return dividend / divisor;
+		}
+		//The estimate is at most one unit away from the quotient
+		int quotient = (int) (dividend * reciprocal);
+		if((long) quotient * divisor > dividend){
+			quotient--;
+		}else if(((long) quotient + 1) * divisor <= dividend){
+			quotient++;
+		}
+		return quotient;
+	}
+
+	/**
+	 * Converts to int as a double to int conversion does (values out of range are saturated).
+	 */
+	static int saturate(long value){
+		return value > Integer.MAX_VALUE ? Integer.MAX_VALUE: (value < Integer.MIN_VALUE ? Integer.MIN_VALUE: (int) value);
+	}
+}
@@ -0,0 +1,111 @@
+package ffc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+
+/**
+ * Client of the conversion server (see {@link ConversionServer}). It sends one conversion to the
+ * server and prints its progress and messages as they are received. The token of the server is read
+ * from its token file (see {@link ConversionServer#getTokenFile(int)}), so only the user that runs
+ * the server can use it. The working directory of the client is also sent, so relative file names
+ * are the ones of the client and not the ones of the server. Usage:<br>
+ * &nbsp; java -cp ffc.jar ffc.ConversionClient port ffc_arguments<br>
+ * &nbsp; java -cp ffc.jar ffc.ConversionClient port SHUTDOWN<br>
+ * The exit status is the one of the conversion.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class ConversionClient{
+
+	/**
+	 * Main method of the client.
+	 *
+	 * @param args port of the server followed by the arguments of the conversion (or SHUTDOWN)
+	 */
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.err.println("Usage: ConversionClient port {ffc_arguments | " + ConversionServer.SHUTDOWN + "}");
+			System.exit(1);
+		}
+		int port = 0;
+		try{
+			port = Integer.parseInt(args[0]);
+		}catch(NumberFormatException e){
+			System.err.println("\"" + args[0] + "\" is not a valid port.");
+			System.exit(1);
+		}
+
+		//Arguments are quoted, so they may contain spaces
+		StringBuilder request = new StringBuilder();
+		if(args.length == 2 && args[1].equals(ConversionServer.SHUTDOWN)){
+			request.append(ConversionServer.SHUTDOWN);
+		}else{
+			for(int numArg = 1; numArg < args.length; numArg++){
+				if(args[numArg].indexOf('"') >= 0 || args[numArg].indexOf('\n') >= 0){
+					System.err.println("Argument \"" + args[numArg] + "\" can not be sent to the server.");
+					System.exit(1);
+				}
+				request.append(numArg > 1 ? " \"": "\"").append(args[numArg]).append('"');
+			}
+		}
+
+		File tokenFile = ConversionServer.getTokenFile(port);
+		String token = null;
+		try{
+			token = new String(Files.readAllBytes(tokenFile.toPath()), "UTF-8").trim();
+		}catch(IOException e){
+			System.err.println("Gici ERROR: token file \"" + tokenFile + "\" of the server at port " + port + " can not be read: " + e.getMessage());
+			System.exit(4);
+		}
+
+		int status = 4;
+		Socket socket = null;
+		try{
+			socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+			PrintWriter server = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			server.println(ConversionServer.TOKEN + " " + token);
+			server.println(ConversionServer.CWD + " " + new File("").getAbsolutePath());
+			server.println(request);
+			String line;
+			while((line = in.readLine()) != null){
+				if(line.startsWith("MSG ")){
+					System.out.println(line.substring(4));
+				}else if(line.startsWith("DONE ")){
+					String[] result = line.split(" ");
+					status = Integer.parseInt(result[1]);
+					System.out.println((status == 0 ? "OK": "FAILED (status " + status + ")") + " in " + result[2] + " ms");
+					break;
+				}else if(line.equals(ConversionServer.DENIED)){
+					System.err.println("Gici ERROR: the server at port " + port + " has refused the token of \"" + tokenFile + "\".");
+					break;
+				}else{
+					System.out.println(line);
+					if(line.equals("STOPPING")){
+						status = 0;
+					}
+				}
+			}
+		}catch(IOException e){
+			System.err.println("Gici ERROR: server at port " + port + " can not be reached: " + e.getMessage());
+		}finally{
+			if(socket != null){
+				try{
+					socket.close();
+				}catch(IOException e){
+					//Nothing else can be done
+				}
+			}
+		}
+		System.exit(status);
+	}
+}
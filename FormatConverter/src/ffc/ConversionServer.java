@@ -0,0 +1,490 @@
+package ffc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import GiciException.*;
+
+
+/**
+ * Conversion server ("-srv" parameter). It listens on a port of the loopback interface and runs the
+ * conversions requested by its clients (see {@link ConversionClient}) in this virtual machine, so
+ * the virtual machine is started, and the code compiled by the JIT compiler, only once. Conversions
+ * of all the clients share the same threads: at most "-bj" conversions run at once, and the threads
+ * of the parallel stages (see {@link Parallel}) are shared by all of them.<br>
+ * Conversions read and write any file that the user running the server can access, so only clients
+ * of that user are served: when it starts, the server writes a random token to a file that only
+ * this user can read (see {@link #getTokenFile(int)}), and each connection must begin with the line
+ * "{@link #TOKEN} token". Connections without it are answered with {@link #DENIED} and closed, as are
+ * those that do not send it within {@link #TOKEN_TIMEOUT} milliseconds or send a longer line than
+ * {@link #MAX_TOKEN_LINE} characters. At most {@link #MAX_CONNECTIONS} connections are served at
+ * once; further connections are closed right away.<br>
+ * The protocol is line oriented (UTF-8 text). After the token, a client can send the line
+ * "{@link #CWD} directory" with its working directory (an absolute path): the relative file names
+ * of "-i" and "-o" of its conversions are resolved against it. Conversions with relative file names
+ * are refused when the client has not sent it, since they would be resolved against the working
+ * directory of the server. Any other line is the argument list of a conversion, as in the job files
+ * of {@link BatchRunner}, and it is answered with:
+ *   <ul>
+ *     <li> QUEUED number: the conversion has been accepted
+ *     <li> RUNNING number: the conversion has started
+ *     <li> MSG text: one line for each line of the messages of the conversion, sent as soon as the
+ *          conversion writes it
+ *     <li> DONE status time: the conversion has ended with the given exit status (see
+ *          {@link FormatFileConverter#convert(String[], java.io.PrintStream, java.io.PrintStream)})
+ *          after the given milliseconds
+ *   </ul>
+ * Conversions sent through the same connection are run one after the other. A line with
+ * {@link #SHUTDOWN} stops the server once the running conversions end.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class ConversionServer{
+
+	/**
+	 * Request that stops the server.
+	 */
+	public static final String SHUTDOWN = "SHUTDOWN";
+
+	/**
+	 * First word of the line with the token, and answer to the connections without it.
+	 */
+	public static final String TOKEN = "TOKEN";
+	public static final String DENIED = "DENIED";
+
+	/**
+	 * First word of the line with the working directory of the client.
+	 */
+	public static final String CWD = "CWD";
+
+	/**
+	 * Milliseconds that a connection has to send the line with the token.
+	 */
+	static final int TOKEN_TIMEOUT = 10000;
+
+	/**
+	 * Maximum number of characters of the line with the token.
+	 */
+	static final int MAX_TOKEN_LINE = 256;
+
+	/**
+	 * Maximum number of connections served at once.
+	 */
+	static final int MAX_CONNECTIONS = 64;
+
+	/**
+	 * Port to listen on (0 for any free port).
+	 */
+	int port;
+
+	/**
+	 * Number of conversions run concurrently.
+	 */
+	int concurrentJobs;
+
+	/**
+	 * Socket of the server.
+	 */
+	ServerSocket serverSocket = null;
+
+	/**
+	 * Threads that run the conversions.
+	 */
+	ExecutorService jobs = null;
+
+	/**
+	 * Number of conversions requested.
+	 */
+	AtomicInteger numJobs = new AtomicInteger();
+
+	/**
+	 * Token that the clients must send (see {@link #getTokenFile(int)}).
+	 */
+	String token = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param port definition in {@link #port}
+	 * @param concurrentJobs number of conversions run concurrently, 0 to run as many as available processors
+	 */
+	public ConversionServer(int port, int concurrentJobs){
+		this.port = port;
+		this.concurrentJobs = concurrentJobs > 0 ? concurrentJobs: Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Runs the server until a client requests to stop it.
+	 *
+	 * @param out stream for the log of the server
+	 * @param err stream for the errors of the server
+	 * @return the exit status of the server: 0 if it has been stopped, 4 if it could not be started
+	 */
+	public int run(final PrintStream out, PrintStream err){
+		try{
+			serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		}catch(IOException e){
+			err.println("SERVER ERROR: port " + port + " can not be used: " + e.getMessage());
+			return 4;
+		}
+		File tokenFile = getTokenFile(serverSocket.getLocalPort());
+		try{
+			token = newToken();
+			writeToken(tokenFile, token);
+		}catch(IOException e){
+			err.println("SERVER ERROR: token file \"" + tokenFile + "\" can not be written: " + e.getMessage());
+			try{
+				serverSocket.close();
+			}catch(IOException f){
+				//Nothing else can be done
+			}
+			return 4;
+		}
+		out.println("Listening on 127.0.0.1:" + serverSocket.getLocalPort() + " (token in \"" + tokenFile + "\")");
+		out.flush();
+
+		jobs = BatchRunner.newJobExecutor(concurrentJobs);
+		//Connections are not queued: when all the threads are busy they are refused
+		ExecutorService connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory(){
+			final AtomicInteger numThreads = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(StageStats.recordingExit(runnable), "ffc-connection-" + numThreads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		while(!serverSocket.isClosed()){
+			final Socket socket;
+			try{
+				socket = serverSocket.accept();
+			}catch(IOException e){
+				if(!serverSocket.isClosed()){
+					err.println("SERVER ERROR: " + e.getMessage());
+				}
+				continue;
+			}
+			try{
+				connections.execute(new Runnable(){
+					public void run(){
+						serve(socket, out);
+					}
+				});
+			}catch(RejectedExecutionException e){
+				synchronized(out){
+					out.println("Connection refused: " + MAX_CONNECTIONS + " connections are being served");
+					out.flush();
+				}
+				try{
+					socket.close();
+				}catch(IOException f){
+					//Nothing else can be done
+				}
+			}
+		}
+		connections.shutdown();
+		jobs.shutdown();
+		try{
+			jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			//Running conversions are daemon threads
+		}
+		tokenFile.delete();
+		synchronized(out){
+			out.println("Server stopped after " + numJobs.get() + " jobs");
+		}
+		return 0;
+	}
+
+	/**
+	 * File where the server listening on a port writes its token. It is in the home directory of the
+	 * user, so clients of other users can not read it.
+	 *
+	 * @param port port of the server
+	 * @return the token file
+	 */
+	public static File getTokenFile(int port){
+		return new File(System.getProperty("user.home"), ".ffc-server-" + port + ".token");
+	}
+
+	/**
+	 * Generates a random token.
+	 *
+	 * @return 128 random bits, in hexadecimal
+	 */
+	static String newToken(){
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for(byte b: bytes){
+			token.append(String.format("%02x", b & 0xff));
+		}
+		return token.toString();
+	}
+
+	/**
+	 * Writes the token to a new file that only the owner can read and write (a file left by a
+	 * previous server is replaced).
+	 *
+	 * @param file token file
+	 * @param token token to write
+	 *
+	 * @throws IOException when the file can not be written
+	 */
+	static void writeToken(File file, String token) throws IOException{
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix")){
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}else{
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		Files.write(path, token.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Checks the line with the token of a connection, taking the same time whatever the token is.
+	 *
+	 * @param text first line of the connection (null if none)
+	 * @return true if it has the token of this server
+	 *
+	 * @throws IOException when the line can not be encoded
+	 */
+	boolean isAuthorized(String text) throws IOException{
+		if(text == null || !text.startsWith(TOKEN + " ")){
+			return false;
+		}
+		return MessageDigest.isEqual(text.substring(TOKEN.length() + 1).trim().getBytes("UTF-8"), token.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Reads a line of at most a given length.
+	 *
+	 * @param in stream to read from
+	 * @param maxLength maximum number of characters of the line
+	 * @return the line (without its end), or null if the stream ends first or the line is longer
+	 *
+	 * @throws IOException when the stream can not be read
+	 */
+	static String readLine(BufferedReader in, int maxLength) throws IOException{
+		StringBuilder line = new StringBuilder();
+		int c;
+		while((c = in.read()) != -1){
+			if(c == '\n'){
+				int length = line.length();
+				return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1): line.toString();
+			}
+			if(line.length() >= maxLength){
+				return null;
+			}
+			line.append((char) c);
+		}
+		return null;
+	}
+
+	/**
+	 * Resolves the relative file names of the arguments of a conversion ("-i" and "-o") against the
+	 * working directory of the client.
+	 *
+	 * @param args arguments of the conversion
+	 * @param directory working directory of the client (null if it has not been sent)
+	 * @param label where the arguments come from, for the error messages
+	 * @return the arguments with absolute file names
+	 *
+	 * @throws ParameterException when some file name is relative and the directory has not been sent
+	 */
+	static String[] resolveFiles(String[] args, File directory, String label) throws ParameterException{
+		String[] resolved = args.clone();
+		for(int numArg = 0; numArg < args.length - 1; numArg++){
+			String arg = args[numArg];
+			if(arg.equals("-i") || arg.equals("--inputImageFile") || arg.equals("-o") || arg.equals("--outputImageFile")){
+				File file = new File(args[numArg + 1]);
+				if(!file.isAbsolute()){
+					if(directory == null){
+						throw new ParameterException("File \"" + args[numArg + 1] + "\" of argument \"" + arg + "\" is relative, but the working directory of the client has not been sent ("
+								+ label + ").");
+					}
+					resolved[numArg + 1] = new File(directory, args[numArg + 1]).getPath();
+				}
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Stream of the messages of a conversion, that sends each line to the client as a MSG line as
+	 * soon as it is complete.
+	 */
+	static class MessageStream extends OutputStream{
+
+		/**
+		 * Connection to the client.
+		 */
+		final PrintWriter client;
+
+		/**
+		 * Bytes of the line not complete yet.
+		 */
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		MessageStream(PrintWriter client){
+			this.client = client;
+		}
+
+		public synchronized void write(int b) throws IOException{
+			if(b == '\n'){
+				send();
+			}else{
+				line.write(b);
+			}
+		}
+
+		public synchronized void write(byte[] bytes, int offset, int length) throws IOException{
+			for(int i = offset; i < offset + length; i++){
+				write(bytes[i]);
+			}
+		}
+
+		/**
+		 * Sends the last line, if it is not empty.
+		 */
+		public synchronized void close() throws IOException{
+			if(line.size() > 0){
+				send();
+			}
+		}
+
+		void send() throws IOException{
+			String text = line.toString("UTF-8");
+			if(text.endsWith("\r")){
+				text = text.substring(0, text.length() - 1);
+			}
+			client.println("MSG " + text);
+			line.reset();
+		}
+	}
+
+	/**
+	 * Serves the requests of one connection.
+	 *
+	 * @param socket socket of the connection
+	 * @param log stream for the log of the server
+	 */
+	void serve(Socket socket, PrintStream log){
+		try{
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			final PrintWriter client = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+			//Connections that are not authorized can not keep a thread or fill the memory
+			socket.setSoTimeout(TOKEN_TIMEOUT);
+			String tokenLine;
+			try{
+				tokenLine = readLine(in, MAX_TOKEN_LINE);
+			}catch(SocketTimeoutException e){
+				tokenLine = null;
+			}
+			if(!isAuthorized(tokenLine)){
+				client.println(DENIED);
+				return;
+			}
+			socket.setSoTimeout(0);
+			File directory = null;
+			String text;
+			while((text = in.readLine()) != null){
+				text = text.trim();
+				if(text.length() == 0){
+					continue;
+				}
+				if(text.startsWith(CWD + " ")){
+					directory = new File(text.substring(CWD.length() + 1).trim());
+					if(!directory.isAbsolute() || !directory.isDirectory()){
+						client.println("MSG ARGUMENTS ERROR: \"" + directory + "\" is not an absolute path of a directory.");
+						client.println("DONE 1 0");
+						break;
+					}
+					continue;
+				}
+				if(text.equals(SHUTDOWN)){
+					client.println("STOPPING");
+					serverSocket.close();
+					break;
+				}
+				final int jobNumber = numJobs.incrementAndGet();
+				final BatchRunner.Job job;
+				try{
+					BatchRunner.Job parsed = BatchRunner.parseJob(text, jobNumber, "request " + jobNumber);
+					job = new BatchRunner.Job(jobNumber, resolveFiles(parsed.args, directory, "request " + jobNumber));
+				}catch(ParameterException e){
+					client.println("MSG ARGUMENTS ERROR: " + e.getMessage());
+					client.println("DONE 1 0");
+					continue;
+				}
+				client.println("QUEUED " + jobNumber);
+				final PrintStream messages = new PrintStream(new MessageStream(client), true, "UTF-8");
+				Future<?> future;
+				try{
+					future = jobs.submit(new Runnable(){
+						public void run(){
+							client.println("RUNNING " + jobNumber);
+							job.run(messages);
+						}
+					});
+				}catch(RejectedExecutionException e){
+					client.println("MSG SERVER ERROR: the server is stopping");
+					client.println("DONE 4 0");
+					break;
+				}
+				try{
+					future.get();
+				}catch(ExecutionException e){
+					//Job.run catches all the errors of the conversion
+				}catch(InterruptedException e){
+					break;
+				}
+				messages.close();
+				client.println("DONE " + job.status + " " + job.time);
+				synchronized(log){
+					log.println("Job " + jobNumber + ": " + (job.status == 0 ? "OK": "FAILED (status " + job.status + ")") + " in " + job.time + " ms");
+					log.flush();
+				}
+			}
+		}catch(IOException e){
+			//The client has closed the connection
+		}finally{
+			try{
+				socket.close();
+			}catch(IOException e){
+				//Nothing else can be done
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package ffc;
+
+import GiciException.*;
+
+
+/**
+ * Permutation of the dimensions of an image ("-cd" parameter), as
+ * GiciTransform.Reshape.dimensionTranspose does: dimension i of the result is dimension
+ * permutation[i] of the image (0 components, 1 rows, 2 columns).<br>
+ * Permutations that keep the columns as the last dimension only move whole rows, which are copied
+ * at once. The other ones are, for each position of the dimension that is not moved with the
+ * columns, a transpose of a matrix whose rows are rows of the image. Transposes are computed with a
+ * recursive (cache oblivious) split of the matrix, several of them concurrently (see {@link Parallel}).
+ * When each transpose reads a whole component, the component is released as soon as it is
+ * transposed. If it also writes a whole component (rows and columns swapped), the result is
+ * allocated component by component, so the image is never held twice.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class DimensionTranspose{
+
+	/**
+	 * Size of the blocks transposed directly by the recursion.
+	 */
+	static final int TILE_SIZE = 32;
+
+	/**
+	 * Image to permute (its components may be released).
+	 */
+	ImageBuffer image;
+
+	/**
+	 * Dimension permutation.
+	 */
+	int[] permutation;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param image image to permute (its components may be released)
+	 * @param permutation dimension permutation (see "-cd")
+	 *
+	 * @throws ParameterException when permutation is not a permutation of 0, 1 and 2
+	 */
+	public DimensionTranspose(ImageBuffer image, int[] permutation) throws ParameterException{
+		checkPermutation(permutation);
+		this.image = image;
+		this.permutation = permutation;
+	}
+
+	/**
+	 * Checks a dimension permutation.
+	 *
+	 * @param permutation dimension permutation (see "-cd")
+	 *
+	 * @throws ParameterException when permutation is not a permutation of 0, 1 and 2
+	 */
+	public static void checkPermutation(int[] permutation) throws ParameterException{
+		if(permutation == null || permutation.length != 3){
+			throw new ParameterException("Invalid dimension permutation.");
+		}
+		boolean[] used = new boolean[3];
+		for(int dimension: permutation){
+			if(dimension < 0 || dimension > 2 || used[dimension]){
+				throw new ParameterException("Invalid dimension permutation.");
+			}
+			used[dimension] = true;
+		}
+	}
+
+	/**
+	 * Computes the permutation.
+	 *
+	 * @return the permuted image (the image itself for the identity permutation)
+	 */
+	public ImageBuffer run(){
+		if(permutation[0] == 0 && permutation[1] == 1){
+			return image;
+		}
+		final int[] sizes = {image.getZSize(), image.getYSize(), image.getXSize()};
+		final int[] newSizes = {sizes[permutation[0]], sizes[permutation[1]], sizes[permutation[2]]};
+		final float[][] newBands = new float[newSizes[0]][];
+		final int newBandSize = ImageBuffer.getBandSize(newSizes[1], newSizes[2]);
+		FlightEvents.allocated("DimensionTranspose", newSizes[0], newSizes[1], newSizes[2]);
+		if(permutation[2] == 2){
+			//Components and rows are swapped: row y of component z is row z of component y
+			final int zSize = sizes[0];
+			final int xSize = sizes[2];
+			Parallel.forEach(newSizes[0], new Parallel.Task(){
+				public void run(int y){
+					float[] band = new float[newBandSize];
+					for(int z = 0; z < zSize; z++){
+						System.arraycopy(image.getBand(z), y * xSize, band, z * xSize, xSize);
+					}
+					newBands[y] = band;
+				}
+			});
+			return new ImageBuffer(newBands, newSizes[1], newSizes[2]);
+		}
+		//Matrices of each position of the outer dimension have a row for each position of the
+		//dimension moved to the last one, and a column for each column of the image
+		final int rowDimension = permutation[2];
+		final int outerDimension = 1 - rowDimension;
+		final int numRows = sizes[rowDimension];
+		final int numColumns = sizes[2];
+		final int numMatrices = sizes[outerDimension];
+		//Each matrix writes a whole new component (allocated when the matrix is transposed)
+		final boolean newComponents = outerDimension == 0 && permutation[0] == 0;
+		if(!newComponents){
+			for(int band = 0; band < newBands.length; band++){
+				newBands[band] = new float[newBandSize];
+			}
+		}
+		//Matrices are split in blocks of columns when there are not enough of them to balance the load
+		int blocks = newComponents ? 1: Math.max(1, Math.min((4 * Parallel.getThreads() + numMatrices - 1) / numMatrices, numColumns / TILE_SIZE));
+		final int numBlocks = blocks;
+		//Each matrix reads a whole component, not needed once the matrix is transposed
+		final boolean releaseComponents = outerDimension == 0 && numBlocks == 1;
+		final int blockColumns = (numColumns + numBlocks - 1) / numBlocks;
+		Parallel.forEach(numMatrices * numBlocks, new Parallel.Task(){
+			public void run(int task){
+				int matrix = task / numBlocks;
+				int c0 = (task % numBlocks) * blockColumns;
+				int c1 = Math.min(numColumns, c0 + blockColumns);
+				if(newComponents){
+					newBands[matrix] = new float[newBandSize];
+				}
+				//Source row of each matrix row, and destination row of each matrix column
+				float[][] srcRows = new float[numRows][];
+				int[] srcOffsets = new int[numRows];
+				int[] position = new int[3];
+				position[outerDimension] = matrix;
+				for(int row = 0; row < numRows; row++){
+					position[rowDimension] = row;
+					srcRows[row] = image.getBand(position[0]);
+					srcOffsets[row] = position[1] * numColumns;
+				}
+				float[][] dstRows = new float[numColumns][];
+				int[] dstOffsets = new int[numColumns];
+				position[rowDimension] = 0;
+				for(int column = c0; column < c1; column++){
+					position[2] = column;
+					dstRows[column] = newBands[position[permutation[0]]];
+					dstOffsets[column] = position[permutation[1]] * numRows;
+				}
+				transpose(srcRows, srcOffsets, dstRows, dstOffsets, 0, numRows, c0, c1);
+				if(releaseComponents){
+					image.setBand(matrix, null);
+				}
+			}
+		});
+		return new ImageBuffer(newBands, newSizes[1], newSizes[2]);
+	}
+
+	/**
+	 * Transposes a block of a matrix: dst[c][dstOffsets[c] + r] = src[r][srcOffsets[r] + c]. The
+	 * block is split by its longest side until it is small enough to be transposed directly, so the
+	 * rows being read and written stay in cache whatever its size.
+	 *
+	 * @param src rows of the matrix
+	 * @param srcOffsets position of the first sample of each row of the matrix
+	 * @param dst rows of the transposed matrix
+	 * @param dstOffsets position of the first sample of each row of the transposed matrix
+	 * @param r0 first row of the block
+	 * @param r1 last row of the block (not included)
+	 * @param c0 first column of the block
+	 * @param c1 last column of the block (not included)
+	 */
+	static void transpose(float[][] src, int[] srcOffsets, float[][] dst, int[] dstOffsets, int r0, int r1, int c0, int c1){
+		while(r1 - r0 > TILE_SIZE || c1 - c0 > TILE_SIZE){
+			if(r1 - r0 >= c1 - c0){
+				int middle = (r0 + r1) >>> 1;
+				transpose(src, srcOffsets, dst, dstOffsets, r0, middle, c0, c1);
+				r0 = middle;
+			}else{
+				int middle = (c0 + c1) >>> 1;
+				transpose(src, srcOffsets, dst, dstOffsets, r0, r1, c0, middle);
+				c0 = middle;
+			}
+		}
+		for(int c = c0; c < c1; c++){
+			float[] dstRow = dst[c];
+			int dstOffset = dstOffsets[c];
+			for(int r = r0; r < r1; r++){
+				dstRow[dstOffset + r] = src[r][srcOffsets[r] + c];
+			}
+		}
+	}
+}
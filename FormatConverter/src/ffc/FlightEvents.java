@@ -0,0 +1,213 @@
+package ffc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Java Flight Recorder events of the conversions: one event for each stage (see {@link StageStats}),
+ * for each chunk of a file read or written, and for each image buffer allocated. They are recorded
+ * only when a recording is running (for instance, with "-XX:StartFlightRecording"), next to the
+ * garbage collection and safepoint events of the virtual machine, so that production runs can be
+ * profiled continuously. When no recording is running the cost is a check of a flag.<br>
+ * The GICI libraries read and write the non raw formats in a single call, so each of these files is
+ * recorded as one chunk.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class FlightEvents{
+
+	/**
+	 * Event of a stage of the conversion.
+	 */
+	@Name("ffc.Stage")
+	@Label("Stage")
+	@Category("FormatConverter")
+	@Description("Stage of a conversion")
+	@StackTrace(false)
+	public static class StageEvent extends Event{
+
+		@Label("Name")
+		String name;
+
+		@Label("Parameters")
+		@Description("Program arguments of the stage")
+		String parameters;
+
+		@Label("Components")
+		int zSize;
+
+		@Label("Rows")
+		int ySize;
+
+		@Label("Columns")
+		int xSize;
+
+		@Label("Samples")
+		long samples;
+	}
+
+	/**
+	 * Event of a chunk of a file read or written.
+	 */
+	@Name("ffc.IO")
+	@Label("File Chunk")
+	@Category("FormatConverter")
+	@Description("Chunk of an image file read or written")
+	@StackTrace(false)
+	public static class IOEvent extends Event{
+
+		@Label("File")
+		String file;
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Offset")
+		@Description("Position of the chunk in the file, in bytes")
+		long offset;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	/**
+	 * Event of an image buffer allocated.
+	 */
+	@Name("ffc.Allocation")
+	@Label("Buffer Allocation")
+	@Category("FormatConverter")
+	@Description("Samples allocated for an image")
+	public static class AllocationEvent extends Event{
+
+		@Label("Source")
+		String source;
+
+		@Label("Components")
+		int zSize;
+
+		@Label("Rows")
+		int ySize;
+
+		@Label("Columns")
+		int xSize;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	/**
+	 * Operations of the chunk events.
+	 */
+	public static final String READ = "read";
+	public static final String WRITE = "write";
+
+	/**
+	 * Begins the event of a stage.
+	 *
+	 * @param name name of the stage
+	 * @param parameters program arguments of the stage (null if none)
+	 * @param sizes sizes of the image processed by the stage (null if unknown)
+	 * @param samples samples processed by the stage
+	 * @return the event, to be given to {@link #end(StageEvent)}
+	 */
+	public static StageEvent beginStage(String name, String parameters, int[] sizes, long samples){
+		StageEvent event = new StageEvent();
+		if(event.isEnabled()){
+			event.name = name;
+			event.parameters = parameters;
+			if(sizes != null && sizes.length >= 3){
+				event.zSize = sizes[0];
+				event.ySize = sizes[1];
+				event.xSize = sizes[2];
+			}
+			event.samples = samples;
+			event.begin();
+		}
+		return event;
+	}
+
+	/**
+	 * Ends and records the event of a stage.
+	 *
+	 * @param event event returned by {@link #beginStage(String, String, int[], long)}
+	 */
+	public static void end(StageEvent event){
+		event.end();
+		if(event.shouldCommit()){
+			event.commit();
+		}
+	}
+
+	/**
+	 * Begins the event of a chunk of a file.
+	 *
+	 * @return the event, to be given to {@link #end(IOEvent, String, String, long, long)}
+	 */
+	public static IOEvent beginIO(){
+		IOEvent event = new IOEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends and records the event of a chunk of a file.
+	 *
+	 * @param event event returned by {@link #beginIO()}
+	 * @param file file name
+	 * @param operation {@link #READ} or {@link #WRITE}
+	 * @param offset position of the chunk in the file, in bytes (-1 if unknown)
+	 * @param bytes bytes of the chunk
+	 */
+	public static void end(IOEvent event, String file, String operation, long offset, long bytes){
+		event.end();
+		if(event.shouldCommit()){
+			event.file = file;
+			event.operation = operation;
+			event.offset = offset;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records the allocation of float samples of an image.
+	 *
+	 * @param source what allocates the samples
+	 * @param zSize number of components allocated
+	 * @param ySize image height
+	 * @param xSize image width
+	 */
+	public static void allocated(String source, int zSize, int ySize, int xSize){
+		allocated(source, zSize, ySize, xSize, 4);
+	}
+
+	/**
+	 * Records the allocation of samples of an image.
+	 *
+	 * @param source what allocates the samples
+	 * @param zSize number of components allocated
+	 * @param ySize image height
+	 * @param xSize image width
+	 * @param sampleBytes bytes of each sample
+	 */
+	public static void allocated(String source, int zSize, int ySize, int xSize, int sampleBytes){
+		AllocationEvent event = new AllocationEvent();
+		if(event.shouldCommit()){
+			event.source = source;
+			event.zSize = zSize;
+			event.ySize = ySize;
+			event.xSize = xSize;
+			event.bytes = (long) zSize * ySize * xSize * sampleBytes;
+			event.commit();
+		}
+	}
+}
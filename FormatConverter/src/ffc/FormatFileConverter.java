@@ -1,12 +1,10 @@
 package ffc;
 
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import GiciException.*;
 import GiciFile.*;
-import GiciTransform.DPCMSpectralDecorrelator;
-import GiciTransform.ForwardWaveletTransform;
-import GiciTransform.InverseWaveletTransform;
-import GiciTransform.Reshape;
-import GiciQuantization.*;
 
 
 /**
@@ -27,26 +25,220 @@ public class FormatFileConverter{
 	 * @param args an array of strings that contains program parameters
 	 */
 	public static void main(String[] args)throws ErrorException{
+		int status = convert(args, System.out, System.err);
+		if(status != 0){
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * Runs one conversion. Errors are reported to the given streams instead of ending the program, so
+	 * several conversions can be run in the same virtual machine (see {@link BatchRunner}).
+	 *
+	 * @param args an array of strings that contains program parameters
+	 * @param out stream for the messages of the conversion
+	 * @param err stream for the errors of the conversion
+	 * @return the exit status of the conversion: 0 if no error, 1 for argument errors, 2 for image loading or parameter errors and 4 for the other errors
+	 */
+	public static int convert(String[] args, PrintStream out, PrintStream err){
 		
 		// PARSE ARGUMENTS
 		ArgsParser parser = null;
 		try{
 			parser = new ArgsParser(args);
 		}catch(Exception e){
-			System.err.println("ARGUMENTS ERROR: " +  e.getMessage());
-			e.printStackTrace();
-			System.out.println("Please report this error (specifying image type and parameters) to: gici-dev@abra.uab.es");
-			System.exit(1);
+			err.println("ARGUMENTS ERROR: " +  e.getMessage());
+			e.printStackTrace(err);
+			out.println("Please report this error (specifying image type and parameters) to: gici-dev@abra.uab.es");
+			return 1;
 		}	
 		
+		// BATCH OF CONVERSIONS
+		if(parser.getBatchFile() != null){
+			return new BatchRunner(parser.getBatchFile(), parser.getBatchJobs()).run(out, err);
+		}
+		
+		// CONVERSION SERVER
+		if(parser.getServerPort() >= 0){
+			return new ConversionServer(parser.getServerPort(), parser.getBatchJobs()).run(out, err);
+		}
+		
+		StageStats stats = new StageStats(parser.getStats() != null);
+		int status = convert(parser, out, err, stats);
+		stats.print(out, status, "json".equals(parser.getStats()));
+		return status;
+	}
+
+	/**
+	 * Runs the conversion requested in the parsed program arguments.
+	 *
+	 * @param parser program arguments
+	 * @param out stream for the messages of the conversion
+	 * @param err stream for the errors of the conversion
+	 * @param stats statistics of the stages of the conversion
+	 * @return the exit status of the conversion (see {@link #convert(String[], PrintStream, PrintStream)})
+	 */
+	static int convert(ArgsParser parser, PrintStream out, PrintStream err, StageStats stats){
+		Parallel.setThreads(parser.getThreads());
+		
 		String inputFile = parser.getInputImageFile();
 		String outputFile = parser.getOutputImageFile();
 		int[] inputImageGeometry = parser.getInputImageGeometry();
 		int[] outputImageGeometry = parser.getOutputImageGeometry();
 		
+		// MEMORY PLAN
+		// Memory is estimated before loading the image, so conversions that do not fit are not started
+		int stripStreaming = parser.getStripStreaming();
+		int memoryBudget = parser.getMemoryBudget();
+		if(parser.getDryRun() || parser.getHeapBudget() > 0){
+			MemoryPlanner memoryPlanner = null;
+			try{
+				memoryPlanner = new MemoryPlanner(parser, parser.getHeapBudget() > 0 ? (long) parser.getHeapBudget() << 20: Runtime.getRuntime().maxMemory());
+			}catch(Exception e){
+				err.println("Parameters error: " + e.getMessage());
+				return 2;
+			}
+			if(parser.getDryRun()){
+				memoryPlanner.print(out);
+				return 0;
+			}
+			switch(memoryPlanner.getExecution()){
+			case MemoryPlanner.STRIPS:
+				stripStreaming = memoryPlanner.getStripHeight();
+				break;
+			case MemoryPlanner.OUT_OF_CORE:
+				memoryBudget = memoryPlanner.getMemoryBudget();
+				break;
+			case MemoryPlanner.NONE:
+				err.println("Memory error: " + memoryPlanner.getFailureReason() + ".");
+				return 2;
+			}
+		}
+		
+		// RAW TO RAW CONVERSION
+		if(RawConverter.isApplicable(parser)){
+			stats.begin("raw to raw conversion", getSamples(inputImageGeometry), parser.getGivenArguments(new String[]{"-ig", "-og"}), inputImageGeometry);
+			try{
+				MappedRawImage.checkFile(inputFile, getSamples(inputImageGeometry) * getSampleBytes(inputImageGeometry));
+			}catch(Exception e){
+				err.println("IMAGE LOADING ERROR: " + e.getMessage());
+				return 2;
+			}
+			try{
+				RawConverter.convert(inputFile, inputImageGeometry, outputFile, outputImageGeometry, err);
+			}catch(Exception e){
+				e.printStackTrace(err);
+				err.println("Gici ERROR: " + e.getMessage());
+				return 4;
+			}
+			stats.end(getSamples(inputImageGeometry) * getSampleBytes(inputImageGeometry), StageStats.getFileSize(outputFile));
+			return 0;
+		}
+		
+		// STRIP STREAMING
+		if(stripStreaming > 0){
+			stats.begin("strip streaming", getSamples(outputImageGeometry), (parser.getGivenArguments(new String[]{"-ss"}) + " "
+					+ PipelinePlanner.getArguments(parser, Arrays.asList(PipelinePlanner.DEFAULT_ORDER))).trim(), inputImageGeometry);
+			long bytesRead = 0;
+			try{
+				bytesRead = StripStreamer.run(parser, stripStreaming, err);
+			}catch(ParameterException e){
+				err.println("Parameters error: " + e.getMessage());
+				return 2;
+			}catch(Exception e){
+				e.printStackTrace(err);
+				err.println("Gici ERROR: " + e.getMessage());
+				return 4;
+			}
+			stats.end(bytesRead, StageStats.getFileSize(outputFile));
+			return 0;
+		}
 		
+		// OUT OF CORE DIMENSION PERMUTATION
+		if(memoryBudget > 0){
+			stats.begin("out of core dimension permutation", getSamples(inputImageGeometry), parser.getGivenArguments(new String[]{"-mb", "-cd"}), inputImageGeometry);
+			try{
+				OutOfCoreTranspose.run(parser, memoryBudget, err);
+			}catch(ParameterException e){
+				err.println("Parameters error: " + e.getMessage());
+				return 2;
+			}catch(Exception e){
+				e.printStackTrace(err);
+				err.println("Gici ERROR: " + e.getMessage());
+				return 4;
+			}
+			// The whole image is read once
+			stats.end(getSamples(inputImageGeometry) * getSampleBytes(inputImageGeometry), StageStats.getFileSize(outputFile));
+			return 0;
+		}
+		
+		// INTEGER SAMPLES
+		if(IntegerPipeline.isApplicable(parser)){
+			List<PipelinePlanner.Step> steps = null;
+			try{
+				PipelinePlanner planner = new PipelinePlanner(parser, inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2]);
+				if(parser.getPrintPlan()){
+					planner.print(out);
+				}
+				steps = planner.getSteps();
+			}catch(Exception e){
+				err.println("Parameters error: " + e.getMessage());
+				return 2;
+			}
+			stats.begin("load", getSamples(inputImageGeometry), parser.getGivenArguments(new String[]{"-i", "-ig", "-mm"}), inputImageGeometry);
+			IntegerImage image = null;
+			long bytesRead = getSamples(inputImageGeometry) * getSampleBytes(inputImageGeometry);
+			int firstStep = 0;
+			try{
+				int storage = IntegerPipeline.getStorage(parser, steps);
+				if(parser.getMemoryMappedInput()){
+					MappedRawImage mappedImage = new MappedRawImage(inputFile, inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2],
+							inputImageGeometry[3], inputImageGeometry[4]);
+					// Only the samples of the crop window (if any) are decoded
+					if(!steps.isEmpty() && steps.get(0).getExecution() == PipelinePlanner.AT_LOAD){
+						PipelinePlanner.Step crop = steps.get(0);
+						image = IntegerImage.load(mappedImage, getCropComponents(crop, parser, mappedImage.getZSize()), crop.y0, crop.x0, crop.yLength,
+								crop.xLength, storage);
+						firstStep = 1;
+					}else{
+						image = IntegerImage.load(mappedImage, storage);
+					}
+					bytesRead = mappedImage.getBytesRead();
+				}else{
+					image = IntegerImage.load(inputFile, inputImageGeometry, storage);
+				}
+			}catch(Exception e){
+				err.println("IMAGE LOADING ERROR: " + e.getMessage());
+				return 2;
+			}
+			stats.end(bytesRead, 0);
+			int[] loadedSizes = {image.getZSize(), image.getYSize(), image.getXSize()};
+			stats.begin("integer stages", (long) loadedSizes[0] * loadedSizes[1] * loadedSizes[2], PipelinePlanner.getArguments(parser, Arrays.asList(PipelinePlanner.DEFAULT_ORDER)),
+					loadedSizes);
+			try{
+				image = IntegerPipeline.run(image, steps.subList(firstStep, steps.size()), parser);
+			}catch(Exception e){
+				e.printStackTrace(err);
+				err.println("Gici ERROR: " + e.getMessage());
+				return 4;
+			}
+			int[] sizes = {image.getZSize(), image.getYSize(), image.getXSize()};
+			stats.begin("save", (long) sizes[0] * sizes[1] * sizes[2], parser.getGivenArguments(new String[]{"-o", "-og"}), sizes);
+			try{
+				image.save(outputFile, outputImageGeometry[3], outputImageGeometry[4], err);
+			}catch(Exception e){
+				e.printStackTrace(err);
+				err.println("Gici SaveFile ERROR: " + e.getMessage());
+				return 4;
+			}
+			stats.end(0, StageStats.getFileSize(outputFile));
+			return 0;
+		}
+
 		// IMAGE LOAD
+		stats.begin("load", LoadFile.isRaw(inputFile) ? getSamples(inputImageGeometry): 0, parser.getGivenArguments(new String[]{"-i", "-ig", "-mm"}), inputImageGeometry);
 		LoadFile inputImage = null;
+		MappedRawImage mappedImage = null;
 		try{
 			if(LoadFile.isRaw(inputFile)){				
 				//Check parameters of image geometry
@@ -62,414 +254,563 @@ public class FormatFileConverter{
 				if((inputImageGeometry[5] != 0) && (inputImageGeometry[5] != 1)){
 					throw new Exception("Image RGB specification in \".raw\" or \".img\" data must be between 0 or 1 (\"-h\" displays help).");
 				}
-				inputImage = new LoadFile(inputFile, inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2], inputImageGeometry[3], 
-						inputImageGeometry[4], inputImageGeometry[5] == 0 ? false: true);
+				if(parser.getMemoryMappedInput()){
+					mappedImage = new MappedRawImage(inputFile, inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2], inputImageGeometry[3], 
+							inputImageGeometry[4]);
+				}else{
+					FlightEvents.IOEvent ioEvent = FlightEvents.beginIO();
+					inputImage = new LoadFile(inputFile, inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2], inputImageGeometry[3], 
+							inputImageGeometry[4], inputImageGeometry[5] == 0 ? false: true);
+					FlightEvents.end(ioEvent, inputFile, FlightEvents.READ, 0, StageStats.getFileSize(inputFile));
+				}
 			}else{
+				FlightEvents.IOEvent ioEvent = FlightEvents.beginIO();
 				inputImage = new LoadFile(inputFile);	
+				FlightEvents.end(ioEvent, inputFile, FlightEvents.READ, 0, StageStats.getFileSize(inputFile));
 			}
 		}catch(Exception e){
-			System.err.println("IMAGE LOADING ERROR: " + e.getMessage());
-			System.exit(2);
+			err.println("IMAGE LOADING ERROR: " + e.getMessage());
+			return 2;
 		}
 		
-		float[][][] image = inputImage.getImage();
+		ImageBuffer image = null;
+		if(mappedImage == null){
+			image = ImageBuffer.fromArray(inputImage.getImage(), true);
+			// Loose this reference because of the inside reference to image
+			inputImage = null;
+		}
 
-		// Loose this reference because of the inside reference to image
-		inputImage = null;
-		
-		// COEFFICENTS APPROXIMATION
+		// PLAN OF THE STAGES
+		List<PipelinePlanner.Step> steps = null;
 		try{
-			int zSize = image.length;
-			int[] coefficientsApproximation = null;
-			float[] minValue = parser.getMinValue();
-			float[] maxValue = parser.getMaxValue();
-			float[] lowerThresholdValue = parser.getLowerThresholdValue();
-			float[] upperThresholdValue = parser.getUpperThresholdValue();
-			float[] subtractValue = parser.getSubtractValue();
-			float[] subtractValueForNonZeroPixels = parser.getSubtractValueForNonZeroPixels();
-			float[] subtractValueIfMatch = parser.getSubtractValueIfMatch();
+			if(parser.getNonNullCoefficientsMap() != 0 && !parser.getRemoveNullCoefficientsRequested()){
+				throw new ParameterException("Map of non-null coefficients can only be written with \"-nnc\".");
+			}
+			PipelinePlanner planner = mappedImage != null
+					? new PipelinePlanner(parser, mappedImage.getZSize(), mappedImage.getYSize(), mappedImage.getXSize())
+					: new PipelinePlanner(parser, image.getZSize(), image.getYSize(), image.getXSize());
+			if(parser.getPrintPlan()){
+				planner.print(out);
+			}
+			steps = planner.getSteps();
+		}catch(Exception e){
+			err.println("Parameters error: " + e.getMessage());
+			return 2;
+		}
+
+		// Image in half precision between the stages ("-hp"), when image is null
+		HalfImage half = null;
+		int firstStep = 0;
+		if(mappedImage != null){
+			// Only the samples of the crop window (if any) are decoded
+			if(!steps.isEmpty() && steps.get(0).getExecution() == PipelinePlanner.AT_LOAD){
+				PipelinePlanner.Step crop = steps.get(0);
+				image = mappedImage.getImage(getCropComponents(crop, parser, mappedImage.getZSize()), crop.y0, crop.x0, crop.yLength, crop.xLength);
+				firstStep = 1;
+			}else if(parser.getHalfPrecision()){
+				half = HalfImage.load(mappedImage);
+			}else{
+				image = mappedImage.getImage();
+			}
+			stats.end(mappedImage.getBytesRead(), 0);
+			mappedImage = null;
+		}else{
+			stats.end(LoadFile.isRaw(inputFile) ? getSamples(inputImageGeometry) * getSampleBytes(inputImageGeometry): StageStats.getFileSize(inputFile), 0);
+		}
+
+		if(parser.getHalfPrecision() && image != null){
+			half = HalfImage.fromBuffer(image);
+			image = null;
+		}
+
+		// Crop, rotation and dimension permutation are applied to a view of the image, so samples are
+		// copied only once, when a later stage or the save reads them
+		ImageView view = null;
 
-			if((minValue != null) || (maxValue != null) || (lowerThresholdValue != null) || (upperThresholdValue != null) || (subtractValue != null) || (subtractValueForNonZeroPixels != null) || (subtractValueIfMatch != null)){
-				coefficientsApproximation = setParameterInt(parser.getCoefficientsApproximation(),zSize,0);
-				if (minValue!=null){
-					minValue = setParameterFloat(minValue,zSize,minValue[0]);
+		for(int numStep = firstStep; numStep < steps.size(); numStep++){
+			PipelinePlanner.Step step = steps.get(numStep);
+			String stage = step.getStages().get(0);
+			int[] sizes = view != null ? new int[]{view.getZSize(), view.getYSize(), view.getXSize()}
+					: half != null ? new int[]{half.getZSize(), half.getYSize(), half.getXSize()}: new int[]{image.getZSize(), image.getYSize(), image.getXSize()};
+			stats.begin(step.getName(), (long) sizes[0] * sizes[1] * sizes[2], PipelinePlanner.getArguments(parser, step.getStages()), sizes);
+			if(step.copiesView()){
+				image = view.toBuffer();
+				view = null;
+			}
+
+			// HALF PRECISION
+			// Stages that compute each component independently widen a few components at once, the
+			// other ones widen the whole image, which is rounded again after the stage
+			if(half != null){
+				HalfImage.ComponentsOperation operation = null;
+				try{
+					operation = getComponentsOperation(step, parser, half.getZSize());
+				}catch(Exception e){
+					err.println("Parameters error: " + e.getMessage());
+					return 2;
 				}
-				if (maxValue!=null){
-					maxValue = setParameterFloat(maxValue,zSize,maxValue[0]);
+				if(operation != null){
+					try{
+						half.apply(operation);
+					}catch(Exception e){
+						e.printStackTrace(err);
+						err.println("Gici ERROR: " + e.getMessage());
+						return 4;
+					}
+					stats.end(0, 0);
+					continue;
 				}
-				if (lowerThresholdValue!=null){
-					lowerThresholdValue = setParameterFloat(lowerThresholdValue,zSize,lowerThresholdValue[0]);
+				image = half.toBuffer();
+				half = null;
+			}
+
+			// COEFFICENTS APPROXIMATION, RANGE MODIFICATION AND QUANTIZATION
+			// Adjacent pointwise stages are applied in a single sweep
+			if(PipelinePlanner.isPointwise(step)){
+				PointwisePipeline pipeline = null;
+				try{
+					pipeline = compilePointwise(step, parser, image.getZSize());
+				}catch(Exception e){
+					err.println("Parameters error: " + e.getMessage());
+					return 2;
 				}
-				if (upperThresholdValue!=null){
-					upperThresholdValue = setParameterFloat(upperThresholdValue,zSize,upperThresholdValue[0]);
+				try{
+					if(pipeline.hasRangeModification() && numStep == steps.size() - 1 && SaveFile.getFormat(outputFile) == 5
+							&& outputImageGeometry != null && outputImageGeometry.length == 6 && outputImageGeometry[3] == 1){
+						// Range modification output is written directly as 8 bit samples
+						RawImageWriter writer = new RawImageWriter(outputFile, outputImageGeometry[3], outputImageGeometry[4], err);
+						try{
+							pipeline.write8Bit(image, writer);
+						}finally{
+							writer.close();
+						}
+						stats.end(0, StageStats.getFileSize(outputFile));
+						return 0;
+					}
+					pipeline.apply(image);
+					pipeline = null;
+				}catch (Exception e){
+					e.printStackTrace(err);
+					err.println("Gici ERROR: " + e.getMessage());
+					return 4;
 				}
-				if (subtractValue!=null){
-					subtractValue = setParameterFloat(subtractValue,zSize,subtractValue[0]);
+				if(parser.getHalfPrecision()){
+					half = HalfImage.fromBuffer(image);
+					image = null;
 				}
-				if (subtractValueForNonZeroPixels!=null){
-					subtractValueForNonZeroPixels = setParameterFloat(subtractValueForNonZeroPixels,zSize,subtractValueForNonZeroPixels[0]);
+				stats.end(0, 0);
+				continue;
+			}
+
+			try{
+				// SPECTRAL DWT TRANSFORM
+				if(stage.equals(PipelinePlanner.SWT)){
+					int spectralWaveletLevel = parser.getSpectralWaveletLevel();
+					int spectralWaveletType = parser.getSpectralWaveletType();
+					if (spectralWaveletType>0){
+						TransformImage fwt = new TransformImage(image);
+						image = fwt.forwardSpectralDWT(spectralWaveletLevel,spectralWaveletType);
+						fwt = null;
+					} else if (spectralWaveletType<0){
+						TransformImage iwt = new TransformImage(image);
+						spectralWaveletType = -spectralWaveletType;
+						image = iwt.inverseSpectralDWT(spectralWaveletLevel,spectralWaveletType);
+						iwt = null;
+					}
 				}
-				if (subtractValueIfMatch!=null){
-					subtractValueIfMatch = setParameterFloat(subtractValue,zSize,subtractValueIfMatch[0]);
+
+				// SPATIAL DWT TRANSFORM
+				if(stage.equals(PipelinePlanner.WT)){
+					spatialWaveletTransform(image, parser);
 				}
-				
-				TransformImage ca = new TransformImage(image);
-				image = ca.coefficientsApproximation(coefficientsApproximation,minValue,maxValue,lowerThresholdValue,upperThresholdValue,subtractValue,subtractValueForNonZeroPixels,subtractValueIfMatch);
-				ca = null;
-			}
-		} catch(Exception e){
-			System.err.println("Parameters error: " + e.getMessage());
-			System.exit(2);
-		}
-		
 
-		// SPECTRAL DWT TRANSFORM
-		try{
-			
-			int spectralWaveletLevel = parser.getSpectralWaveletLevel();
-			int spectralWaveletType = parser.getSpectralWaveletType();
-			if (spectralWaveletType>0){
-				TransformImage fwt = new TransformImage(image);
-				image = fwt.forwardSpectralDWT(spectralWaveletLevel,spectralWaveletType);
-				fwt = null;
-			} else if (spectralWaveletType<0){
-				TransformImage iwt = new TransformImage(image);
-				spectralWaveletType = -spectralWaveletType;
-				image = iwt.inverseSpectralDWT(spectralWaveletLevel,spectralWaveletType);
-				iwt = null;
+				// SPECTRAL DPCM
+				if(stage.equals(PipelinePlanner.DF)){
+					int dpcmIndex = parser.getDPCMIndex();
+					int dpcm = parser.getDPCM();
+					if (dpcm==1){
+						image = new SpectralDecorrelator(image).forwardDPCM(dpcmIndex);
+					} else if (dpcm == -1){
+						image = new SpectralDecorrelator(image).inverseDPCM(dpcmIndex);
+					} else if (dpcm == 2){
+						image = new SpectralDecorrelator(image).forwardDifferentialReference(dpcmIndex);
+					} else if (dpcm == -2){
+						image = new SpectralDecorrelator(image).inverseDifferentialReference(dpcmIndex);
+					}
+				}
+
+				// SPATIAL DPCM
+				if(stage.equals(PipelinePlanner.SPATIAL_DPCM)){
+					new SpatialDPCM(parser.getSpatialDPCM()).run(image);
+				}
+
+				// CROP IMAGE
+				if(stage.equals(PipelinePlanner.CROP)){
+					view = view == null ? new ImageView(image): view;
+					view = view.crop(getCropComponents(step, parser, view.getZSize()), step.y0, step.x0, step.yLength, step.xLength);
+				}
+
+				// ROTATE IMAGE
+				if(stage.equals(PipelinePlanner.ROTATE)){
+					view = (view == null ? new ImageView(image): view).rotate();
+				}
+
+				// PERMUTE IMAGE
+				if(stage.equals(PipelinePlanner.PD)){
+					int permuteDimension = parser.getPermuteDimension();
+					int[] permutationSequence = parser.getPermutationSequence();
+					if(permuteDimension == -1 || permutationSequence == null){
+						throw new ParameterException("Parameters \"-pd\" and \"-ps\" must be given together.");
+					}
+					view = (view == null ? new ImageView(image): view).permute(permuteDimension, permutationSequence);
+				}
+
+				// REMOVE NON NULL COEFFICIENTS OF THE IMAGE
+				if(stage.equals(PipelinePlanner.NNC)){
+					image = removeNullCoefficients(image, parser, outputFile, err);
+					// The map of the non-null coefficients is written by this stage
+					stats.end(0, StageStats.getFileSize(outputFile + ".pos") + StageStats.getFileSize(outputFile + ".map"));
+				}
+
+				// CHANGE IMAGES DIMENSIONS
+				if(stage.equals(PipelinePlanner.CD)){
+					image = new DimensionTranspose(image, parser.getChangeDim()).run();
+				}
+
+				// PERMUTE COMPONENTS
+				if(stage.equals(PipelinePlanner.PC)){
+					int[] permuteType = parser.getPermuteType();
+					TransformImage permute = new TransformImage(image);
+					image = permute.permuteComponents(permuteType[0],permuteType[1]);
+					permute = null;
+				}
+			}catch(Exception e){
+				e.printStackTrace(err);
+				err.println("Gici ERROR: " + e.getMessage());
+				return 4;
 			}
-		} catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
-		}
-		
-		
-		// SPATIAL DWT TRANSFORM
-		try{
-			
-			int wl = parser.getSpatialWaveletLevel();
-			int wt = parser.getSpatialWaveletType();
-			// wo:
-			//      0: horizontal/vertical
-			//      1: as in JPEG2000 (vertical/horizontal)
-			//      2: only horizontal
-			int wo = parser.getSpatialOrder();
-			if (wt>0){
-				//Forward Wavelet Transform
-				int zSize = image.length;
-				int WTType[] = setParameterInt(null,zSize,wt);
-				int WTLevels[] = setParameterInt(null,zSize,wl);
-				int WTOrder[] = setParameterInt(null,zSize,wo);
-				ForwardWaveletTransform fwt = new ForwardWaveletTransform(image);
-				fwt.setParameters(WTType,WTLevels,WTOrder);
-				image = fwt.run();
-				fwt = null;
-			} else if (wt < 0){
-				int zSize = image.length;
-				int WTType[] = setParameterInt(null,zSize,-wt);
-				int WTLevels[] = setParameterInt(null,zSize,wl);
-				int WTOrder[] = setParameterInt(null,zSize,wo);
-				//Inverse Wavelet transform
-				InverseWaveletTransform iwt = new InverseWaveletTransform(image);
-				iwt.setParameters(WTType,WTLevels,WTOrder);
-				image = iwt.run();
-				iwt = null;
+			// Views keep referencing the image, which is rounded once they are copied
+			if(parser.getHalfPrecision() && view == null){
+				half = HalfImage.fromBuffer(image);
+				image = null;
 			}
-		} catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
+			stats.end(0, 0);
 		}
 		
-		
-		// SPECTRAL DPCM
+		// SAVE FILE
+		int[] sizes = view != null ? new int[]{view.getZSize(), view.getYSize(), view.getXSize()}
+				: half != null ? new int[]{half.getZSize(), half.getYSize(), half.getXSize()}: new int[]{image.getZSize(), image.getYSize(), image.getXSize()};
+		stats.begin("save", (long) sizes[0] * sizes[1] * sizes[2], parser.getGivenArguments(new String[]{"-o", "-og"}), sizes);
 		try{
-			int dpcmIndex = parser.getDPCMIndex();
-			int dpcm = parser.getDPCM();
-			if (dpcm==1){
-				DPCMSpectralDecorrelator fdpcm = new DPCMSpectralDecorrelator(image);
-				image = fdpcm.forwardDPCM(dpcmIndex);
-				fdpcm = null;
-			} else if (dpcm == -1){
-				DPCMSpectralDecorrelator idpcm = new DPCMSpectralDecorrelator(image);
-				image = idpcm.inverseDPCM(dpcmIndex);
-				idpcm = null;
-			} else if (dpcm == 2){
-				DPCMSpectralDecorrelator fdpcm = new DPCMSpectralDecorrelator(image);
-				image = fdpcm.forwardDifferentialReference(dpcmIndex);
-				fdpcm = null;
-			} else if (dpcm == -2){
-				DPCMSpectralDecorrelator idpcm = new DPCMSpectralDecorrelator(image);
-				image = idpcm.inverseDifferentialReference(dpcmIndex);
-				idpcm = null;
+			int format = SaveFile.getFormat(outputFile);
+			if(half != null){
+				if(format == 5 && outputImageGeometry != null && outputImageGeometry.length == 6){
+					// Raw data is written directly from half precision, widening one block at a time
+					RawImageWriter writer = new RawImageWriter(outputFile, outputImageGeometry[3], outputImageGeometry[4], err);
+					try{
+						half.write(writer);
+					}finally{
+						writer.close();
+					}
+					stats.end(0, StageStats.getFileSize(outputFile));
+					return 0;
+				}
+				image = half.toBuffer();
+				half = null;
+			}
+			switch(format){
+			case 0:
+				saveJagged(view != null ? view.toArray(): image.toArray(true), outputFile, format, outputImageGeometry);
+				break;
+			case 5:
+				if((outputImageGeometry != null) && (outputImageGeometry.length == 6)){
+					// Raw data is written directly from the image buffer (or view)
+					RawImageWriter writer = new RawImageWriter(outputFile, outputImageGeometry[3], outputImageGeometry[4], err);
+					try{
+						if(view != null){
+							writer.writeView(view);
+						}else{
+							writer.writeImage(image);
+						}
+					}finally{
+						writer.close();
+					}
+				}else{
+					saveJagged(view != null ? view.toArray(): image.toArray(true), outputFile, format, outputImageGeometry);
+				}
+				break;
 			}
+			
 		} catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
+			e.printStackTrace(err);
+			err.println("Gici SaveFile ERROR: " + e.getMessage());
+			return 4;
 		}
-		
-
-		// SPATIAL DPCM
-		try{
-			int spatialDPCM = parser.getSpatialDPCM();
+		stats.end(0, StageStats.getFileSize(outputFile));
+		return 0;
+	}
 
-			TransformImage spatialDPCMimage = new TransformImage(image);
+	/**
+	 * Spatial wavelet transform of the "-wt", "-wl" and "-wo" parameters, in place. The same transform
+	 * is applied to each component, so it can be applied to some components only.
+	 *
+	 * @param image image samples
+	 * @param parser program arguments
+	 *
+	 * @throws ParameterException when some parameter is not valid
+	 * @throws ErrorException when the transform can not be computed
+	 */
+	static void spatialWaveletTransform(ImageBuffer image, ArgsParser parser) throws ParameterException, ErrorException{
+		int wl = parser.getSpatialWaveletLevel();
+		int wt = parser.getSpatialWaveletType();
+		// wo:
+		//      0: horizontal/vertical
+		//      1: as in JPEG2000 (vertical/horizontal)
+		//      2: only horizontal
+		int wo = parser.getSpatialOrder();
+		if (wt>0){
+			//Forward Wavelet Transform
+			int zSize = image.getZSize();
+			int WTType[] = setParameterInt(null,zSize,wt);
+			int WTLevels[] = setParameterInt(null,zSize,wl);
+			int WTOrder[] = setParameterInt(null,zSize,wo);
+			SpatialWaveletTransform fwt = new SpatialWaveletTransform(image,WTType,WTLevels,WTOrder,true);
+			fwt.run();
+			fwt = null;
+		} else if (wt < 0){
+			int zSize = image.getZSize();
+			int WTType[] = setParameterInt(null,zSize,-wt);
+			int WTLevels[] = setParameterInt(null,zSize,wl);
+			int WTOrder[] = setParameterInt(null,zSize,wo);
+			//Inverse Wavelet transform
+			SpatialWaveletTransform iwt = new SpatialWaveletTransform(image,WTType,WTLevels,WTOrder,false);
+			iwt.run();
+			iwt = null;
+		}
+	}
 
-			if (spatialDPCM == 1){
-			    image = spatialDPCMimage.SpatialForwardLeftDPCM();
-			    spatialDPCMimage = null;
-			} else if (spatialDPCM == -1){
-			    image = spatialDPCMimage.SpatialReverseLeftDPCM();
-			    spatialDPCMimage = null;
-			} else if (spatialDPCM == 2){
-			    image = spatialDPCMimage.SpatialForwardRightDPCM();
-			    spatialDPCMimage = null;
-			} else if (spatialDPCM == -2){
-			    image = spatialDPCMimage.SpatialReverseRightDPCM();
-			    spatialDPCMimage = null;
+	/**
+	 * Builds the operation of a step that computes each component independently, so that it can be
+	 * applied to an image in half precision without widening all of it (see {@link HalfImage}).
+	 *
+	 * @param step step of the plan (see {@link PipelinePlanner})
+	 * @param parser program arguments
+	 * @param zSize number of image components
+	 * @return the operation, or null if the step needs the whole image (or has nothing to apply)
+	 *
+	 * @throws ParameterException when some parameter is not valid
+	 */
+	static HalfImage.ComponentsOperation getComponentsOperation(PipelinePlanner.Step step, final ArgsParser parser, int zSize) throws ParameterException{
+		if(PipelinePlanner.isPointwise(step)){
+			final PointwisePipeline pipeline = compilePointwise(step, parser, zSize);
+			if(pipeline == null || pipeline.hasRangeModification()){
+				return null;
 			}
-
-		}catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
+			return new HalfImage.ComponentsOperation(){
+				public void apply(ImageBuffer components, int z0) throws ErrorException{
+					pipeline.apply(components, z0);
+				}
+			};
 		}
-		
-		// CROP IMAGE
-		try{
-			int z0 = parser.getZInit();
-			int zl = parser.getZLength();
-			int[][] zr = parser.getZRanges();
-			int y0 = parser.getYInit();
-			int yl = parser.getYLength();
-			int x0 = parser.getXInit();
-			int xl = parser.getXLength();
-			if (xl!=0 || yl!=0 || zl!=0 || zr != null){
-				TransformImage crop = new TransformImage(image);
-				if (zr == null) {
-					image = crop.cropImage(z0,y0,x0,zl,yl,xl);
-				} else {
-					image = crop.cropImage(zr,y0,x0,yl,xl);
-				}
-				crop = null;
-			}
-		}catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
+		String stage = step.getStages().get(0);
+		if(stage.equals(PipelinePlanner.WT)){
+			return new HalfImage.ComponentsOperation(){
+				public void apply(ImageBuffer components, int z0) throws ParameterException, ErrorException{
+					spatialWaveletTransform(components, parser);
+				}
+			};
 		}
-		
-		// ROTATE IMAGE
-		try{
-			int toRotate = parser.getRotate();
-			if(toRotate != 0){
-				TransformImage rotate = new TransformImage(image);
-				image = rotate.rotateImage(toRotate);
-				rotate = null;
-			}
-			
-		}catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
+		if(stage.equals(PipelinePlanner.SPATIAL_DPCM)){
+			final SpatialDPCM spatialDPCM = new SpatialDPCM(parser.getSpatialDPCM());
+			return new HalfImage.ComponentsOperation(){
+				public void apply(ImageBuffer components, int z0){
+					spatialDPCM.run(components);
+				}
+			};
+		}
+		return null;
+	}
+
+	/**
+	 * Saves a jagged image with the GICI libraries. The file is recorded as one chunk (see {@link FlightEvents}).
+	 *
+	 * @param image image samples (index meaning [z][y][x])
+	 * @param outputFile output file name
+	 * @param format format of the output file (see {@link SaveFile#getFormat(String)})
+	 * @param outputImageGeometry geometry of raw output data (see "-og" parameter)
+	 *
+	 * @throws WarningException when the file can not be saved
+	 * @throws ParameterException when the output geometry is not valid
+	 */
+	static void saveJagged(float[][][] image, String outputFile, int format, int[] outputImageGeometry) throws WarningException, ParameterException{
+		FlightEvents.IOEvent event = FlightEvents.beginIO();
+		if(format == 5){
+			SaveFile.SaveFileByExtension(image, outputFile, outputImageGeometry);
+		}else{
+			SaveFile.SaveFileFormat(image, outputFile, format);
 		}
+		FlightEvents.end(event, outputFile, FlightEvents.WRITE, 0, StageStats.getFileSize(outputFile));
+	}
 
-		// REMOVE NON NULL COEFFICIENTS OF THE IMAGE
-		
+	/**
+	 * Number of samples of a raw image geometry.
+	 *
+	 * @param geometry image geometry (see "-ig" parameter)
+	 * @return the number of samples (0 if the geometry is not valid)
+	 */
+	static long getSamples(int[] geometry){
+		return RawConverter.isValidGeometry(geometry) ? (long) geometry[0] * geometry[1] * geometry[2]: 0;
+	}
+
+	/**
+	 * Number of samples of an image.
+	 */
+	static long getSamples(ImageBuffer image){
+		return (long) image.getZSize() * image.getYSize() * image.getXSize();
+	}
+
+	/**
+	 * Bytes of each sample of a raw image geometry.
+	 *
+	 * @param geometry image geometry (see "-ig" parameter)
+	 * @return the bytes of each sample (0 if the geometry is not valid)
+	 */
+	static int getSampleBytes(int[] geometry){
 		try{
+			return RawConverter.isValidGeometry(geometry) ? MappedRawImage.getSampleBytes(geometry[3]): 0;
+		}catch(WarningException e){
+			return 0;
+		}
+	}
 
-			int zSizeOut = outputImageGeometry[0];
-			int ySizeOut = outputImageGeometry[1];
-			int xSizeOut = outputImageGeometry[2];
+	/**
+	 * Components selected by a crop step of the plan. Whole crops are computed again from the crop
+	 * parameters, since the size of the image may be unknown when planning.
+	 *
+	 * @param crop crop step
+	 * @param parser program arguments
+	 * @param zSize number of components of the image at the crop
+	 * @return an integer array with the selected components (some may be out of the image)
+	 */
+	static int[] getCropComponents(PipelinePlanner.Step crop, ArgsParser parser, int zSize){
+		return crop.cropPart != null ? crop.components: getCropComponents(parser.getZInit(), parser.getZLength(), parser.getZRanges(), zSize);
+	}
 
-			int toRemoveNullCoefficients = parser.getRemoveNullCoefficients();
-			if(toRemoveNullCoefficients != 0){
-				TransformImage noZeroPixel = new TransformImage(image);
-				image = noZeroPixel.nonNullCoefficients(zSizeOut,ySizeOut,xSizeOut,toRemoveNullCoefficients);
-				noZeroPixel = null;
+	/**
+	 * Builds the sweep of a step of adjacent pointwise stages (see {@link PointwisePipeline}).
+	 *
+	 * @param step pointwise step
+	 * @param parser program arguments
+	 * @param zSize number of components of the image
+	 * @return the pipeline
+	 *
+	 * @throws ParameterException when some parameter is not valid
+	 */
+	static PointwisePipeline compilePointwise(PipelinePlanner.Step step, ArgsParser parser, int zSize) throws ParameterException{
+		RowOperation before = null;
+		RowOperation after = null;
+		boolean rangeModification = false;
+		for(String stage: step.getStages()){
+			RowOperation operation = null;
+			if(stage.equals(PipelinePlanner.CA)){
+				operation = RowOperations.coefficientsApproximation(parser, zSize);
+			}else if(stage.equals(PipelinePlanner.Q)){
+				operation = RowOperations.quantization(parser);
+			}else{
+				rangeModification = true;
+				continue;
+			}
+			if(rangeModification){
+				after = RowOperations.chain(after, operation);
+			}else{
+				before = RowOperations.chain(before, operation);
 			}
-			
-		}catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
 		}
-		
+		return PointwisePipeline.compile(before, rangeModification ? parser.getRangeModification(): null, parser.getNodataValues(), after);
+	}
 
-		// CHANGE IMAGES DIMENSIONS
-				
-		try{
-			int[] changeDim = parser.getChangeDim();
-			
-			if (changeDim != null) {
-				if (changeDim.length != 3) {
-					throw new ParameterException("Invalid dimension permutation.");
-				}
-				
-				Reshape r = new Reshape(image);
-				image = null;
-				r.dimensionTranspose(changeDim);
-				image = r.getImageFloat();
-				
-				
-			}
-		}catch (Exception e) {
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
+	/**
+	 * Removes the null coefficients of the image ("-nnc" parameter, see {@link NonNullCompaction}).
+	 *
+	 * @param image image samples
+	 * @param parser program arguments
+	 * @param outputFile output file name (maps are written next to it)
+	 * @param err stream for the errors of the conversion
+	 * @return the image with the non-null coefficients
+	 *
+	 * @throws ParameterException when some parameter is not valid
+	 * @throws ErrorException when the coefficients do not fit in the output image
+	 * @throws WarningException when the map can not be written
+	 */
+	static ImageBuffer removeNullCoefficients(ImageBuffer image, ArgsParser parser, String outputFile, PrintStream err) throws ParameterException, ErrorException, WarningException{
+		int[] outputImageGeometry = parser.getOutputImageGeometry();
+		int toRemoveNullCoefficients = parser.getRemoveNullCoefficients();
+		int nonNullCoefficientsMap = parser.getNonNullCoefficientsMap();
+		if(nonNullCoefficientsMap < 0 || nonNullCoefficientsMap > 2){
+			throw new ParameterException("Map of non-null coefficients must be 0, 1 or 2.");
 		}
-		
-		//RANGEMODIFICATION
-		try{
-			float[] rangeModification = null;
-			float[] nodataValues = null;
-			rangeModification = parser.getRangeModification();
-			nodataValues = parser.getNodataValues();
-			if(rangeModification != null){
-				
-					//find max and min value each component must be managed independently
-					float max = Float.MIN_VALUE;
-					float min = Float.MAX_VALUE;
-					for(int z = 0; z < image.length; z++){
-						for(int y = 0; y < image[z].length; y++){
-						for(int x = 0; x < image[z][y].length; x++){
-							if(nodataValues != null){
-								for(int nd = 0; nd < nodataValues.length; nd++){
-									if(image[z][y][x] != nodataValues[nd]){
-										if(image[z][y][x] > max) max = image[z][y][x];
-										if(image[z][y][x] < min) min = image[z][y][x];
-									}
-								}
-							}else{
-								if(image[z][y][x] > max) max = image[z][y][x];
-								if(image[z][y][x] < min) min = image[z][y][x];
-							}
-						}}
-						float tmp = (max - min) * rangeModification[0] / 100;
-						min = min - tmp;
-						max = max - tmp;
-						for(int y = 0; y < image[z].length; y++){
-						for(int x = 0; x < image[z][y].length; x++){
-							if(nodataValues != null){
-								for(int nd = 0; nd < nodataValues.length; nd++){
-									if(image[z][y][x] != nodataValues[nd]){
-											image[z][y][x] = (image[z][y][x] * Math.abs(min) * 255) / (max-min);
-									}else{
-										image[z][y][x] = 0;
-									}
-								}
-							}else{
-								image[z][y][x] = ((image[z][y][x] + Math.abs(min)) * 255) / (max-min);
-							}
-						}}
-						max = Float.MIN_VALUE;
-						min = Float.MAX_VALUE;	
-					}
+		NonNullCompaction compaction = new NonNullCompaction(image);
+		long count = compaction.getCount();
+		int zSizeOut, ySizeOut, xSizeOut;
+		if(toRemoveNullCoefficients == 0){
+			//Single row with all the non-null coefficients
+			if(count > Integer.MAX_VALUE - 8){
+				throw new ErrorException("Too many non-null coefficients (" + count + ") for a single row.");
 			}
-			
-		}catch (Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
-		}
-		// PERMUTE COMPONENTS
-		try{
-			int[] permuteType = null;
-			permuteType = parser.getPermuteType();
-			if(permuteType != null){
-				TransformImage permute = new TransformImage(image);
-				image = permute.permuteComponents(permuteType[0],permuteType[1]);
-				permute = null;
+			zSizeOut = 1;
+			ySizeOut = 1;
+			xSizeOut = (int) Math.max(1, count);
+		}else{
+			if(outputImageGeometry == null){
+				throw new ParameterException("Output image geometry is mandatory to remove null coefficients.");
+			}
+			zSizeOut = outputImageGeometry[0];
+			ySizeOut = outputImageGeometry[1];
+			xSizeOut = outputImageGeometry[2];
+			if(count != toRemoveNullCoefficients){
+				err.println("Gici ERROR: Transform Image. NotZero: " + count);
 			}
-			
-		}catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
 		}
-		
-		//QUANTIZATION and DEQUANTIZATION
-		try{
-			int[] quantization = null;
-			quantization = parser.getQuantization();
-			if(quantization != null){
-				int direction = quantization[0];
-				int quantizer = quantization[1];
-				int qstep = quantization[2];
-				if(direction == 1){
-					switch(quantizer){
-					case 0:
-						SDQ SDQquantizer = new SDQ();
-						SDQquantizer.setQuantizerStep(qstep);
-						for(int z = 0; z < image.length; z++){
-						for(int y = 0; y < image[z].length; y++){
-						for(int x = 0; x < image[z][y].length; x++){
-							image[z][y][x] = SDQquantizer.quantize((long)image[z][y][x]);
-						}}}
-						break;
-					case 1:
-						UQ UQquantizer = new UQ();
-						UQquantizer.setQuantizerStep(qstep);
-						for(int z = 0; z < image.length; z++){
-						for(int y = 0; y < image[z].length; y++){
-						for(int x = 0; x < image[z][y].length; x++){
-							image[z][y][x] = UQquantizer.quantize((long)image[z][y][x]);
-						}}}
-						break;
-					}
-				}
-				if(direction == -1){
-					switch(quantizer){
-					case 0:
-						SDQ SDQquantizer = new SDQ();
-						SDQquantizer.setQuantizerStep(qstep);
-						for(int z = 0; z < image.length; z++){
-						for(int y = 0; y < image[z].length; y++){
-						for(int x = 0; x < image[z][y].length; x++){
-							image[z][y][x] = SDQquantizer.dequantize((long)image[z][y][x]);
-						}}}
-						break;
-					case 1:
-						UQ UQquantizer = new UQ();
-						UQquantizer.setQuantizerStep(qstep);
-						for(int z = 0; z < image.length; z++){
-						for(int y = 0; y < image[z].length; y++){
-						for(int x = 0; x < image[z][y].length; x++){
-							image[z][y][x] = UQquantizer.dequantize((long)image[z][y][x]);
-						}}}
-						break;
-					}
+		if(nonNullCoefficientsMap == NonNullCompaction.POSITIONS){
+			compaction.writeMap(outputFile + ".pos", NonNullCompaction.POSITIONS);
+		}else if(nonNullCoefficientsMap == NonNullCompaction.BITMAP){
+			compaction.writeMap(outputFile + ".map", NonNullCompaction.BITMAP);
+		}
+		return compaction.compact(zSizeOut, ySizeOut, xSizeOut);
+	}
+
+	/**
+	 * Components selected by the crop parameters, in the same order used by {@link TransformImage#cropImage}.
+	 *
+	 * @param z0 first component (see "-z0")
+	 * @param zLength number of components (see "-zl"), 0 means all the components
+	 * @param zRanges ranges of components (see "-zr"), null if not given
+	 * @param zSize number of components of the image
+	 *
+	 * @return an integer array with the selected components (some may be out of the image)
+	 */
+	static int[] getCropComponents(int z0, int zLength, int[][] zRanges, int zSize){
+		int[] components;
+		if(zRanges != null){
+			int numComps = 0;
+			for (int i = 0; i < zRanges.length; i++) numComps += zRanges[i][1] - zRanges[i][0] + 1;
+			components = new int[numComps];
+			int compIndex = 0;
+			for (int i = 0; i < zRanges.length; i++) {
+				for (int c = zRanges[i][0]; c <= zRanges[i][1]; c++) {
+					components[compIndex++] = c;
 				}
-				
-				
 			}
-			
-		}catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici ERROR: " + e.getMessage());
-			System.exit(4);
-		}
-		
-		// SAVE FILE
-		try{
-			int format = SaveFile.getFormat(outputFile);
-			switch(format){
-			case 0:
-				SaveFile.SaveFileFormat(image, outputFile, format);
-				break;
-			case 5:
-				SaveFile.SaveFileByExtension(image,outputFile,outputImageGeometry);
-				break;
+		}else{
+			if(zLength == 0){
+				zLength = zSize;
+			}
+			components = new int[zLength];
+			for(int z = 0; z < zLength; z++){
+				components[z] = z0 + z;
 			}
-			
-		} catch(Exception e){
-			e.printStackTrace();
-			System.err.println("Gici SaveFile ERROR: " + e.getMessage());
-			System.exit(4);
 		}
-
+		return components;
 	}
 
 	/**
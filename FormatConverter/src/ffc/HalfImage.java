@@ -0,0 +1,287 @@
+package ffc;
+
+import GiciException.*;
+
+
+/**
+ * Image samples kept in IEEE 754 half precision (16 bit floats, see "-hp" parameter) between the
+ * stages of a conversion, so the image takes half the memory of an {@link ImageBuffer}. Stages
+ * compute with 32 bit floats: samples are widened before a stage and rounded again to half precision
+ * (to the nearest value, ties to even) after it. Stages that compute each component independently
+ * are applied to a few components at once (see {@link #apply(ComponentsOperation)}), so only those
+ * components are widened.<br>
+ * Half precision keeps 11 significant bits and values up to 65504 (larger ones become infinite),
+ * which is enough for lossy conversions whose output has at most 8 or 16 bits, but not for
+ * lossless ones.<br>
+ * Conversions are done over the bits of the values, without allocating objects. Widening gives the
+ * same values as GiciAnalysis.HalfFloat, but rounding is to the nearest value, whereas
+ * GiciAnalysis.HalfFloat truncates.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class HalfImage{
+
+	/**
+	 * Stage that computes each component of the image independently.
+	 */
+	public interface ComponentsOperation{
+
+		/**
+		 * Applies the stage, in place, over some consecutive components of the image.
+		 *
+		 * @param components image samples of the components
+		 * @param z0 component of the whole image that is the first component given
+		 *
+		 * @throws ParameterException when some parameter of the stage is not valid
+		 * @throws ErrorException when the stage can not be applied
+		 */
+		void apply(ImageBuffer components, int z0) throws ParameterException, ErrorException;
+	}
+
+	/**
+	 * Image dimensions.
+	 */
+	int zSize;
+	int ySize;
+	int xSize;
+
+	/**
+	 * Half precision bits of the samples of each component (index meaning [z][y*xSize + x]).
+	 */
+	short[][] bands;
+
+	/**
+	 * Constructor that allocates an image filled with zeros.
+	 *
+	 * @param zSize number of image components
+	 * @param ySize image height
+	 * @param xSize image width
+	 */
+	public HalfImage(int zSize, int ySize, int xSize){
+		this.zSize = zSize;
+		this.ySize = ySize;
+		this.xSize = xSize;
+		FlightEvents.allocated("HalfImage", zSize, ySize, xSize, 2);
+		bands = new short[zSize][];
+		for(int z = 0; z < zSize; z++){
+			bands[z] = new short[ImageBuffer.getBandSize(ySize, xSize)];
+		}
+	}
+
+	/**
+	 * Rounds an image to half precision. Each component of the given image is released as soon as
+	 * it has been rounded, so the image can not be used afterwards.
+	 *
+	 * @param image image samples
+	 * @return the image in half precision
+	 */
+	public static HalfImage fromBuffer(final ImageBuffer image){
+		final HalfImage half = new HalfImage(image.getZSize(), image.getYSize(), image.getXSize());
+		Parallel.forEach(image.getZSize(), new Parallel.Task(){
+			public void run(int z){
+				float[] band = image.getBand(z);
+				toHalf(band, 0, half.bands[z], 0, band.length);
+				image.setBand(z, null);
+			}
+		});
+		return half;
+	}
+
+	/**
+	 * Decodes a raw image in half precision, one component at a time, so the image is never kept
+	 * with 32 bit floats.
+	 *
+	 * @param mappedImage raw image
+	 * @return the image in half precision
+	 */
+	public static HalfImage load(MappedRawImage mappedImage){
+		HalfImage half = new HalfImage(mappedImage.getZSize(), mappedImage.getYSize(), mappedImage.getXSize());
+		for(int z = 0; z < half.zSize; z++){
+			float[] band = mappedImage.getBand(z);
+			toHalf(band, 0, half.bands[z], 0, band.length);
+		}
+		return half;
+	}
+
+	/**
+	 * Widens the image to 32 bit floats. Each component of this image is released as soon as it has
+	 * been widened, so this image can not be used afterwards.
+	 *
+	 * @return the image samples
+	 */
+	public ImageBuffer toBuffer(){
+		final ImageBuffer image = new ImageBuffer(new float[zSize][], ySize, xSize);
+		FlightEvents.allocated("HalfImage.toBuffer", zSize, ySize, xSize);
+		Parallel.forEach(zSize, new Parallel.Task(){
+			public void run(int z){
+				float[] band = new float[bands[z].length];
+				toFloat(bands[z], 0, band, 0, band.length);
+				image.setBand(z, band);
+				bands[z] = null;
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Applies a stage to the image, widening only as many components as threads are used (see
+	 * {@link Parallel#getThreads()}) at once.
+	 *
+	 * @param operation stage to apply
+	 *
+	 * @throws ParameterException when some parameter of the stage is not valid
+	 * @throws ErrorException when the stage can not be applied
+	 */
+	public void apply(ComponentsOperation operation) throws ParameterException, ErrorException{
+		int groupSize = Math.max(1, Math.min(zSize, Parallel.getThreads()));
+		final float[][] group = new float[groupSize][];
+		FlightEvents.allocated("HalfImage.apply", groupSize, ySize, xSize);
+		for(int z = 0; z < groupSize; z++){
+			group[z] = new float[ImageBuffer.getBandSize(ySize, xSize)];
+		}
+		for(int z0 = 0; z0 < zSize; z0 += groupSize){
+			final int first = z0;
+			final int length = Math.min(groupSize, zSize - z0);
+			Parallel.forEach(length, new Parallel.Task(){
+				public void run(int z){
+					toFloat(bands[first + z], 0, group[z], 0, group[z].length);
+				}
+			});
+			float[][] components = group;
+			if(length < groupSize){
+				components = new float[length][];
+				System.arraycopy(group, 0, components, 0, length);
+			}
+			operation.apply(new ImageBuffer(components, ySize, xSize), first);
+			Parallel.forEach(length, new Parallel.Task(){
+				public void run(int z){
+					toHalf(group[z], 0, bands[first + z], 0, group[z].length);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the samples, widened one block at a time.
+	 *
+	 * @param writer writer of the output file
+	 *
+	 * @throws WarningException when some write failed
+	 */
+	public void write(RawImageWriter writer) throws WarningException{
+		int bandSize = ImageBuffer.getBandSize(ySize, xSize);
+		float[] block = new float[Math.min(bandSize, RawImageWriter.WRITE_SAMPLES)];
+		for(int z = 0; z < zSize; z++){
+			for(int offset = 0; offset < bandSize; offset += block.length){
+				int length = Math.min(block.length, bandSize - offset);
+				toFloat(bands[z], offset, block, 0, length);
+				writer.writeSamples(block, 0, length);
+			}
+		}
+	}
+
+	/**
+	 * Rounds a float to the nearest half precision value (ties to even).
+	 *
+	 * @param value float value
+	 * @return the bits of the half precision value
+	 */
+	public static short toHalf(float value){
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int magnitude = bits & 0x7fffffff;
+		if(magnitude >= 0x7f800000){
+			//Infinite or NaN (NaN keeps the highest bits of its payload, and is kept quiet)
+			return (short) (sign | 0x7c00 | (magnitude > 0x7f800000 ? 0x200 | (magnitude >>> 13) & 0x3ff: 0));
+		}
+		if(magnitude >= 0x477ff000){
+			//Rounds to 65536 or more
+			return (short) (sign | 0x7c00);
+		}
+		if(magnitude >= 0x38800000){
+			//Normal: exponent is rebiased from 127 to 15 and the mantissa rounded from 23 to 10 bits
+			//(a carry of the rounding increases the exponent)
+			int half = magnitude - 0x38000000;
+			half += 0xfff + ((half >>> 13) & 1);
+			return (short) (sign | half >>> 13);
+		}
+		if(magnitude >= 0x33000000){
+			//Subnormal: value is a multiple of 2^-24
+			int shift = 126 - (magnitude >>> 23);
+			int mantissa = (magnitude & 0x7fffff) | 0x800000;
+			int half = mantissa >>> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if(remainder > halfway || (remainder == halfway && (half & 1) != 0)){
+				half++;
+			}
+			return (short) (sign | half);
+		}
+		return (short) sign;
+	}
+
+	/**
+	 * Widens a half precision value to float (exactly).
+	 *
+	 * @param half bits of the half precision value
+	 * @return the float value
+	 */
+	public static float toFloat(short half){
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		if(exponent == 0x1f){
+			return Float.intBitsToFloat(sign | 0x7f800000 | mantissa << 13);
+		}
+		if(exponent == 0){
+			//Zero or subnormal (mantissa * 2^-24)
+			float value = mantissa * 0x1p-24f;
+			return sign == 0 ? value: -value;
+		}
+		return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+	}
+
+	/**
+	 * Rounds consecutive floats to half precision.
+	 *
+	 * @param src float values
+	 * @param srcOffset position of the first value in src
+	 * @param dst half precision bits
+	 * @param dstOffset position of the first value in dst
+	 * @param length number of values
+	 */
+	public static void toHalf(float[] src, int srcOffset, short[] dst, int dstOffset, int length){
+		for(int i = 0; i < length; i++){
+			dst[dstOffset + i] = toHalf(src[srcOffset + i]);
+		}
+	}
+
+	/**
+	 * Widens consecutive half precision values to float.
+	 *
+	 * @param src half precision bits
+	 * @param srcOffset position of the first value in src
+	 * @param dst float values
+	 * @param dstOffset position of the first value in dst
+	 * @param length number of values
+	 */
+	public static void toFloat(short[] src, int srcOffset, float[] dst, int dstOffset, int length){
+		for(int i = 0; i < length; i++){
+			dst[dstOffset + i] = toFloat(src[srcOffset + i]);
+		}
+	}
+
+	public long getNumSamples(){
+		return (long) zSize * ySize * xSize;
+	}
+	public int getZSize(){
+		return(zSize);
+	}
+	public int getYSize(){
+		return(ySize);
+	}
+	public int getXSize(){
+		return(xSize);
+	}
+}
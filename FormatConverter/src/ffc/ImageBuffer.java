@@ -0,0 +1,177 @@
+package ffc;
+
+
+/**
+ * Image samples stored in large contiguous arrays instead of a jagged float[][][] array. Each
+ * component is kept in one array of ySize*xSize samples (row after row), so an image has only
+ * zSize arrays instead of zSize*ySize. The only limit is the size of a Java array: each component
+ * can have up to 2^31 - 9 samples (ySize*xSize, about 8 GB of floats), see {@link #getBandSize(int, int)}.<br>
+ * Sample (z, y, x) is at position y*{@link #getYStride()} + x*{@link #getXStride()} of
+ * {@link #getBand(int)}.<br>
+ * Adapters to and from float[][][] are provided for the GICI libraries that need jagged arrays.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class ImageBuffer{
+
+	/**
+	 * Image dimensions.
+	 */
+	int zSize;
+	int ySize;
+	int xSize;
+
+	/**
+	 * Samples of each component (index meaning [z][y*xSize + x]).
+	 */
+	float[][] bands;
+
+	/**
+	 * Constructor that allocates an image filled with zeros.
+	 *
+	 * @param zSize number of image components
+	 * @param ySize image height
+	 * @param xSize image width
+	 */
+	public ImageBuffer(int zSize, int ySize, int xSize){
+		this(new float[zSize][], ySize, xSize);
+		FlightEvents.allocated("ImageBuffer", zSize, ySize, xSize);
+		for(int z = 0; z < zSize; z++){
+			bands[z] = new float[getBandSize(ySize, xSize)];
+		}
+	}
+
+	/**
+	 * Constructor that uses the given component arrays (no copy is done).
+	 *
+	 * @param bands definition in {@link #bands}
+	 * @param ySize image height
+	 * @param xSize image width
+	 */
+	public ImageBuffer(float[][] bands, int ySize, int xSize){
+		this.zSize = bands.length;
+		this.ySize = ySize;
+		this.xSize = xSize;
+		this.bands = bands;
+	}
+
+	/**
+	 * Number of samples of a component, checking that it fits in one array.
+	 */
+	static int getBandSize(int ySize, int xSize){
+		long size = (long) ySize * xSize;
+		if(size > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("Image components of " + size + " samples are not supported.");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Copies a jagged image to a new buffer.
+	 *
+	 * @param image image samples (index meaning [z][y][x]); all rows must have the same length
+	 * @param release if true, each component of image is set to null as soon as it has been copied, so that
+	 *        only one extra component is kept in memory during the copy
+	 * @return the new buffer
+	 */
+	public static ImageBuffer fromArray(float[][][] image, boolean release){
+		int zSize = image.length;
+		int ySize = image[0].length;
+		int xSize = image[0][0].length;
+		float[][] bands = new float[zSize][];
+		FlightEvents.allocated("ImageBuffer.fromArray", zSize, ySize, xSize);
+		for(int z = 0; z < zSize; z++){
+			float[] band = new float[getBandSize(ySize, xSize)];
+			for(int y = 0; y < ySize; y++){
+				System.arraycopy(image[z][y], 0, band, y * xSize, xSize);
+			}
+			bands[z] = band;
+			if(release){
+				image[z] = null;
+			}
+		}
+		return new ImageBuffer(bands, ySize, xSize);
+	}
+
+	/**
+	 * Copies the buffer to a jagged image.
+	 *
+	 * @param release if true, each component of this buffer is dropped as soon as it has been copied (the buffer can not be used afterwards)
+	 * @return the image samples (index meaning [z][y][x])
+	 */
+	public float[][][] toArray(boolean release){
+		float[][][] image = new float[zSize][][];
+		FlightEvents.allocated("ImageBuffer.toArray", zSize, ySize, xSize);
+		for(int z = 0; z < zSize; z++){
+			float[] band = bands[z];
+			image[z] = new float[ySize][xSize];
+			for(int y = 0; y < ySize; y++){
+				System.arraycopy(band, y * xSize, image[z][y], 0, xSize);
+			}
+			if(release){
+				bands[z] = null;
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Returns the array of one component.
+	 *
+	 * @param z component
+	 * @return the component samples (row after row)
+	 */
+	public float[] getBand(int z){
+		return(bands[z]);
+	}
+
+	/**
+	 * Replaces the array of one component.
+	 *
+	 * @param z component
+	 * @param band new samples of the component (ySize*xSize samples)
+	 */
+	public void setBand(int z, float[] band){
+		bands[z] = band;
+	}
+
+	public float get(int z, int y, int x){
+		return bands[z][y * xSize + x];
+	}
+
+	public void set(int z, int y, int x, float value){
+		bands[z][y * xSize + x] = value;
+	}
+
+	/**
+	 * Distance between two consecutive rows in a component array.
+	 *
+	 * @return the row stride
+	 */
+	public int getYStride(){
+		return(xSize);
+	}
+
+	/**
+	 * Distance between two consecutive samples of a row in a component array.
+	 *
+	 * @return the sample stride
+	 */
+	public int getXStride(){
+		return(1);
+	}
+
+	public long getNumSamples(){
+		return (long) zSize * ySize * xSize;
+	}
+	public int getZSize(){
+		return(zSize);
+	}
+	public int getYSize(){
+		return(ySize);
+	}
+	public int getXSize(){
+		return(xSize);
+	}
+}
@@ -0,0 +1,293 @@
+package ffc;
+
+import java.util.Arrays;
+import GiciException.*;
+
+
+/**
+ * Geometric view of an {@link ImageBuffer}. Crop, rotation and dimension permutations only change
+ * how positions of the view are mapped to positions of the buffer, so they are computed without
+ * touching any sample. Each dimension has an index map (an offset, a flip or a permutation are
+ * only particular maps) and applying an operation to a view composes it with the maps it already
+ * has.<br>
+ * Samples are copied only when the view is read ({@link #getRow(int, int, float[], int)},
+ * {@link #toBuffer()} or {@link #toArray()}), in a single pass over the selected samples.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class ImageView{
+
+	/**
+	 * Image whose samples are viewed.
+	 */
+	ImageBuffer image;
+
+	/**
+	 * Index maps of each dimension: position i of the view is position map[i] of the image, or
+	 * out of the image (sample set to 0) if map[i] is -1.
+	 */
+	int[] zMap;
+	int[] yMap;
+	int[] xMap;
+
+	/**
+	 * Constructor of a view that shows the whole image.
+	 *
+	 * @param image viewed image
+	 */
+	public ImageView(ImageBuffer image){
+		this(image, identity(image.getZSize()), identity(image.getYSize()), identity(image.getXSize()));
+	}
+
+	/**
+	 * Constructor with the given index maps.
+	 *
+	 * @param image viewed image
+	 * @param zMap definition in {@link #zMap}
+	 * @param yMap definition in {@link #yMap}
+	 * @param xMap definition in {@link #xMap}
+	 */
+	ImageView(ImageBuffer image, int[] zMap, int[] yMap, int[] xMap){
+		this.image = image;
+		this.zMap = zMap;
+		this.yMap = yMap;
+		this.xMap = xMap;
+	}
+
+	/**
+	 * Identity index map.
+	 *
+	 * @param size size of the dimension
+	 * @return an array with positions 0 to size-1
+	 */
+	static int[] identity(int size){
+		int[] map = new int[size];
+		for(int i = 0; i < size; i++){
+			map[i] = i;
+		}
+		return map;
+	}
+
+	/**
+	 * Checks whether an index map is the identity over the whole dimension.
+	 */
+	static boolean isIdentity(int[] map, int size){
+		if(map.length != size){
+			return false;
+		}
+		for(int i = 0; i < size; i++){
+			if(map[i] != i){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Composes an index map with a window (offset and length) of it.
+	 *
+	 * @param map current map
+	 * @param begin first position of the window (may be negative)
+	 * @param length window length
+	 * @return the map of the window, positions out of the current map are set to -1
+	 */
+	static int[] window(int[] map, int begin, int length){
+		int[] newMap = new int[length];
+		for(int i = 0; i < length; i++){
+			int position = begin + i;
+			newMap[i] = (position >= 0 && position < map.length) ? map[position]: -1;
+		}
+		return newMap;
+	}
+
+	/**
+	 * Composes an index map with a selection of its positions.
+	 *
+	 * @param map current map
+	 * @param positions selected positions, in the new order (may be out of the current map)
+	 * @return the new map, positions out of the current map are set to -1
+	 */
+	static int[] select(int[] map, int[] positions){
+		int[] newMap = new int[positions.length];
+		for(int i = 0; i < positions.length; i++){
+			int position = positions[i];
+			newMap[i] = (position >= 0 && position < map.length) ? map[position]: -1;
+		}
+		return newMap;
+	}
+
+	/**
+	 * Crops a window of the given components. Positions out of the view are set to 0, as
+	 * {@link TransformImage#cropImage(int, int, int, int, int, int)} does.
+	 *
+	 * @param components components to select (in output order)
+	 * @param y0 first row of the window
+	 * @param x0 first column of the window
+	 * @param yLength height of the window (0 means the whole height)
+	 * @param xLength width of the window (0 means the whole width)
+	 * @return the cropped view
+	 */
+	public ImageView crop(int[] components, int y0, int x0, int yLength, int xLength){
+		if(yLength == 0){
+			yLength = getYSize();
+		}
+		if(xLength == 0){
+			xLength = getXSize();
+		}
+		return new ImageView(image, select(zMap, components), window(yMap, y0, yLength), window(xMap, x0, xLength));
+	}
+
+	/**
+	 * Reverses the order of the rows (see {@link TransformImage#rotateImage(int)}).
+	 *
+	 * @return the rotated view
+	 */
+	public ImageView rotate(){
+		int ySize = getYSize();
+		int[] newYMap = new int[ySize];
+		for(int y = 0; y < ySize; y++){
+			newYMap[y] = yMap[(ySize - 1) - y];
+		}
+		return new ImageView(image, zMap, newYMap, xMap);
+	}
+
+	/**
+	 * Permutes the positions of one dimension: position i of the new view is position
+	 * permutation[i] of this view.
+	 *
+	 * @param dimension dimension to permute (0 components, 1 rows, 2 columns)
+	 * @param permutation permutation of the positions of the dimension
+	 * @return the permuted view
+	 *
+	 * @throws ParameterException when the dimension is not valid or permutation is not a permutation of the dimension positions
+	 */
+	public ImageView permute(int dimension, int[] permutation) throws ParameterException{
+		int size;
+		switch(dimension){
+		case 0:
+			size = getZSize();
+			break;
+		case 1:
+			size = getYSize();
+			break;
+		case 2:
+			size = getXSize();
+			break;
+		default:
+			throw new ParameterException("Permuted dimension must be between 0 and 2.");
+		}
+		if(permutation == null || permutation.length != size){
+			throw new ParameterException("Permutation sequence must have " + size + " positions.");
+		}
+		boolean[] used = new boolean[size];
+		for(int i = 0; i < size; i++){
+			if(permutation[i] < 0 || permutation[i] >= size || used[permutation[i]]){
+				throw new ParameterException("Invalid permutation sequence.");
+			}
+			used[permutation[i]] = true;
+		}
+		switch(dimension){
+		case 0:
+			return new ImageView(image, select(zMap, permutation), yMap, xMap);
+		case 1:
+			return new ImageView(image, zMap, select(yMap, permutation), xMap);
+		default:
+			return new ImageView(image, zMap, yMap, select(xMap, permutation));
+		}
+	}
+
+	/**
+	 * Copies one row of the view. Runs of consecutive columns of the image are copied at once.
+	 *
+	 * @param z component of the row
+	 * @param y row
+	 * @param dst array where samples are stored
+	 * @param dstOffset position of dst where the first sample is stored
+	 */
+	public void getRow(int z, int y, float[] dst, int dstOffset){
+		int xSize = xMap.length;
+		int comp = zMap[z];
+		int row = yMap[y];
+		if(comp < 0 || row < 0){
+			Arrays.fill(dst, dstOffset, dstOffset + xSize, 0f);
+			return;
+		}
+		float[] band = image.getBand(comp);
+		int rowOffset = row * image.getYStride();
+		int x = 0;
+		while(x < xSize){
+			int column = xMap[x];
+			if(column < 0){
+				dst[dstOffset + x] = 0f;
+				x++;
+				continue;
+			}
+			int run = 1;
+			while(x + run < xSize && xMap[x + run] == column + run){
+				run++;
+			}
+			System.arraycopy(band, rowOffset + column, dst, dstOffset + x, run);
+			x += run;
+		}
+	}
+
+	/**
+	 * Copies the view to a new image. Components that are shown whole and unchanged (and only once)
+	 * are shared with the viewed image instead of copied.
+	 *
+	 * @return the view samples
+	 */
+	public ImageBuffer toBuffer(){
+		int zSize = getZSize();
+		int ySize = getYSize();
+		int xSize = getXSize();
+		boolean wholeComponents = isIdentity(yMap, image.getYSize()) && isIdentity(xMap, image.getXSize());
+		boolean[] shared = new boolean[image.getZSize()];
+		float[][] bands = new float[zSize][];
+		int copied = 0;
+		for(int z = 0; z < zSize; z++){
+			if(wholeComponents && zMap[z] >= 0 && !shared[zMap[z]]){
+				bands[z] = image.getBand(zMap[z]);
+				shared[zMap[z]] = true;
+				continue;
+			}
+			copied++;
+			float[] band = new float[ImageBuffer.getBandSize(ySize, xSize)];
+			if(zMap[z] >= 0){
+				for(int y = 0; y < ySize; y++){
+					getRow(z, y, band, y * xSize);
+				}
+			}
+			bands[z] = band;
+		}
+		FlightEvents.allocated("ImageView.toBuffer", copied, ySize, xSize);
+		return new ImageBuffer(bands, ySize, xSize);
+	}
+
+	/**
+	 * Copies the view to a jagged image (for the GICI libraries).
+	 *
+	 * @return the view samples (index meaning [z][y][x])
+	 */
+	public float[][][] toArray(){
+		float[][][] samples = new float[getZSize()][getYSize()][getXSize()];
+		FlightEvents.allocated("ImageView.toArray", getZSize(), getYSize(), getXSize());
+		for(int z = 0; z < samples.length; z++){
+			for(int y = 0; y < samples[z].length; y++){
+				getRow(z, y, samples[z][y], 0);
+			}
+		}
+		return samples;
+	}
+
+	public int getZSize(){
+		return(zMap.length);
+	}
+	public int getYSize(){
+		return(yMap.length);
+	}
+	public int getXSize(){
+		return(xMap.length);
+	}
+}
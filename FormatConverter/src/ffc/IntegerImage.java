@@ -0,0 +1,511 @@
+package ffc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import GiciException.*;
+
+
+/**
+ * Image of integer samples stored with the width of their raw type, instead of widened to float as
+ * in {@link ImageBuffer}: unsigned 8 bit and signed 16 bit samples in short arrays, unsigned 16 bit
+ * samples in char arrays, and signed 32 and 64 bit samples in int and long arrays. A 16 bit image
+ * then takes half the memory, and 32 and 64 bit samples are kept exactly (a float only holds
+ * integers up to 2^24).<br>
+ * Each component is kept in one array of ySize*xSize samples (row after row). Samples are read and
+ * written as long values, so operations are computed exactly over any of the storages; values out
+ * of the range of the storage are clipped to it.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class IntegerImage{
+
+	/**
+	 * Storages of the samples.
+	 */
+	public static final int SHORT = 0;
+	public static final int CHAR = 1;
+	public static final int INT = 2;
+	public static final int LONG = 3;
+
+	/**
+	 * Bytes, minimum and maximum values of each storage.
+	 */
+	static final int[] STORAGE_BYTES = {2, 2, 4, 8};
+	static final long[] MIN_VALUE = {Short.MIN_VALUE, Character.MIN_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE};
+	static final long[] MAX_VALUE = {Short.MAX_VALUE, Character.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE};
+
+	/**
+	 * Storage of the samples ({@link #SHORT}, {@link #CHAR}, {@link #INT} or {@link #LONG}).
+	 */
+	int storage;
+
+	/**
+	 * Image dimensions.
+	 */
+	int zSize;
+	int ySize;
+	int xSize;
+
+	/**
+	 * Samples of each component (short[], char[], int[] or long[] arrays, index meaning [z][y*xSize + x]).
+	 */
+	Object[] bands;
+
+	/**
+	 * Constructor that allocates an image filled with zeros.
+	 *
+	 * @param storage definition in {@link #storage}
+	 * @param zSize number of image components
+	 * @param ySize image height
+	 * @param xSize image width
+	 */
+	public IntegerImage(int storage, int zSize, int ySize, int xSize){
+		this.storage = storage;
+		this.zSize = zSize;
+		this.ySize = ySize;
+		this.xSize = xSize;
+		FlightEvents.allocated("IntegerImage", zSize, ySize, xSize, STORAGE_BYTES[storage]);
+		int bandSize = ImageBuffer.getBandSize(ySize, xSize);
+		bands = new Object[zSize];
+		for(int z = 0; z < zSize; z++){
+			switch(storage){
+			case SHORT:
+				bands[z] = new short[bandSize];
+				break;
+			case CHAR:
+				bands[z] = new char[bandSize];
+				break;
+			case INT:
+				bands[z] = new int[bandSize];
+				break;
+			default:
+				bands[z] = new long[bandSize];
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Storage that holds all the values of an integer raw type.
+	 *
+	 * @param sampleType data type of the samples (1 to 5, see "-ig" parameter)
+	 * @return the storage
+	 *
+	 * @throws ParameterException when the type is not an integer type
+	 */
+	public static int getStorage(int sampleType) throws ParameterException{
+		switch(sampleType){
+		case 1:
+		case 3:
+			return SHORT;
+		case 2:
+			return CHAR;
+		case 4:
+			return INT;
+		case 5:
+			return LONG;
+		default:
+			throw new ParameterException("Sample type " + sampleType + " is not an integer type.");
+		}
+	}
+
+	/**
+	 * Storage that holds the difference of two values of a storage (the next wider one).
+	 *
+	 * @param storage storage
+	 * @return the wider storage ({@link #LONG} for {@link #LONG})
+	 */
+	public static int widen(int storage){
+		return storage == SHORT || storage == CHAR ? INT: LONG;
+	}
+
+	/**
+	 * Storage that holds all the values of two storages.
+	 *
+	 * @param storage1 first storage
+	 * @param storage2 second storage
+	 * @return the narrowest storage that holds both
+	 */
+	public static int union(int storage1, int storage2){
+		if(storage1 == storage2){
+			return storage1;
+		}
+		return Math.max(INT, Math.max(storage1, storage2));
+	}
+
+	/**
+	 * Reads samples of a component.
+	 *
+	 * @param z component
+	 * @param p0 position of the first sample in the component
+	 * @param length number of samples
+	 * @param dst array where samples are stored
+	 * @param dstOffset position of dst where the first sample is stored
+	 */
+	public void get(int z, int p0, int length, long[] dst, int dstOffset){
+		int end = p0 + length;
+		switch(storage){
+		case SHORT:
+			short[] shortBand = (short[]) bands[z];
+			for(int p = p0; p < end; p++) dst[dstOffset++] = shortBand[p];
+			break;
+		case CHAR:
+			char[] charBand = (char[]) bands[z];
+			for(int p = p0; p < end; p++) dst[dstOffset++] = charBand[p];
+			break;
+		case INT:
+			int[] intBand = (int[]) bands[z];
+			for(int p = p0; p < end; p++) dst[dstOffset++] = intBand[p];
+			break;
+		default:
+			System.arraycopy((long[]) bands[z], p0, dst, dstOffset, length);
+			break;
+		}
+	}
+
+	/**
+	 * Writes samples of a component, clipped to the range of the storage.
+	 *
+	 * @param z component
+	 * @param p0 position of the first sample in the component
+	 * @param length number of samples
+	 * @param src array with the samples
+	 * @param srcOffset position of src of the first sample
+	 */
+	public void set(int z, int p0, int length, long[] src, int srcOffset){
+		int end = p0 + length;
+		long min = MIN_VALUE[storage];
+		long max = MAX_VALUE[storage];
+		switch(storage){
+		case SHORT:
+			short[] shortBand = (short[]) bands[z];
+			for(int p = p0; p < end; p++) shortBand[p] = (short) Math.max(min, Math.min(max, src[srcOffset++]));
+			break;
+		case CHAR:
+			char[] charBand = (char[]) bands[z];
+			for(int p = p0; p < end; p++) charBand[p] = (char) Math.max(min, Math.min(max, src[srcOffset++]));
+			break;
+		case INT:
+			int[] intBand = (int[]) bands[z];
+			for(int p = p0; p < end; p++) intBand[p] = (int) Math.max(min, Math.min(max, src[srcOffset++]));
+			break;
+		default:
+			System.arraycopy(src, srcOffset, (long[]) bands[z], p0, length);
+			break;
+		}
+	}
+
+	/**
+	 * Copies the image to another storage. Each component of this image is dropped as soon as it has
+	 * been copied (this image can not be used afterwards).
+	 *
+	 * @param newStorage storage of the copy
+	 * @return the copy (this image if it already has that storage)
+	 */
+	public IntegerImage toStorage(final int newStorage){
+		if(newStorage == storage){
+			return this;
+		}
+		final IntegerImage image = new IntegerImage(newStorage, zSize, ySize, xSize);
+		Parallel.forEach(zSize, new Parallel.Task(){
+			public void run(int z){
+				long[] row = new long[xSize];
+				for(int y = 0; y < ySize; y++){
+					get(z, y * xSize, xSize, row, 0);
+					image.set(z, y * xSize, xSize, row, 0);
+				}
+				bands[z] = null;
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Copies the samples selected by index maps to a new image (see {@link ImageView}): position i of
+	 * each dimension of the new image is position map[i] of this image, or 0 if map[i] is -1. Runs of
+	 * consecutive columns are copied at once.
+	 *
+	 * @param zMap index map of the components
+	 * @param yMap index map of the rows
+	 * @param xMap index map of the columns
+	 * @return the new image (this image if all the maps are the identity)
+	 */
+	public IntegerImage remap(final int[] zMap, final int[] yMap, final int[] xMap){
+		if(ImageView.isIdentity(zMap, zSize) && ImageView.isIdentity(yMap, ySize) && ImageView.isIdentity(xMap, xSize)){
+			return this;
+		}
+		final IntegerImage image = new IntegerImage(storage, zMap.length, yMap.length, xMap.length);
+		final int newXSize = xMap.length;
+		Parallel.forEach(zMap.length, new Parallel.Task(){
+			public void run(int z){
+				if(zMap[z] < 0){
+					return;
+				}
+				Object band = bands[zMap[z]];
+				Object newBand = image.bands[z];
+				for(int y = 0; y < yMap.length; y++){
+					if(yMap[y] < 0){
+						continue;
+					}
+					int rowOffset = yMap[y] * xSize;
+					int x = 0;
+					while(x < newXSize){
+						int column = xMap[x];
+						if(column < 0){
+							x++;
+							continue;
+						}
+						int run = 1;
+						while(x + run < newXSize && xMap[x + run] == column + run){
+							run++;
+						}
+						System.arraycopy(band, rowOffset + column, newBand, y * newXSize + x, run);
+						x += run;
+					}
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Copies the samples shown by a view of an image of the same sizes (see {@link #getShape()}).
+	 *
+	 * @param view view of the shape of this image
+	 * @return the samples of the view (this image if the view shows it whole and unchanged)
+	 */
+	public IntegerImage remap(ImageView view){
+		return remap(view.zMap, view.yMap, view.xMap);
+	}
+
+	/**
+	 * Permutes the dimensions of the image, as {@link DimensionTranspose} does.
+	 *
+	 * @param permutation dimension permutation (see "-cd")
+	 * @return the permuted image
+	 *
+	 * @throws ParameterException when permutation is not a permutation of 0, 1 and 2
+	 */
+	public IntegerImage transpose(final int[] permutation) throws ParameterException{
+		DimensionTranspose.checkPermutation(permutation);
+		final int[] sizes = {zSize, ySize, xSize};
+		final int[] newSizes = {sizes[permutation[0]], sizes[permutation[1]], sizes[permutation[2]]};
+		final IntegerImage image = new IntegerImage(storage, newSizes[0], newSizes[1], newSizes[2]);
+		Parallel.forEach(newSizes[0], new Parallel.Task(){
+			public void run(int newZ){
+				long[] row = new long[newSizes[2]];
+				int[] position = new int[3];
+				position[permutation[0]] = newZ;
+				for(int newY = 0; newY < newSizes[1]; newY++){
+					position[permutation[1]] = newY;
+					if(permutation[2] == 2){
+						//Rows are kept: the new row is a row of the image
+						get(position[0], position[1] * xSize, xSize, row, 0);
+					}else{
+						for(int newX = 0; newX < newSizes[2]; newX++){
+							position[permutation[2]] = newX;
+							get(position[0], position[1] * xSize + position[2], 1, row, newX);
+						}
+					}
+					image.set(newZ, newY * newSizes[2], newSizes[2], row, 0);
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Image with the sizes of this one and no samples, to compose views of this image (see
+	 * {@link #remap(ImageView)}).
+	 *
+	 * @return an image buffer without components arrays
+	 */
+	public ImageBuffer getShape(){
+		return new ImageBuffer(new float[zSize][], ySize, xSize);
+	}
+
+	/**
+	 * Reads an image of integer samples from a raw file.
+	 *
+	 * @param fileName name of the raw file
+	 * @param geometry image geometry (see "-ig" parameter), of an integer type
+	 * @param storage storage of the samples, which must hold all the values of the type
+	 * @return the image
+	 *
+	 * @throws WarningException when the file does not exist, can not be read or it is smaller than the given geometry
+	 */
+	public static IntegerImage load(String fileName, int[] geometry, int storage) throws WarningException{
+		int sampleType = geometry[3];
+		int sampleBytes = MappedRawImage.getSampleBytes(sampleType);
+		IntegerImage image = new IntegerImage(storage, geometry[0], geometry[1], geometry[2]);
+		long bandSamples = (long) image.ySize * image.xSize;
+		MappedRawImage.checkFile(fileName, image.zSize * bandSamples * sampleBytes);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(RawConverter.CHUNK_SAMPLES * sampleBytes)
+				.order(geometry[4] == 0 ? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN);
+		long[] values = new long[RawConverter.CHUNK_SAMPLES];
+		RandomAccessFile in = null;
+		try{
+			in = new RandomAccessFile(fileName, "r");
+			FileChannel channel = in.getChannel();
+			for(int z = 0; z < image.zSize; z++){
+				for(int p0 = 0; p0 < bandSamples; p0 += RawConverter.CHUNK_SAMPLES){
+					int length = (int) Math.min(RawConverter.CHUNK_SAMPLES, bandSamples - p0);
+					buffer.clear().limit(length * sampleBytes);
+					FlightEvents.IOEvent event = FlightEvents.beginIO();
+					while(buffer.hasRemaining()){
+						if(channel.read(buffer) < 0){
+							throw new IOException("Unexpected end of file.");
+						}
+					}
+					FlightEvents.end(event, fileName, FlightEvents.READ, (z * bandSamples + p0) * sampleBytes, length * sampleBytes);
+					RawConverter.decode(buffer, sampleType, length, values);
+					image.set(z, p0, length, values, 0);
+				}
+			}
+		}catch(IOException e){
+			throw new WarningException("I/O error loading file \"" + fileName + "\".");
+		}finally{
+			try{
+				if(in != null) in.close();
+			}catch(IOException e){
+				throw new WarningException("Error closing file \"" + fileName + "\".");
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Decodes only a window of a memory mapped raw image of integer samples, as
+	 * {@link MappedRawImage#getImage(int[], int, int, int, int)} does. Positions out of the image are
+	 * set to 0.
+	 *
+	 * @param input memory mapped image, of an integer type
+	 * @param components components to decode (in the output order)
+	 * @param y0 first row of the window
+	 * @param x0 first column of the window
+	 * @param yLength height of the window (0 means the whole height)
+	 * @param xLength width of the window (0 means the whole width)
+	 * @param storage storage of the samples, which must hold all the values of the type
+	 * @return the window samples
+	 */
+	public static IntegerImage load(MappedRawImage input, int[] components, int y0, int x0, int yLength, int xLength, int storage){
+		int ySize = input.getYSize();
+		int xSize = input.getXSize();
+		if(yLength == 0){
+			yLength = ySize;
+		}
+		if(xLength == 0){
+			xLength = xSize;
+		}
+		//Columns of the window inside the image
+		int xBegin = Math.max(0, -x0);
+		int xEnd = Math.min(xLength, xSize - x0);
+
+		IntegerImage image = new IntegerImage(storage, components.length, yLength, xLength);
+		long[] row = new long[Math.max(0, xEnd - xBegin)];
+		for(int z = 0; z < components.length; z++){
+			int comp = components[z];
+			if(comp < 0 || comp >= input.getZSize()){
+				continue;
+			}
+			FlightEvents.IOEvent event = FlightEvents.beginIO();
+			for(int y = 0; y < yLength; y++){
+				if(y + y0 < 0 || y + y0 >= ySize || xBegin >= xEnd){
+					continue;
+				}
+				input.getRow(comp, y + y0, x0 + xBegin, xEnd - xBegin, row, 0);
+				image.set(z, y * xLength + xBegin, xEnd - xBegin, row, 0);
+			}
+			int yBegin = Math.max(0, y0);
+			int yEnd = Math.min(ySize, y0 + yLength);
+			long offset = (((long) comp * ySize + yBegin) * xSize + x0 + xBegin) * input.sampleBytes;
+			FlightEvents.end(event, input.fileName, FlightEvents.READ, offset, yBegin < yEnd && xBegin < xEnd ? (long) (yEnd - yBegin) * (xEnd - xBegin) * input.sampleBytes: 0);
+		}
+		return image;
+	}
+
+	/**
+	 * Decodes a whole memory mapped raw image of integer samples.
+	 *
+	 * @param input memory mapped image, of an integer type
+	 * @param storage storage of the samples, which must hold all the values of the type
+	 * @return the image
+	 */
+	public static IntegerImage load(MappedRawImage input, int storage){
+		int[] components = new int[input.getZSize()];
+		for(int z = 0; z < components.length; z++){
+			components[z] = z;
+		}
+		return load(input, components, 0, 0, 0, 0, storage);
+	}
+
+	/**
+	 * Writes the image to a raw file. Samples are clipped to the range of the output type, as
+	 * {@link RawConverter} does.
+	 *
+	 * @param fileName name of the raw file
+	 * @param sampleType data type of the samples (0 to 5, see "-og" parameter)
+	 * @param byteOrder 0 if BIG ENDIAN, 1 if LITTLE ENDIAN
+	 * @param err stream where samples out of range are reported
+	 *
+	 * @throws WarningException when the file can not be written
+	 */
+	public void save(String fileName, int sampleType, int byteOrder, PrintStream err) throws WarningException{
+		int sampleBytes = MappedRawImage.getSampleBytes(sampleType);
+		long bandSamples = (long) ySize * xSize;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(RawConverter.CHUNK_SAMPLES * sampleBytes)
+				.order(byteOrder == 0 ? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN);
+		long[] values = new long[RawConverter.CHUNK_SAMPLES];
+		RawConverter encoder = new RawConverter(err);
+		File file = new File(fileName);
+		if(file.exists()){
+			file.delete();
+		}
+		RandomAccessFile out = null;
+		try{
+			out = new RandomAccessFile(file, "rw");
+			FileChannel channel = out.getChannel();
+			for(int z = 0; z < zSize; z++){
+				for(int p0 = 0; p0 < bandSamples; p0 += RawConverter.CHUNK_SAMPLES){
+					int length = (int) Math.min(RawConverter.CHUNK_SAMPLES, bandSamples - p0);
+					get(z, p0, length, values, 0);
+					buffer.clear().limit(length * sampleBytes);
+					encoder.encode(values, length, sampleType, buffer);
+					FlightEvents.IOEvent event = FlightEvents.beginIO();
+					while(buffer.hasRemaining()){
+						channel.write(buffer);
+					}
+					FlightEvents.end(event, fileName, FlightEvents.WRITE, (z * bandSamples + p0) * sampleBytes, length * sampleBytes);
+				}
+			}
+		}catch(IOException e){
+			throw new WarningException("I/O error saving file \"" + fileName + "\".");
+		}finally{
+			try{
+				if(out != null) out.close();
+			}catch(IOException e){
+				throw new WarningException("Error closing file \"" + fileName + "\".");
+			}
+		}
+		encoder.reportWarnings();
+	}
+
+	public int getStorage(){
+		return(storage);
+	}
+	public int getZSize(){
+		return(zSize);
+	}
+	public int getYSize(){
+		return(ySize);
+	}
+	public int getXSize(){
+		return(xSize);
+	}
+}
@@ -0,0 +1,347 @@
+package ffc;
+
+import java.util.List;
+import GiciException.*;
+import GiciFile.LoadFile;
+
+
+/**
+ * Conversion of raw images of integer samples (types 1 to 5) without widening them to float (see
+ * {@link IntegerImage}). Samples are kept with the width of the input type, so 16 bit images take
+ * half the memory of the float path, and 32 and 64 bit samples are kept exactly from the load to
+ * the save. It is used instead of the float path when the input and output images are raw data of
+ * integer types and all the requested stages have an integer version:
+ *   <ul>
+ *     <li> crop, rotation and permutation of a dimension: views of the image (see {@link ImageView}),
+ *          copied once when a later stage or the save reads them
+ *     <li> dimension permutation ("-cd")
+ *     <li> spectral DPCM and differential reference ("-df") and spatial DPCM ("-sptDpcm"): each of
+ *          them widens the storage once, so that residuals are kept exactly
+ *     <li> reversible spatial and spectral wavelet transforms ("-wt" and "-swt" of types 1 and 8, see
+ *          {@link IntegerWaveletTransform}), which also widen the storage once
+ *     <li> quantization ("-q", see {@link BulkQuantizer}), whose dequantization widens the storage once
+ *   </ul>
+ * The stages are applied in the order planned by {@link PipelinePlanner}; with a memory mapped input
+ * ("-mm") a first crop only decodes its window (see {@link IntegerImage#load(MappedRawImage, int[], int, int, int, int, int)}).
+ * Samples are clipped to the range of the output type when saved, as {@link RawConverter} does.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class IntegerPipeline{
+
+	/**
+	 * Stages with an integer version.
+	 */
+	static final String[] STAGES = {PipelinePlanner.CROP, PipelinePlanner.ROTATE, PipelinePlanner.PD, PipelinePlanner.CD, PipelinePlanner.DF,
+			PipelinePlanner.SPATIAL_DPCM, PipelinePlanner.WT, PipelinePlanner.SWT, PipelinePlanner.Q};
+
+	/**
+	 * Checks whether the conversion requested in the program arguments can be done with integer samples.
+	 *
+	 * @param parser program arguments
+	 * @return null if it can be done with integer samples, otherwise the reason why it can not
+	 */
+	public static String getUnsupportedReason(ArgsParser parser){
+		if(!LoadFile.isRaw(parser.getInputImageFile()) || !LoadFile.isRaw(parser.getOutputImageFile())){
+			return "input and output images must be raw data";
+		}
+		int[] inputImageGeometry = parser.getInputImageGeometry();
+		int[] outputImageGeometry = parser.getOutputImageGeometry();
+		if(!RawConverter.isValidGeometry(inputImageGeometry) || !RawConverter.isValidGeometry(outputImageGeometry)){
+			return "valid input and output image geometries are mandatory";
+		}
+		if(inputImageGeometry[3] < 1 || inputImageGeometry[3] > 5 || outputImageGeometry[3] < 1 || outputImageGeometry[3] > 5){
+			return "input and output samples must be of integer types (1 to 5)";
+		}
+		if(!parser.isTransformRequested()){
+			return "no stage has been requested";
+		}
+		if(parser.getNonNullCoefficientsMap() != 0){
+			return "the map of non-null coefficients is only written by the float path";
+		}
+		for(String stage: PipelinePlanner.DEFAULT_ORDER){
+			if(PipelinePlanner.isRequested(parser, stage) && !isSupported(stage)){
+				return "stage \"" + stage + "\" has no integer version";
+			}
+		}
+		if(PipelinePlanner.isRequested(parser, PipelinePlanner.WT) && !IntegerWaveletTransform.isReversible(parser.getSpatialWaveletType())){
+			return "only the reversible spatial wavelet transforms (types 1 and 8) have an integer version";
+		}
+		if(PipelinePlanner.isRequested(parser, PipelinePlanner.SWT) && !IntegerWaveletTransform.isReversible(parser.getSpectralWaveletType())){
+			return "only the reversible spectral wavelet transforms (types 1 and 8) have an integer version";
+		}
+		if(PipelinePlanner.isRequested(parser, PipelinePlanner.Q) && parser.getQuantization()[2] <= 0){
+			return "the quantization step must be positive";
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether the conversion requested in the program arguments can be done with integer samples.
+	 *
+	 * @param parser program arguments
+	 * @return true if it can be done by this class
+	 */
+	public static boolean isApplicable(ArgsParser parser){
+		return getUnsupportedReason(parser) == null;
+	}
+
+	/**
+	 * Checks whether a stage has an integer version.
+	 */
+	static boolean isSupported(String stage){
+		for(String supported: STAGES){
+			if(supported.equals(stage)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Storage that holds all the values of a pipeline: the one of the input type, widened once for
+	 * each spectral or spatial decorrelation, wavelet transform and dequantization.
+	 *
+	 * @param parser program arguments, with an input image of an integer type
+	 * @param steps steps of the plan (see {@link PipelinePlanner})
+	 * @return the storage (see {@link IntegerImage})
+	 *
+	 * @throws ParameterException when the input type is not an integer type
+	 */
+	public static int getStorage(ArgsParser parser, List<PipelinePlanner.Step> steps) throws ParameterException{
+		int storage = IntegerImage.getStorage(parser.getInputImageGeometry()[3]);
+		for(PipelinePlanner.Step step: steps){
+			if(step.has(PipelinePlanner.DF) || step.has(PipelinePlanner.SPATIAL_DPCM) || step.has(PipelinePlanner.WT) || step.has(PipelinePlanner.SWT)
+					|| (step.has(PipelinePlanner.Q) && parser.getQuantization()[0] == -1)){
+				storage = IntegerImage.widen(storage);
+			}
+		}
+		return storage;
+	}
+
+	/**
+	 * Applies the steps of the plan to an image of integer samples.
+	 *
+	 * @param image image loaded with the storage given by {@link #getStorage(ArgsParser, List)}
+	 * @param steps steps of the plan (see {@link PipelinePlanner}), whose stages must have an integer version
+	 * @param parser program arguments
+	 * @return the resulting image
+	 *
+	 * @throws ParameterException when some parameter is not valid
+	 * @throws ErrorException when the reference component of the differential reference or the levels of the spectral transform are not valid
+	 */
+	public static IntegerImage run(IntegerImage image, List<PipelinePlanner.Step> steps, ArgsParser parser) throws ParameterException, ErrorException{
+		ImageView view = null;
+		for(PipelinePlanner.Step step: steps){
+			String stage = step.getStages().get(0);
+			if(!isSupported(stage)){
+				throw new ParameterException("Stage \"" + stage + "\" has no integer version.");
+			}
+			if(stage.equals(PipelinePlanner.CROP)){
+				view = view == null ? new ImageView(image.getShape()): view;
+				view = view.crop(FormatFileConverter.getCropComponents(step, parser, view.getZSize()), step.y0, step.x0, step.yLength, step.xLength);
+			}else if(stage.equals(PipelinePlanner.ROTATE)){
+				view = (view == null ? new ImageView(image.getShape()): view).rotate();
+			}else if(stage.equals(PipelinePlanner.PD)){
+				int permuteDimension = parser.getPermuteDimension();
+				int[] permutationSequence = parser.getPermutationSequence();
+				if(permuteDimension == -1 || permutationSequence == null){
+					throw new ParameterException("Parameters \"-pd\" and \"-ps\" must be given together.");
+				}
+				view = (view == null ? new ImageView(image.getShape()): view).permute(permuteDimension, permutationSequence);
+			}else{
+				if(view != null){
+					image = image.remap(view);
+					view = null;
+				}
+				if(stage.equals(PipelinePlanner.CD)){
+					image = image.transpose(parser.getChangeDim());
+				}else if(stage.equals(PipelinePlanner.SPATIAL_DPCM)){
+					image = spatialDecorrelate(image, parser.getSpatialDPCM());
+				}else if(stage.equals(PipelinePlanner.WT)){
+					new IntegerWaveletTransform(image, parser.getSpatialWaveletType(), parser.getSpatialWaveletLevel()).runSpatial(parser.getSpatialOrder());
+				}else if(stage.equals(PipelinePlanner.SWT)){
+					new IntegerWaveletTransform(image, parser.getSpectralWaveletType(), parser.getSpectralWaveletLevel()).runSpectral();
+				}else if(stage.equals(PipelinePlanner.Q)){
+					image = quantize(image, parser.getQuantization());
+				}else{
+					image = decorrelate(image, parser.getDPCM(), parser.getDPCMIndex());
+				}
+			}
+		}
+		return view != null ? image.remap(view): image;
+	}
+
+	/**
+	 * Spectral decorrelation of the "-df" parameter, with the same results as {@link SpectralDecorrelator}
+	 * but computed exactly over integer samples. Each tile of pixels is processed concurrently.
+	 *
+	 * @param image image to decorrelate (in place)
+	 * @param dpcm 1 (-1) for the forward (inverse) DPCM, 2 (-2) for the forward (inverse) differential reference
+	 * @param index distance between the components that are not predicted in the DPCM (0 means only the
+	 *        first one), or reference component of the differential reference
+	 * @return the decorrelated image
+	 *
+	 * @throws ErrorException when the reference component is not a component of the image
+	 */
+	static IntegerImage decorrelate(final IntegerImage image, final int dpcm, final int index) throws ErrorException{
+		final int zSize = image.getZSize();
+		if((dpcm == 2 || dpcm == -2) && (index < 0 || index >= zSize)){
+			throw new ErrorException("Reference index is not is the proper range");
+		}
+		final int distance = index == 0 ? zSize: index;
+		final int numPixels = image.getYSize() * image.getXSize();
+		final int tilePixels = Parallel.getTilePixels(numPixels, zSize);
+		int numTiles = (numPixels + tilePixels - 1) / tilePixels;
+		Parallel.forEach(numTiles, new Parallel.Task(){
+			public void run(int tile){
+				int p0 = tile * tilePixels;
+				int length = Math.min(tilePixels, numPixels - p0);
+				long[] current = new long[length];
+				long[] other = new long[length];
+				switch(dpcm){
+				case 1:
+					//Components are predicted from the last one, so the previous one is still original
+					image.get(zSize - 1, p0, length, current, 0);
+					for(int z = zSize - 1; z > 0; z--){
+						image.get(z - 1, p0, length, other, 0);
+						if(z % distance != 0){
+							for(int p = 0; p < length; p++){
+								current[p] -= other[p];
+							}
+							image.set(z, p0, length, current, 0);
+						}
+						long[] swap = current;
+						current = other;
+						other = swap;
+					}
+					break;
+				case -1:
+					//Components are reconstructed from the first one, so the previous one is already reconstructed
+					image.get(0, p0, length, other, 0);
+					for(int z = 1; z < zSize; z++){
+						image.get(z, p0, length, current, 0);
+						if(z % distance != 0){
+							for(int p = 0; p < length; p++){
+								current[p] += other[p];
+							}
+							image.set(z, p0, length, current, 0);
+						}
+						long[] swap = current;
+						current = other;
+						other = swap;
+					}
+					break;
+				case 2:
+				case -2:
+					image.get(index, p0, length, other, 0);
+					for(int z = 0; z < zSize; z++){
+						if(z != index){
+							image.get(z, p0, length, current, 0);
+							if(dpcm > 0){
+								for(int p = 0; p < length; p++){
+									current[p] -= other[p];
+								}
+							}else{
+								for(int p = 0; p < length; p++){
+									current[p] += other[p];
+								}
+							}
+							image.set(z, p0, length, current, 0);
+						}
+					}
+					break;
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Spatial DPCM of the "-sptDpcm" parameter, with the same results as {@link SpatialDPCM} but
+	 * computed exactly over integer samples. Each block of rows of each component is processed
+	 * concurrently.
+	 *
+	 * @param image image to decorrelate (in place)
+	 * @param mode 1 (-1) for the forward (inverse) prediction from the left sample, 2 (-2) for the
+	 *        forward (inverse) prediction from the right sample
+	 * @return the decorrelated image
+	 */
+	static IntegerImage spatialDecorrelate(final IntegerImage image, final int mode){
+		final int ySize = image.getYSize();
+		final int xSize = image.getXSize();
+		final int blockRows = Parallel.getBlockRows(ySize, xSize);
+		final int blocksPerBand = (ySize + blockRows - 1) / blockRows;
+		Parallel.forEach(image.getZSize() * blocksPerBand, new Parallel.Task(){
+			public void run(int task){
+				int z = task / blocksPerBand;
+				int y0 = (task % blocksPerBand) * blockRows;
+				long[] row = new long[xSize];
+				for(int y = y0; y < Math.min(ySize, y0 + blockRows); y++){
+					image.get(z, y * xSize, xSize, row, 0);
+					switch(mode){
+					case 1:
+						//Computed from the end of the row, so each sample is predicted from an original sample
+						for(int x = xSize - 1; x > 0; x--){
+							row[x] -= row[x-1];
+						}
+						break;
+					case -1:
+						for(int x = 1; x < xSize; x++){
+							row[x] += row[x-1];
+						}
+						break;
+					case 2:
+						for(int x = 0; x < xSize - 1; x++){
+							row[x] -= row[x+1];
+						}
+						break;
+					case -2:
+						for(int x = xSize - 2; x >= 0; x--){
+							row[x] += row[x+1];
+						}
+						break;
+					}
+					image.set(z, y * xSize, xSize, row, 0);
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Quantization of the "-q" parameter, with the same results as the float path (see
+	 * {@link BulkQuantizer#quantize(long[], int, int, long[])}). Each block of rows of each component
+	 * is processed concurrently.
+	 *
+	 * @param image image to quantize (in place)
+	 * @param quantization direction (1 to quantize, -1 to dequantize), quantizer type and step
+	 * @return the quantized image
+	 */
+	static IntegerImage quantize(final IntegerImage image, int[] quantization){
+		final boolean forward = quantization[0] == 1;
+		final BulkQuantizer quantizer = new BulkQuantizer(quantization[1], quantization[2]);
+		final int ySize = image.getYSize();
+		final int xSize = image.getXSize();
+		final int blockRows = Parallel.getBlockRows(ySize, xSize);
+		final int blocksPerBand = (ySize + blockRows - 1) / blockRows;
+		Parallel.forEach(image.getZSize() * blocksPerBand, new Parallel.Task(){
+			public void run(int task){
+				int z = task / blocksPerBand;
+				int y0 = (task % blocksPerBand) * blockRows;
+				long[] row = new long[xSize];
+				for(int y = y0; y < Math.min(ySize, y0 + blockRows); y++){
+					image.get(z, y * xSize, xSize, row, 0);
+					if(forward){
+						quantizer.quantize(row, 0, xSize, row);
+					}else{
+						quantizer.dequantize(row, 0, xSize, row);
+					}
+					image.set(z, y * xSize, xSize, row, 0);
+				}
+			}
+		});
+		return image;
+	}
+}
@@ -0,0 +1,300 @@
+package ffc;
+
+import GiciException.*;
+
+
+/**
+ * Reversible discrete wavelet transforms of an {@link IntegerImage} ("-wt" and "-swt" parameters
+ * with the types 1, reversible 5/3, and 8, S-transform). Lines are filtered with the same lifting
+ * steps, borders and order of passes as the GICI transforms used by {@link SpatialWaveletTransform}
+ * and {@link SpectralWaveletTransform}, but over long values: the floors of the GICI filters are
+ * computed with float samples, so results are the same for coefficients up to 2^24, and exact for
+ * any coefficient here.<br>
+ * Each pass of the spatial transform filters blocks of rows (or columns) of all the components
+ * concurrently; the spectral transform filters tiles of spectral vectors concurrently (see
+ * {@link Parallel}).
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class IntegerWaveletTransform{
+
+	/**
+	 * Reversible wavelet types (see "-wt" parameter).
+	 */
+	public static final int REVERSIBLE_53 = 1;
+	public static final int S_TRANSFORM = 8;
+
+	/**
+	 * Image to transform (transformed in place).
+	 */
+	IntegerImage image;
+
+	/**
+	 * Wavelet type ({@link #REVERSIBLE_53} or {@link #S_TRANSFORM}).
+	 */
+	int type;
+
+	/**
+	 * Number of levels.
+	 */
+	int levels;
+
+	/**
+	 * true for the forward transform, false for the inverse one.
+	 */
+	boolean forward;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param image image to transform (transformed in place)
+	 * @param type wavelet type (see "-wt", negative for the inverse transform)
+	 * @param levels number of levels
+	 */
+	public IntegerWaveletTransform(IntegerImage image, int type, int levels){
+		this.image = image;
+		this.type = Math.abs(type);
+		this.levels = levels;
+		this.forward = type > 0;
+	}
+
+	/**
+	 * Checks whether a wavelet type has an integer version.
+	 *
+	 * @param type wavelet type (see "-wt" and "-swt", negative for the inverse transform)
+	 * @return true for the reversible types
+	 */
+	public static boolean isReversible(int type){
+		return Math.abs(type) == REVERSIBLE_53 || Math.abs(type) == S_TRANSFORM;
+	}
+
+	/**
+	 * Computes the spatial transform of each component, as {@link SpatialWaveletTransform} does.
+	 *
+	 * @param order order of the horizontal and vertical passes (see "-wo")
+	 */
+	public void runSpatial(int order){
+		if(levels <= 0){
+			return;
+		}
+		int ySize = image.getYSize();
+		int xSize = image.getXSize();
+		if(forward){
+			int xLength = xSize;
+			int yLength = ySize;
+			for(int level = 0; level < levels; level++){
+				if(order == 0 || order == 2){
+					filterRows(yLength, xLength);
+				}
+				if(order != 2){
+					filterColumns(xLength, yLength);
+				}
+				if(order == 1){
+					filterRows(yLength, xLength);
+				}
+				xLength = xLength / 2 + xLength % 2;
+				if(order != 2){
+					yLength = yLength / 2 + yLength % 2;
+				}
+			}
+		}else{
+			//Sizes of the low pass band of each level, from the deepest one
+			int[] xLengths = new int[levels];
+			int[] yLengths = new int[levels];
+			xLengths[levels - 1] = xSize;
+			yLengths[levels - 1] = ySize;
+			for(int level = levels - 2; level >= 0; level--){
+				xLengths[level] = xLengths[level + 1] / 2 + xLengths[level + 1] % 2;
+				yLengths[level] = yLengths[level + 1] / 2 + yLengths[level + 1] % 2;
+			}
+			for(int level = 0; level < levels; level++){
+				int xLength = xLengths[level];
+				int yLength = order == 2 ? ySize: yLengths[level];
+				if(order == 0){
+					filterColumns(xLength, yLength);
+				}
+				filterRows(yLength, xLength);
+				if(order == 1){
+					filterColumns(xLength, yLength);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the spectral transform of each pixel, as {@link SpectralWaveletTransform} does.
+	 *
+	 * @throws ErrorException when the levels are negative
+	 */
+	public void runSpectral() throws ErrorException{
+		if(levels < 0){
+			throw new ErrorException("All the transform levels to apply must be no negative.");
+		}
+		if(levels == 0){
+			return;
+		}
+		final int zSize = image.getZSize();
+		final int numPixels = image.getYSize() * image.getXSize();
+		final int tilePixels = Parallel.getTilePixels(numPixels, zSize);
+		int numTiles = (numPixels + tilePixels - 1) / tilePixels;
+		//Length of the spectral vectors filtered at each level
+		final int[] lengths = new int[levels];
+		if(forward){
+			lengths[0] = zSize;
+			for(int level = 1; level < levels; level++){
+				lengths[level] = lengths[level - 1] / 2 + lengths[level - 1] % 2;
+			}
+		}else{
+			lengths[levels - 1] = zSize;
+			for(int level = levels - 2; level >= 0; level--){
+				lengths[level] = lengths[level + 1] / 2 + lengths[level + 1] % 2;
+			}
+		}
+		Parallel.forEach(numTiles, new Parallel.Task(){
+			public void run(int tile){
+				int p0 = tile * tilePixels;
+				int pixels = Math.min(tilePixels, numPixels - p0);
+				long[][] components = new long[zSize][pixels];
+				for(int z = 0; z < zSize; z++){
+					image.get(z, p0, pixels, components[z], 0);
+				}
+				long[] vector = new long[zSize];
+				long[] buffer = new long[zSize];
+				for(int p = 0; p < pixels; p++){
+					for(int z = 0; z < zSize; z++){
+						vector[z] = components[z][p];
+					}
+					for(int level = 0; level < lengths.length; level++){
+						filter(vector, lengths[level], buffer);
+					}
+					for(int z = 0; z < zSize; z++){
+						components[z][p] = vector[z];
+					}
+				}
+				for(int z = 0; z < zSize; z++){
+					image.set(z, p0, pixels, components[z], 0);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Filters the first numRows rows of each component (only their first length samples).
+	 */
+	void filterRows(final int numRows, final int length){
+		final int xSize = image.getXSize();
+		final int blockRows = Parallel.getBlockRows(numRows, length);
+		final int blocksPerBand = (numRows + blockRows - 1) / blockRows;
+		Parallel.forEach(image.getZSize() * blocksPerBand, new Parallel.Task(){
+			public void run(int task){
+				int z = task / blocksPerBand;
+				int y0 = (task % blocksPerBand) * blockRows;
+				long[] line = new long[length];
+				long[] buffer = new long[length];
+				for(int y = y0; y < Math.min(numRows, y0 + blockRows); y++){
+					image.get(z, y * xSize, length, line, 0);
+					filter(line, length, buffer);
+					image.set(z, y * xSize, length, line, 0);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Filters the first numColumns columns of each component (only their first length samples).
+	 */
+	void filterColumns(final int numColumns, final int length){
+		final int xSize = image.getXSize();
+		final int blockColumns = Parallel.getBlockRows(numColumns, length);
+		final int blocksPerBand = (numColumns + blockColumns - 1) / blockColumns;
+		Parallel.forEach(image.getZSize() * blocksPerBand, new Parallel.Task(){
+			public void run(int task){
+				int z = task / blocksPerBand;
+				int x0 = (task % blocksPerBand) * blockColumns;
+				int columns = Math.min(blockColumns, numColumns - x0);
+				long[][] lines = new long[columns][length];
+				long[] row = new long[columns];
+				long[] buffer = new long[length];
+				for(int y = 0; y < length; y++){
+					image.get(z, y * xSize + x0, columns, row, 0);
+					for(int column = 0; column < columns; column++){
+						lines[column][y] = row[column];
+					}
+				}
+				for(int column = 0; column < columns; column++){
+					filter(lines[column], length, buffer);
+				}
+				for(int y = 0; y < length; y++){
+					for(int column = 0; column < columns; column++){
+						row[column] = lines[column][y];
+					}
+					image.set(z, y * xSize + x0, columns, row, 0);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Filters one line with one level of the transform. The forward transform leaves the low pass
+	 * coefficients in the first half of the line (its first (length+1)/2 samples) and the high pass
+	 * ones after them, and the inverse transform takes them that way.
+	 *
+	 * @param line samples of the line (filtered in place)
+	 * @param length number of samples of the line to filter
+	 * @param buffer array of at least length samples to (de)interleave the coefficients
+	 */
+	void filter(long[] line, int length, long[] buffer){
+		if(length <= 1){
+			return;
+		}
+		int lowLength = (length + 1) / 2;
+		if(forward){
+			if(type == REVERSIBLE_53){
+				//Prediction of the odd samples and update of the even ones, with symmetric borders
+				for(int i = 1; i < length; i += 2){
+					long right = i + 1 < length ? line[i + 1]: line[i - 1];
+					line[i] -= (line[i - 1] + right) >> 1;
+				}
+				for(int i = 0; i < length; i += 2){
+					long left = i > 0 ? line[i - 1]: line[i + 1];
+					long right = i + 1 < length ? line[i + 1]: line[i - 1];
+					line[i] += (left + right + 2) >> 2;
+				}
+			}else{
+				//The last sample of an odd line is left unchanged
+				for(int i = 0; i + 1 < length; i += 2){
+					long difference = line[i] - line[i + 1];
+					line[i] = line[i + 1] + (difference >> 1);
+					line[i + 1] = difference;
+				}
+			}
+			for(int i = 0; i < length; i++){
+				buffer[(i & 1) == 0 ? i >> 1: lowLength + (i >> 1)] = line[i];
+			}
+			System.arraycopy(buffer, 0, line, 0, length);
+		}else{
+			System.arraycopy(line, 0, buffer, 0, length);
+			for(int i = 0; i < length; i++){
+				line[i] = buffer[(i & 1) == 0 ? i >> 1: lowLength + (i >> 1)];
+			}
+			if(type == REVERSIBLE_53){
+				for(int i = 0; i < length; i += 2){
+					long left = i > 0 ? line[i - 1]: line[i + 1];
+					long right = i + 1 < length ? line[i + 1]: line[i - 1];
+					line[i] -= (left + right + 2) >> 2;
+				}
+				for(int i = 1; i < length; i += 2){
+					long right = i + 1 < length ? line[i + 1]: line[i - 1];
+					line[i] += (line[i - 1] + right) >> 1;
+				}
+			}else{
+				for(int i = 0; i + 1 < length; i += 2){
+					long second = line[i] - (line[i + 1] >> 1);
+					line[i] = line[i + 1] + second;
+					line[i + 1] = second;
+				}
+			}
+		}
+	}
+}
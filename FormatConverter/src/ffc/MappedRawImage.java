@@ -0,0 +1,410 @@
+package ffc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import GiciException.*;
+
+
+/**
+ * Memory mapped access to raw image files (".raw" or ".img"). The file is mapped in segments of
+ * at most {@link #SEGMENT_SIZE} bytes, so images larger than 2 GB (and larger than the heap) can be
+ * handled. Samples are only decoded when they are requested, so the time spent loading is
+ * proportional to the samples actually touched.<br>
+ * Samples are decoded to float exactly as GiciFile.LoadFile does for raw data.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class MappedRawImage{
+
+	/**
+	 * Name of the raw file.
+	 */
+	String fileName;
+
+	/**
+	 * Bits of the size of each mapped segment.
+	 */
+	static final int SEGMENT_BITS = 30;
+
+	/**
+	 * Size in bytes of each mapped segment (it is a multiple of all the sample sizes, so a sample never spans two segments).
+	 */
+	static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+	/**
+	 * Image dimensions.
+	 */
+	int zSize;
+	int ySize;
+	int xSize;
+
+	/**
+	 * Sample type of the raw data (see "-ig" in {@link ArgsParser}).
+	 */
+	int sampleType;
+
+	/**
+	 * Number of bytes of each sample.
+	 */
+	int sampleBytes;
+
+	/**
+	 * Mapped segments of the file (already set to the byte order of the data).
+	 */
+	ByteBuffer[] segments = null;
+
+	/**
+	 * Bytes of the samples decoded so far.
+	 */
+	AtomicLong bytesRead = new AtomicLong();
+
+	/**
+	 * Constructor that maps the file. No sample is read here.
+	 *
+	 * @param fileName name of the raw file
+	 * @param zSize number of image components
+	 * @param ySize image height
+	 * @param xSize image width
+	 * @param sampleType data type of the samples (0 to 7, see "-ig" parameter)
+	 * @param byteOrder 0 if BIG ENDIAN, 1 if LITTLE ENDIAN
+	 *
+	 * @throws WarningException when the file does not exist, can not be read or mapped, or it is smaller than the given geometry
+	 */
+	public MappedRawImage(String fileName, int zSize, int ySize, int xSize, int sampleType, int byteOrder) throws WarningException{
+		this.fileName = fileName;
+		this.zSize = zSize;
+		this.ySize = ySize;
+		this.xSize = xSize;
+		this.sampleType = sampleType;
+		this.sampleBytes = getSampleBytes(sampleType);
+
+		long imageBytes = (long) zSize * ySize * xSize * sampleBytes;
+		File file = checkFile(fileName, imageBytes);
+		ByteOrder order = byteOrder == 0 ? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+		int numSegments = (int) ((imageBytes + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+		segments = new ByteBuffer[numSegments];
+		RandomAccessFile raf = null;
+		try{
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			for(int s = 0; s < numSegments; s++){
+				long position = (long) s << SEGMENT_BITS;
+				long size = Math.min(SEGMENT_SIZE, imageBytes - position);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(order);
+			}
+		}catch(IOException e){
+			throw new WarningException("File \"" + fileName + "\" can not be mapped: " + e.getMessage());
+		}finally{
+			//Mappings remain valid once the channel is closed
+			if(raf != null){
+				try{
+					raf.close();
+				}catch(IOException e){
+					throw new WarningException("Error closing file \"" + fileName + "\".");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that a raw file can be read and holds the samples of the given geometry.
+	 *
+	 * @param fileName name of the raw file
+	 * @param imageBytes bytes of the samples of the image
+	 * @return the file
+	 *
+	 * @throws WarningException when the file does not exist, can not be read or it is smaller than the given geometry
+	 */
+	static File checkFile(String fileName, long imageBytes) throws WarningException{
+		File file = new File(fileName);
+		if(!file.exists()){
+			throw new WarningException("File \"" + fileName + "\" does not exist.");
+		}
+		if(!file.canRead()){
+			throw new WarningException("File \"" + fileName + "\" can not be read.");
+		}
+		if(file.length() < imageBytes){
+			throw new WarningException("File \"" + fileName + "\" is smaller than the given image geometry.");
+		}
+		return file;
+	}
+
+	/**
+	 * Returns the number of bytes used by each sample of the given type.
+	 *
+	 * @param sampleType data type of the samples (0 to 7, see "-ig" parameter)
+	 * @return the size of a sample in bytes
+	 *
+	 * @throws WarningException when the type is not valid
+	 */
+	public static int getSampleBytes(int sampleType) throws WarningException{
+		switch(sampleType){
+		case 0:
+		case 1:
+			return 1;
+		case 2:
+		case 3:
+			return 2;
+		case 4:
+		case 6:
+			return 4;
+		case 5:
+		case 7:
+			return 8;
+		default:
+			throw new WarningException("Image type in \".raw\" or \".img\" data must be between 0 to 7.");
+		}
+	}
+
+	/**
+	 * Decodes a run of samples of one row. This method only adds the bytes decoded to
+	 * {@link #bytesRead}, so it can be called concurrently.
+	 *
+	 * @param z component of the row
+	 * @param y row
+	 * @param x0 first column to decode
+	 * @param length number of samples to decode
+	 * @param dst array where samples are stored
+	 * @param dstOffset position of dst where the first sample is stored
+	 */
+	public void getRow(int z, int y, int x0, int length, float[] dst, int dstOffset){
+		long position = (((long) z * ySize + y) * xSize + x0) * sampleBytes;
+		bytesRead.addAndGet((long) length * sampleBytes);
+		int remaining = length;
+		while(remaining > 0){
+			ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+			int index = (int) (position & (SEGMENT_SIZE - 1));
+			//Samples of the run that lay in this segment
+			int run = (int) Math.min(remaining, (SEGMENT_SIZE - index) / sampleBytes);
+			decodeRun(segment, index, run, dst, dstOffset);
+			dstOffset += run;
+			remaining -= run;
+			position += (long) run * sampleBytes;
+		}
+	}
+
+	/**
+	 * Decodes consecutive samples of one segment. The loops are kept type specific so that no type check is done per sample.
+	 *
+	 * @param segment mapped segment where samples are
+	 * @param index byte position of the first sample in the segment
+	 * @param length number of samples
+	 * @param dst array where samples are stored
+	 * @param dstOffset position of dst where the first sample is stored
+	 */
+	void decodeRun(ByteBuffer segment, int index, int length, float[] dst, int dstOffset){
+		switch(sampleType){
+		case 0:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.get(index + i) == 0 ? 0f: 1f;
+			}
+			break;
+		case 1:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.get(index + i) & 0xff;
+			}
+			break;
+		case 2:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getChar(index + (i << 1));
+			}
+			break;
+		case 3:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getShort(index + (i << 1));
+			}
+			break;
+		case 4:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getInt(index + (i << 2));
+			}
+			break;
+		case 5:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getLong(index + (i << 3));
+			}
+			break;
+		case 6:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getFloat(index + (i << 2));
+			}
+			break;
+		case 7:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = (float) segment.getDouble(index + (i << 3));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Decodes a run of samples of one row as integers, without the rounding of
+	 * {@link #getRow(int, int, int, int, float[], int)} (only for the integer types, 0 to 5). This
+	 * method only adds the bytes decoded to {@link #bytesRead}, so it can be called concurrently.
+	 *
+	 * @param z component of the row
+	 * @param y row
+	 * @param x0 first column to decode
+	 * @param length number of samples to decode
+	 * @param dst array where samples are stored
+	 * @param dstOffset position of dst where the first sample is stored
+	 */
+	public void getRow(int z, int y, int x0, int length, long[] dst, int dstOffset){
+		long position = (((long) z * ySize + y) * xSize + x0) * sampleBytes;
+		bytesRead.addAndGet((long) length * sampleBytes);
+		int remaining = length;
+		while(remaining > 0){
+			ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+			int index = (int) (position & (SEGMENT_SIZE - 1));
+			int run = (int) Math.min(remaining, (SEGMENT_SIZE - index) / sampleBytes);
+			decodeRun(segment, index, run, dst, dstOffset);
+			dstOffset += run;
+			remaining -= run;
+			position += (long) run * sampleBytes;
+		}
+	}
+
+	/**
+	 * Decodes consecutive integer samples of one segment.
+	 *
+	 * @param segment mapped segment where samples are
+	 * @param index byte position of the first sample in the segment
+	 * @param length number of samples
+	 * @param dst array where samples are stored
+	 * @param dstOffset position of dst where the first sample is stored
+	 */
+	void decodeRun(ByteBuffer segment, int index, int length, long[] dst, int dstOffset){
+		switch(sampleType){
+		case 0:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.get(index + i) == 0 ? 0: 1;
+			}
+			break;
+		case 1:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.get(index + i) & 0xff;
+			}
+			break;
+		case 2:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getChar(index + (i << 1));
+			}
+			break;
+		case 3:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getShort(index + (i << 1));
+			}
+			break;
+		case 4:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getInt(index + (i << 2));
+			}
+			break;
+		case 5:
+			for(int i = 0; i < length; i++){
+				dst[dstOffset + i] = segment.getLong(index + (i << 3));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Decodes one whole component.
+	 *
+	 * @param z component to decode
+	 * @return the component samples (row after row)
+	 */
+	public float[] getBand(int z){
+		float[] band = new float[ImageBuffer.getBandSize(ySize, xSize)];
+		FlightEvents.IOEvent event = FlightEvents.beginIO();
+		for(int y = 0; y < ySize; y++){
+			getRow(z, y, 0, xSize, band, y * xSize);
+		}
+		FlightEvents.end(event, fileName, FlightEvents.READ, (long) z * band.length * sampleBytes, (long) band.length * sampleBytes);
+		return band;
+	}
+
+	/**
+	 * Decodes the whole image.
+	 *
+	 * @return the image samples
+	 */
+	public ImageBuffer getImage(){
+		float[][] bands = new float[zSize][];
+		FlightEvents.allocated("MappedRawImage.getImage", zSize, ySize, xSize);
+		for(int z = 0; z < zSize; z++){
+			bands[z] = getBand(z);
+		}
+		return new ImageBuffer(bands, ySize, xSize);
+	}
+
+	/**
+	 * Decodes only a window of the image. Positions out of the image are set to 0, as
+	 * {@link TransformImage#cropImage(int, int, int, int, int, int)} does.
+	 *
+	 * @param components components to decode (in the output order)
+	 * @param y0 first row of the window
+	 * @param x0 first column of the window
+	 * @param yLength height of the window (0 means the whole height)
+	 * @param xLength width of the window (0 means the whole width)
+	 * @return the window samples
+	 */
+	public ImageBuffer getImage(int[] components, int y0, int x0, int yLength, int xLength){
+		if(yLength == 0){
+			yLength = ySize;
+		}
+		if(xLength == 0){
+			xLength = xSize;
+		}
+		//Columns of the window inside the image
+		int xBegin = Math.max(0, -x0);
+		int xEnd = Math.min(xLength, xSize - x0);
+
+		ImageBuffer image = new ImageBuffer(components.length, yLength, xLength);
+		for(int z = 0; z < components.length; z++){
+			int comp = components[z];
+			if(comp < 0 || comp >= zSize){
+				continue;
+			}
+			float[] band = image.getBand(z);
+			FlightEvents.IOEvent event = FlightEvents.beginIO();
+			for(int y = 0; y < yLength; y++){
+				if(y + y0 < 0 || y + y0 >= ySize || xBegin >= xEnd){
+					continue;
+				}
+				getRow(comp, y + y0, x0 + xBegin, xEnd - xBegin, band, y * xLength + xBegin);
+			}
+			//The chunk spans from the first row of the window to its last one
+			int yBegin = Math.max(0, y0);
+			int yEnd = Math.min(ySize, y0 + yLength);
+			long offset = (((long) comp * ySize + yBegin) * xSize + x0 + xBegin) * sampleBytes;
+			FlightEvents.end(event, fileName, FlightEvents.READ, offset, yBegin < yEnd && xBegin < xEnd ? (long) (yEnd - yBegin) * (xEnd - xBegin) * sampleBytes: 0);
+		}
+		return image;
+	}
+
+	/**
+	 * @return the bytes of the samples decoded so far (samples decoded several times are counted each time)
+	 */
+	public long getBytesRead(){
+		return(bytesRead.get());
+	}
+	public int getZSize(){
+		return(zSize);
+	}
+	public int getYSize(){
+		return(ySize);
+	}
+	public int getXSize(){
+		return(xSize);
+	}
+	public int getSampleType(){
+		return(sampleType);
+	}
+}
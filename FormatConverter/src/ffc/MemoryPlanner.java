@@ -0,0 +1,591 @@
+package ffc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import GiciException.*;
+import GiciFile.LoadFile;
+import GiciFile.SaveFile;
+
+
+/**
+ * Memory plan of a conversion ("-dr" and "-hb" parameters). Before the input image is loaded, the
+ * peak of heap memory of each step of the plan (see {@link PipelinePlanner}) and the number of passes
+ * over the image are estimated from the input image geometry, counting the images that are held at
+ * once by each step:
+ *   <ul>
+ *     <li> the load keeps the image read by the GICI libraries (one array for each row) while it is
+ *          copied to an {@link ImageBuffer}, except for memory mapped inputs
+ *     <li> stages computed in place only need their working buffers (a copy of a component for each
+ *          thread in the spatial wavelet transform, tiles of spectral vectors in the spectral ones)
+ *     <li> the removal of null coefficients, the dimension permutation and the copy of a view hold the
+ *          old and the new image at once (whole components of a view are shared, see {@link ImageView#toBuffer()})
+ *     <li> the save needs the buffers of {@link RawImageWriter}, or a copy to one array for each row for
+ *          the other formats
+ *   </ul>
+ * Conversions done with integer samples (see {@link IntegerPipeline}) are estimated with the bytes
+ * of the storage of their samples instead.
+ * Strip streaming (see {@link StripStreamer}) and out of core permutation (see {@link OutOfCoreTranspose})
+ * are estimated too, when the conversion can be done that way. With a heap budget, the conversion is
+ * run in memory when its peak fits in the budget, otherwise by strips or out of core, with strips or
+ * slabs as large as the budget allows.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class MemoryPlanner{
+
+	/**
+	 * Executions of a conversion.
+	 */
+	public static final int NONE = -1;
+	public static final int IN_CORE = 0;
+	public static final int STRIPS = 1;
+	public static final int OUT_OF_CORE = 2;
+	public static final int RAW_TO_RAW = 3;
+
+	/**
+	 * Bytes of a sample and of the header of an array.
+	 */
+	static final long SAMPLE_BYTES = 4;
+	static final long ARRAY_BYTES = 16;
+
+	/**
+	 * Estimate of one step.
+	 */
+	static class Estimate{
+
+		/**
+		 * Description of the step.
+		 */
+		String description;
+
+		/**
+		 * Sizes of the image after the step.
+		 */
+		int[] sizes;
+
+		/**
+		 * Peak of memory of the step, in bytes.
+		 */
+		long peak;
+
+		/**
+		 * Number of passes over the image.
+		 */
+		int passes;
+
+		Estimate(String description, int[] sizes, long peak, int passes){
+			this.description = description;
+			this.sizes = sizes;
+			this.peak = peak;
+			this.passes = passes;
+		}
+	}
+
+	/**
+	 * Program arguments.
+	 */
+	ArgsParser parser;
+
+	/**
+	 * Heap budget, in bytes.
+	 */
+	long budget;
+
+	/**
+	 * Estimates of the steps of the conversion in memory (or of the raw to raw conversion).
+	 */
+	List<Estimate> estimates = new ArrayList<Estimate>();
+
+	/**
+	 * Peak of memory and passes of the conversion in memory.
+	 */
+	long inCorePeak = 0;
+	int inCorePasses = 0;
+
+	/**
+	 * Strip streaming: reason why it can not be used (null if it can), strip height and peak of memory.
+	 */
+	String stripReason;
+	int stripHeight = 0;
+	long stripPeak = 0;
+
+	/**
+	 * Out of core permutation: reason why it can not be used (null if it can), budget in MB and peak of memory.
+	 */
+	String outOfCoreReason;
+	int outOfCoreBudget = 0;
+	long outOfCorePeak = 0;
+
+	/**
+	 * Execution chosen for the budget.
+	 */
+	int execution = NONE;
+
+	/**
+	 * Constructor that estimates the memory of the conversion requested in the program arguments and
+	 * chooses its execution.
+	 *
+	 * @param parser program arguments
+	 * @param budget heap budget in bytes
+	 *
+	 * @throws ParameterException when the input image is not raw data with a valid geometry, or the plan is not valid
+	 */
+	public MemoryPlanner(ArgsParser parser, long budget) throws ParameterException{
+		this.parser = parser;
+		this.budget = budget;
+		int[] inputImageGeometry = parser.getInputImageGeometry();
+		if(!LoadFile.isRaw(parser.getInputImageFile()) || !RawConverter.isValidGeometry(inputImageGeometry)){
+			throw new ParameterException("Memory can only be estimated for raw input images with a valid geometry (\"-ig\").");
+		}
+		int[] sizes = {inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2]};
+
+		if(RawConverter.isApplicable(parser)){
+			//Samples are converted by chunks
+			inCorePeak = getWriterBytes(getSamples(sizes, 0)) + RawConverter.CHUNK_SAMPLES * (8 + SAMPLE_BYTES);
+			inCorePasses = 1;
+			estimates.add(new Estimate("raw to raw conversion", sizes, inCorePeak, 1));
+			execution = RAW_TO_RAW;
+			return;
+		}
+		if(IntegerPipeline.isApplicable(parser)){
+			estimateInteger(sizes);
+		}else{
+			estimateInCore(sizes);
+		}
+		estimateStrips(sizes);
+		estimateOutOfCore(sizes);
+		chooseExecution();
+	}
+
+	/**
+	 * Estimates the conversion in memory, step by step.
+	 *
+	 * @param sizes sizes of the input image
+	 *
+	 * @throws ParameterException when the plan is not valid
+	 */
+	void estimateInCore(int[] sizes) throws ParameterException{
+		List<PipelinePlanner.Step> steps = new PipelinePlanner(parser, sizes[0], sizes[1], sizes[2]).getSteps();
+		int threads = Parallel.getThreads();
+
+		//LOAD
+		long image;
+		int firstStep = 0;
+		if(parser.getMemoryMappedInput()){
+			String description = "load (memory mapped)";
+			if(!steps.isEmpty() && steps.get(0).getExecution() == PipelinePlanner.AT_LOAD){
+				description = "load (memory mapped), " + steps.get(0).getDescription();
+				sizes = steps.get(0).getSizes();
+				firstStep = 1;
+			}
+			image = getBufferBytes(sizes, 0);
+			add(description, sizes, image, 1);
+		}else{
+			image = getBufferBytes(sizes, 0);
+			add("load", sizes, getJaggedBytes(sizes) + getBandBytes(sizes), 1);
+		}
+
+		//STEPS
+		boolean sharesComponents = true;
+		for(int numStep = firstStep; numStep < steps.size(); numStep++){
+			PipelinePlanner.Step step = steps.get(numStep);
+			String stage = step.getStages().get(0);
+			long samples = getSamples(sizes, image / SAMPLE_BYTES);
+			int[] newSizes = step.getSizes();
+			long peak = image;
+			if(step.copiesView()){
+				long copy = sharesComponents ? 0: getBufferBytes(sizes, samples);
+				peak = image + copy;
+				image = sharesComponents ? getBufferBytes(sizes, samples): copy;
+				sharesComponents = true;
+			}
+			switch(step.getExecution()){
+			case PipelinePlanner.VIEW:
+				//Only the maps of the positions are created
+				if(stage.equals(PipelinePlanner.CROP)){
+					sharesComponents &= step.y0 == 0 && step.x0 == 0 && (step.yLength == 0 || step.yLength == sizes[1])
+							&& (step.xLength == 0 || step.xLength == sizes[2]);
+				}else{
+					sharesComponents &= stage.equals(PipelinePlanner.PD) && parser.getPermuteDimension() == 0;
+				}
+				break;
+			case PipelinePlanner.COPY:
+				long copy = getBufferBytes(newSizes, samples);
+				peak += copy;
+				image = copy;
+				break;
+			default:
+				peak += getWorkingBytes(step, sizes, threads);
+				break;
+			}
+			add(step.getDescription(), newSizes, peak, step.getPasses());
+			sizes = newSizes;
+		}
+
+		//SAVE
+		long samples = getSamples(sizes, image / SAMPLE_BYTES);
+		int[] outputImageGeometry = parser.getOutputImageGeometry();
+		int format;
+		try{
+			format = SaveFile.getFormat(parser.getOutputImageFile());
+		}catch(WarningException e){
+			throw new ParameterException(e.getMessage());
+		}
+		long peak;
+		if(format == 5 && outputImageGeometry != null && outputImageGeometry.length == 6){
+			peak = image + getWriterBytes((long) Math.max(0, sizes[1]) * Math.max(0, sizes[2]));
+		}else if(!steps.isEmpty() && steps.get(steps.size() - 1).getExecution() == PipelinePlanner.VIEW){
+			peak = image + getJaggedBytes(sizes);
+		}else{
+			//Components are released as they are copied
+			peak = image + getBandBytes(sizes) + (getJaggedBytes(sizes) - samples * SAMPLE_BYTES);
+		}
+		add("save", sizes, peak, 1);
+	}
+
+	/**
+	 * Estimates the conversion in memory with integer samples (see {@link IntegerPipeline}), step by
+	 * step. Samples take the bytes of the storage of the pipeline, and views are copied to a new
+	 * image (components are never shared).
+	 *
+	 * @param sizes sizes of the input image
+	 *
+	 * @throws ParameterException when the plan is not valid
+	 */
+	void estimateInteger(int[] sizes) throws ParameterException{
+		List<PipelinePlanner.Step> steps = new PipelinePlanner(parser, sizes[0], sizes[1], sizes[2]).getSteps();
+		int threads = Parallel.getThreads();
+		long sampleBytes = IntegerImage.STORAGE_BYTES[IntegerPipeline.getStorage(parser, steps)];
+		//Samples are read and written by chunks (or rows) of long values
+		long chunkBytes = ARRAY_BYTES + RawConverter.CHUNK_SAMPLES * 8L;
+
+		//LOAD
+		int firstStep = 0;
+		String description = "load (integer samples)";
+		if(parser.getMemoryMappedInput()){
+			description = "load (integer samples, memory mapped)";
+			if(!steps.isEmpty() && steps.get(0).getExecution() == PipelinePlanner.AT_LOAD){
+				description += ", " + steps.get(0).getDescription();
+				sizes = steps.get(0).getSizes();
+				firstStep = 1;
+			}
+		}
+		long image = getIntegerBytes(sizes, sampleBytes);
+		add(description, sizes, image + chunkBytes, 1);
+
+		//STEPS
+		for(int numStep = firstStep; numStep < steps.size(); numStep++){
+			PipelinePlanner.Step step = steps.get(numStep);
+			String stage = step.getStages().get(0);
+			int[] newSizes = step.getSizes();
+			long peak = image;
+			if(step.copiesView()){
+				long copy = getIntegerBytes(sizes, sampleBytes);
+				peak = image + copy;
+				image = copy;
+			}
+			switch(step.getExecution()){
+			case PipelinePlanner.VIEW:
+				break;
+			case PipelinePlanner.COPY:
+				long copy = getIntegerBytes(newSizes, sampleBytes);
+				peak += copy;
+				image = copy;
+				break;
+			default:
+				//Tiles of spectral vectors, blocks of columns or rows, read and written as long values
+				if(stage.equals(PipelinePlanner.DF) || stage.equals(PipelinePlanner.SWT)){
+					peak += 2L * threads * Parallel.TILE_SAMPLES * 8;
+				}else if(stage.equals(PipelinePlanner.WT)){
+					long block = Math.max(Math.min(Parallel.ROW_BLOCK_SAMPLES, (long) sizes[1] * sizes[2]), Math.max(sizes[1], sizes[2]));
+					peak += 2L * threads * block * 8;
+				}else{
+					peak += threads * (ARRAY_BYTES + 8L * sizes[2]);
+				}
+				break;
+			}
+			add(step.getDescription(), newSizes, peak, step.getPasses());
+			sizes = newSizes;
+		}
+
+		//SAVE
+		long peak = image + chunkBytes;
+		if(!steps.isEmpty() && steps.get(steps.size() - 1).getExecution() == PipelinePlanner.VIEW){
+			peak += getIntegerBytes(sizes, sampleBytes);
+		}
+		add("save", sizes, peak, 1);
+	}
+
+	/**
+	 * Memory of an {@link IntegerImage} (one array for each component).
+	 *
+	 * @param sizes image sizes
+	 * @param sampleBytes bytes of each sample of the storage
+	 * @return the memory in bytes
+	 */
+	static long getIntegerBytes(int[] sizes, long sampleBytes){
+		return Math.max(0, sizes[0]) * (ARRAY_BYTES + (long) Math.max(0, sizes[1]) * Math.max(0, sizes[2]) * sampleBytes);
+	}
+
+	/**
+	 * Adds the estimate of a step of the conversion in memory.
+	 */
+	void add(String description, int[] sizes, long peak, int passes){
+		estimates.add(new Estimate(description, sizes, peak, passes));
+		inCorePeak = Math.max(inCorePeak, peak);
+		inCorePasses += passes;
+	}
+
+	/**
+	 * Memory used by a stage computed in place, besides the image.
+	 *
+	 * @param step step of the plan
+	 * @param sizes sizes of the image
+	 * @param threads number of threads
+	 * @return the memory in bytes
+	 */
+	long getWorkingBytes(PipelinePlanner.Step step, int[] sizes, int threads){
+		String stage = step.getStages().get(0);
+		if(stage.equals(PipelinePlanner.WT)){
+			//Each thread copies a whole component, and the GICI transform copies it again
+			if(sizes[0] >= threads){
+				return 2L * threads * getRowsBytes(sizes[1], sizes[2]);
+			}
+			return 2L * threads * Parallel.ROW_BLOCK_SAMPLES * SAMPLE_BYTES;
+		}else if(stage.equals(PipelinePlanner.SWT) || stage.equals(PipelinePlanner.DF)){
+			return 2L * threads * Parallel.TILE_SAMPLES * SAMPLE_BYTES;
+		}else if(step.has(PipelinePlanner.RM)){
+			//Range modification may encode a whole component as 8 bit samples
+			return ARRAY_BYTES + (long) sizes[1] * sizes[2];
+		}
+		return 0;
+	}
+
+	/**
+	 * Estimates the conversion by strips. The strip height is the one given with "-ss" or the largest
+	 * one that fits in the budget.
+	 *
+	 * @param sizes sizes of the input image
+	 */
+	void estimateStrips(int[] sizes){
+		stripReason = StripStreamer.getUnsupportedReason(parser);
+		if(stripReason != null){
+			return;
+		}
+		int yLength = parser.getYLength() != 0 ? parser.getYLength(): sizes[1];
+		int xLength = parser.getXLength() != 0 ? parser.getXLength(): sizes[2];
+		long rowBytes = ARRAY_BYTES + xLength * SAMPLE_BYTES;
+		if(parser.getStripStreaming() > 0){
+			stripHeight = parser.getStripStreaming();
+		}else{
+			//Each row needs its samples and their encoding for the output
+			stripHeight = (int) Math.max(0, Math.min(yLength, budget / (rowBytes + getWriterBytes(xLength))));
+			if(stripHeight == 0){
+				stripReason = "a single row does not fit in the budget";
+				return;
+			}
+		}
+		long stripSamples = (long) Math.min(stripHeight, yLength) * xLength;
+		stripPeak = getWriterBytes(stripSamples) + Math.min(stripHeight, yLength) * rowBytes;
+	}
+
+	/**
+	 * Estimates the conversion out of core. The memory budget is the one given with "-mb" or the
+	 * budget left by the buffers of the output.
+	 *
+	 * @param sizes sizes of the input image
+	 */
+	void estimateOutOfCore(int[] sizes){
+		outOfCoreReason = OutOfCoreTranspose.getUnsupportedReason(parser);
+		if(outOfCoreReason != null){
+			return;
+		}
+		if(parser.getMemoryBudget() > 0){
+			outOfCoreBudget = parser.getMemoryBudget();
+		}else{
+			//Slabs hold 2 samples of 4 bytes for each sample written, which is encoded for the output
+			long slabBytes = budget * 8 / (8 + getWriterBytes(1));
+			if(getWriterBytes(slabBytes / 8) == getWriterBytes(Long.MAX_VALUE)){
+				slabBytes = budget - getWriterBytes(Long.MAX_VALUE);
+			}
+			outOfCoreBudget = (int) Math.min(Integer.MAX_VALUE, Math.max(0, slabBytes) >> 20);
+			if(outOfCoreBudget == 0){
+				outOfCoreReason = "slabs of 1 MB do not fit in the budget";
+				return;
+			}
+		}
+		//Slabs never hold more than the image twice (before and after the permutation)
+		long slabBytes = Math.min((long) outOfCoreBudget << 20, 2 * getBufferBytes(sizes, 0));
+		outOfCorePeak = slabBytes + getWriterBytes(slabBytes / 8);
+	}
+
+	/**
+	 * Chooses the execution: the one given in the program arguments, otherwise in memory if it fits in
+	 * the budget, otherwise by strips or out of core.
+	 */
+	void chooseExecution(){
+		if(parser.getStripStreaming() > 0){
+			execution = STRIPS;
+		}else if(parser.getMemoryBudget() > 0){
+			execution = OUT_OF_CORE;
+		}else if(inCorePeak <= budget){
+			execution = IN_CORE;
+		}else if(stripReason == null && stripPeak <= budget){
+			execution = STRIPS;
+		}else if(outOfCoreReason == null && outOfCorePeak <= budget){
+			execution = OUT_OF_CORE;
+		}
+	}
+
+	/**
+	 * @return the execution chosen for the budget ({@link #IN_CORE}, {@link #STRIPS}, {@link #OUT_OF_CORE},
+	 *         {@link #RAW_TO_RAW}, or {@link #NONE} when the conversion does not fit in the budget)
+	 */
+	public int getExecution(){
+		return(execution);
+	}
+
+	/**
+	 * @return the strip height of the strip streaming
+	 */
+	public int getStripHeight(){
+		return(stripHeight);
+	}
+
+	/**
+	 * @return the memory budget in MB of the out of core permutation
+	 */
+	public int getMemoryBudget(){
+		return(outOfCoreBudget);
+	}
+
+	/**
+	 * @return the estimated peak of memory of the conversion in memory, in bytes
+	 */
+	public long getInCorePeak(){
+		return(inCorePeak);
+	}
+
+	/**
+	 * @return a description of why the conversion does not fit in the budget
+	 */
+	public String getFailureReason(){
+		String reason = "the conversion needs about " + toMB(inCorePeak) + " in memory and the budget is " + toMB(budget);
+		if(stripReason != null && outOfCoreReason != null){
+			reason += "; it can not be done by strips (" + stripReason + ") nor out of core (" + outOfCoreReason + ")";
+		}
+		return reason;
+	}
+
+	/**
+	 * Prints the estimate of each step and the execution chosen for the budget.
+	 *
+	 * @param out stream to print to
+	 */
+	public void print(PrintStream out){
+		out.println("Memory estimate (" + Parallel.getThreads() + (Parallel.getThreads() == 1 ? " thread):": " threads):"));
+		for(int numEstimate = 0; numEstimate < estimates.size(); numEstimate++){
+			Estimate estimate = estimates.get(numEstimate);
+			out.println("  " + (numEstimate + 1) + ". " + estimate.description + ": " + toString(estimate.sizes) + ", peak "
+					+ toMB(estimate.peak) + ", " + estimate.passes + (estimate.passes == 1 ? " pass": " passes"));
+		}
+		if(execution == RAW_TO_RAW){
+			out.println("  Raw to raw conversion: peak " + toMB(inCorePeak) + ", 1 pass");
+		}else{
+			out.println("  In memory: peak " + toMB(inCorePeak) + ", " + inCorePasses + " passes");
+			out.println("  By strips: " + (stripReason != null ? "not available (" + stripReason + ")"
+					: "\"-ss " + stripHeight + "\", peak " + toMB(stripPeak) + ", 1 pass"));
+			out.println("  Out of core: " + (outOfCoreReason != null ? "not available (" + outOfCoreReason + ")"
+					: "\"-mb " + outOfCoreBudget + "\", peak " + toMB(outOfCorePeak) + ", 2 passes"));
+		}
+		String[] names = {"in memory", "by strips", "out of core", "raw to raw conversion"};
+		out.println("  Budget " + toMB(budget) + (parser.getHeapBudget() > 0 ? " (\"-hb\")": " (maximum heap)") + ": "
+				+ (execution == NONE ? "does not fit" : names[execution]));
+	}
+
+	/**
+	 * Memory of a {@link RawImageWriter}: two buffers to encode the samples (written alternatively) and,
+	 * when a view is written, a strip of the view.
+	 *
+	 * @param samples number of samples written at once
+	 * @return the memory in bytes
+	 */
+	long getWriterBytes(long samples){
+		int[] outputImageGeometry = parser.getOutputImageGeometry();
+		int sampleBytes = 8;
+		if(RawConverter.isValidGeometry(outputImageGeometry)){
+			try{
+				sampleBytes = MappedRawImage.getSampleBytes(outputImageGeometry[3]);
+			}catch(WarningException e){
+				//Invalid types are reported when the image is saved
+			}
+		}
+		return Math.min(RawImageWriter.WRITE_SAMPLES, samples) * (2 * sampleBytes + SAMPLE_BYTES);
+	}
+
+	/**
+	 * Number of samples of an image.
+	 *
+	 * @param sizes image sizes (-1 when unknown)
+	 * @param bound samples when some size is unknown
+	 * @return the number of samples
+	 */
+	static long getSamples(int[] sizes, long bound){
+		if(sizes[0] < 0 || sizes[1] < 0 || sizes[2] < 0){
+			return bound;
+		}
+		return (long) sizes[0] * sizes[1] * sizes[2];
+	}
+
+	/**
+	 * Memory of an {@link ImageBuffer} (one array for each component).
+	 *
+	 * @param sizes image sizes (-1 when unknown)
+	 * @param bound samples when some size is unknown
+	 * @return the memory in bytes
+	 */
+	static long getBufferBytes(int[] sizes, long bound){
+		if(sizes[0] < 0 || sizes[1] < 0 || sizes[2] < 0){
+			return ARRAY_BYTES + bound * SAMPLE_BYTES;
+		}
+		return sizes[0] * (ARRAY_BYTES + (long) sizes[1] * sizes[2] * SAMPLE_BYTES);
+	}
+
+	/**
+	 * Memory of one component of an {@link ImageBuffer}.
+	 */
+	static long getBandBytes(int[] sizes){
+		return ARRAY_BYTES + (long) Math.max(0, sizes[1]) * Math.max(0, sizes[2]) * SAMPLE_BYTES;
+	}
+
+	/**
+	 * Memory of the rows of a component stored as one array for each row.
+	 */
+	static long getRowsBytes(int ySize, int xSize){
+		return ARRAY_BYTES + Math.max(0, ySize) * (ARRAY_BYTES + Math.max(0, xSize) * SAMPLE_BYTES);
+	}
+
+	/**
+	 * Memory of an image stored as one array for each row (as the GICI libraries do).
+	 */
+	static long getJaggedBytes(int[] sizes){
+		return ARRAY_BYTES + Math.max(0, sizes[0]) * getRowsBytes(sizes[1], sizes[2]);
+	}
+
+	/**
+	 * @return the sizes as zSize x ySize x xSize
+	 */
+	static String toString(int[] sizes){
+		return (sizes[0] < 0 ? "?": "" + sizes[0]) + "x" + (sizes[1] < 0 ? "?": "" + sizes[1]) + "x" + (sizes[2] < 0 ? "?": "" + sizes[2]);
+	}
+
+	/**
+	 * @return the bytes in MB, with one decimal
+	 */
+	static String toMB(long bytes){
+		long tenths = (bytes * 10 + (1 << 19)) >> 20;
+		return tenths / 10 + "." + tenths % 10 + " MB";
+	}
+}
@@ -0,0 +1,254 @@
+package ffc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import GiciException.*;
+
+
+/**
+ * Removal of the null samples of an image ("-nnc" parameter): non-null samples are packed, in
+ * raster order, at the beginning of the output image. The compaction is computed in parallel (see
+ * {@link Parallel}): the image is split in blocks of rows, the non-null samples of each block are
+ * counted, the position of the first sample of each block in the output is the sum of the counts of
+ * the previous blocks, and then all the blocks are copied at once.<br>
+ * The positions of the non-null samples can also be written (see "-nncm"), so the image can be
+ * rebuilt from the packed samples:
+ *   <ul>
+ *     <li> {@link #POSITIONS}: the position of each non-null sample in the image
+ *          (z*ySize*xSize + y*xSize + x), as 64 bit big endian integers
+ *     <li> {@link #BITMAP}: one bit for each sample of the image, in raster order (1 if the sample
+ *          is not null), the most significant bit of each byte first
+ *   </ul>
+ * A sample is null if its absolute value is not greater than 0 (0, -0 and NaN).
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class NonNullCompaction{
+
+	/**
+	 * Types of map of the non-null samples (see "-nncm").
+	 */
+	public static final int POSITIONS = 1;
+	public static final int BITMAP = 2;
+
+	/**
+	 * Samples of the chunks of the bitmap computed by each task (a multiple of 8).
+	 */
+	static final int BITMAP_CHUNK_SAMPLES = 1 << 20;
+
+	/**
+	 * Image samples.
+	 */
+	ImageBuffer image;
+
+	/**
+	 * Rows of each block, and blocks of each component.
+	 */
+	int blockRows;
+	int blocksPerBand;
+
+	/**
+	 * Position in the output of the first non-null sample of each block (the last position is the total count).
+	 */
+	long[] blockOffsets;
+
+	/**
+	 * Constructor that counts the non-null samples of the image.
+	 *
+	 * @param image image samples
+	 */
+	public NonNullCompaction(ImageBuffer image){
+		this.image = image;
+		final int zSize = image.getZSize();
+		final int ySize = image.getYSize();
+		final int xSize = image.getXSize();
+		blockRows = Parallel.getBlockRows(ySize, xSize);
+		blocksPerBand = (ySize + blockRows - 1) / blockRows;
+		final long[] counts = new long[zSize * blocksPerBand];
+		Parallel.forEach(counts.length, new Parallel.Task(){
+			public void run(int block){
+				float[] band = image.getBand(block / blocksPerBand);
+				int begin = getBlockBegin(block);
+				int end = getBlockEnd(block);
+				long count = 0;
+				for(int i = begin; i < end; i++){
+					if(Math.abs(band[i]) > 0){
+						count++;
+					}
+				}
+				counts[block] = count;
+			}
+		});
+		blockOffsets = new long[counts.length + 1];
+		for(int block = 0; block < counts.length; block++){
+			blockOffsets[block + 1] = blockOffsets[block] + counts[block];
+		}
+	}
+
+	/**
+	 * Position in the component of the first sample of a block.
+	 */
+	int getBlockBegin(int block){
+		return (block % blocksPerBand) * blockRows * image.getXSize();
+	}
+
+	/**
+	 * Position in the component of the last sample of a block (not included).
+	 */
+	int getBlockEnd(int block){
+		return Math.min(image.getYSize(), (block % blocksPerBand + 1) * blockRows) * image.getXSize();
+	}
+
+	/**
+	 * @return the number of non-null samples of the image
+	 */
+	public long getCount(){
+		return(blockOffsets[blockOffsets.length - 1]);
+	}
+
+	/**
+	 * Packs the non-null samples in a new image. Positions after the last non-null sample are set to 0.
+	 *
+	 * @param zSize number of components of the new image
+	 * @param ySize height of the new image
+	 * @param xSize width of the new image
+	 * @return the new image
+	 *
+	 * @throws ErrorException when the non-null samples do not fit in the new image
+	 */
+	public ImageBuffer compact(int zSize, int ySize, final int xSize) throws ErrorException{
+		final ImageBuffer newImage = new ImageBuffer(zSize, ySize, xSize);
+		final long newBandSize = (long) ySize * xSize;
+		if(getCount() > zSize * newBandSize){
+			throw new ErrorException("The " + getCount() + " non-null samples do not fit in an image of " + zSize + "x" + ySize + "x" + xSize + " samples.");
+		}
+		Parallel.forEach(blockOffsets.length - 1, new Parallel.Task(){
+			public void run(int block){
+				float[] band = image.getBand(block / blocksPerBand);
+				int end = getBlockEnd(block);
+				long position = blockOffsets[block];
+				int newZ = (int) (position / newBandSize);
+				int newOffset = (int) (position % newBandSize);
+				for(int i = getBlockBegin(block); i < end; i++){
+					float sample = band[i];
+					if(Math.abs(sample) > 0){
+						if(newOffset == newBandSize){
+							newZ++;
+							newOffset = 0;
+						}
+						newImage.getBand(newZ)[newOffset++] = sample;
+					}
+				}
+			}
+		});
+		return newImage;
+	}
+
+	/**
+	 * Writes the map of the non-null samples.
+	 *
+	 * @param fileName name of the file
+	 * @param type {@link #POSITIONS} or {@link #BITMAP}
+	 *
+	 * @throws WarningException when the file can not be written
+	 */
+	public void writeMap(String fileName, int type) throws WarningException{
+		FileChannel channel = null;
+		try{
+			File file = new File(fileName);
+			if(file.exists()){
+				file.delete();
+			}
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			if(type == POSITIONS){
+				writePositions(channel);
+			}else{
+				writeBitmap(channel);
+			}
+		}catch(IOException e){
+			throw new WarningException("File \"" + fileName + "\" can not be written: " + e.getMessage());
+		}catch(RuntimeException e){
+			throw new WarningException("File \"" + fileName + "\" can not be written: " + e.getMessage());
+		}finally{
+			if(channel != null){
+				try{
+					channel.close();
+				}catch(IOException e){
+					throw new WarningException("Error closing file \"" + fileName + "\".");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the positions of the non-null samples, each block at its own position of the file.
+	 */
+	void writePositions(final FileChannel channel){
+		final long bandSize = (long) image.getYSize() * image.getXSize();
+		Parallel.forEach(blockOffsets.length - 1, new Parallel.Task(){
+			public void run(int block){
+				int count = (int) (blockOffsets[block + 1] - blockOffsets[block]);
+				if(count == 0){
+					return;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(count * 8);
+				float[] band = image.getBand(block / blocksPerBand);
+				long bandOffset = (block / blocksPerBand) * bandSize;
+				int end = getBlockEnd(block);
+				for(int i = getBlockBegin(block); i < end; i++){
+					if(Math.abs(band[i]) > 0){
+						buffer.putLong(bandOffset + i);
+					}
+				}
+				write(channel, buffer, blockOffsets[block] * 8);
+			}
+		});
+	}
+
+	/**
+	 * Writes the bitmap of the non-null samples, by chunks computed in parallel.
+	 */
+	void writeBitmap(final FileChannel channel){
+		final long bandSize = (long) image.getYSize() * image.getXSize();
+		final long numSamples = image.getZSize() * bandSize;
+		int numChunks = (int) ((numSamples + BITMAP_CHUNK_SAMPLES - 1) / BITMAP_CHUNK_SAMPLES);
+		Parallel.forEach(numChunks, new Parallel.Task(){
+			public void run(int chunk){
+				long first = (long) chunk * BITMAP_CHUNK_SAMPLES;
+				int length = (int) Math.min(BITMAP_CHUNK_SAMPLES, numSamples - first);
+				byte[] bits = new byte[(length + 7) / 8];
+				int z = (int) (first / bandSize);
+				int offset = (int) (first % bandSize);
+				float[] band = image.getBand(z);
+				for(int i = 0; i < length; i++){
+					if(offset == bandSize){
+						band = image.getBand(++z);
+						offset = 0;
+					}
+					if(Math.abs(band[offset++]) > 0){
+						bits[i >> 3] |= (byte) (0x80 >>> (i & 7));
+					}
+				}
+				write(channel, ByteBuffer.wrap(bits), first / 8);
+			}
+		});
+	}
+
+	/**
+	 * Writes a whole buffer at the given position of a file (concurrent calls are safe).
+	 */
+	static void write(FileChannel channel, ByteBuffer buffer, long position){
+		buffer.rewind();
+		try{
+			while(buffer.hasRemaining()){
+				channel.write(buffer, position + buffer.position());
+			}
+		}catch(IOException e){
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+}
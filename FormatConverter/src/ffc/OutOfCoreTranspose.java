@@ -0,0 +1,201 @@
+package ffc;
+
+import java.io.PrintStream;
+import GiciException.*;
+import GiciFile.LoadFile;
+
+
+/**
+ * Out of core dimension permutation ("-cd" parameter with "-mb"). The input image is read
+ * sequentially by slabs (consecutive components, or consecutive rows of all the components) that fit
+ * in the memory budget, each slab is permuted in memory (see {@link DimensionTranspose}) and its
+ * samples are written at their final position of the output file. Memory needed is then bounded by
+ * the budget instead of by the image size.<br>
+ * The dimension of the slabs is chosen so that both the runs read from the input and the runs
+ * written to the output are long: a permuted slab is a set of whole output components, or a run of
+ * consecutive rows of each output component.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class OutOfCoreTranspose{
+
+	/**
+	 * Input image.
+	 */
+	MappedRawImage input;
+
+	/**
+	 * Dimension permutation.
+	 */
+	int[] permutation;
+
+	/**
+	 * Maximum number of samples of a slab (a slab is held twice, before and after the permutation).
+	 */
+	long slabSamples;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param input input image
+	 * @param permutation dimension permutation (see "-cd")
+	 * @param memoryBudget memory budget in bytes
+	 *
+	 * @throws ParameterException when permutation is not a permutation of 0, 1 and 2
+	 */
+	public OutOfCoreTranspose(MappedRawImage input, int[] permutation, long memoryBudget) throws ParameterException{
+		DimensionTranspose.checkPermutation(permutation);
+		this.input = input;
+		this.permutation = permutation;
+		this.slabSamples = Math.max(1, memoryBudget / (2 * 4));
+	}
+
+	/**
+	 * Checks whether the conversion requested in the program arguments can be done out of core.
+	 *
+	 * @param parser program arguments
+	 * @return null if it can be done out of core, otherwise the reason why it can not
+	 */
+	public static String getUnsupportedReason(ArgsParser parser){
+		if(parser.getChangeDim() == null){
+			return "no dimension permutation has been requested";
+		}
+		for(String stage: PipelinePlanner.DEFAULT_ORDER){
+			if(!stage.equals(PipelinePlanner.CD) && PipelinePlanner.isRequested(parser, stage)){
+				return "only the dimension permutation can be computed out of core";
+			}
+		}
+		if(!LoadFile.isRaw(parser.getInputImageFile()) || !LoadFile.isRaw(parser.getOutputImageFile())){
+			return "input and output images must be raw data";
+		}
+		if(!RawConverter.isValidGeometry(parser.getInputImageGeometry()) || !RawConverter.isValidGeometry(parser.getOutputImageGeometry())){
+			return "valid input and output image geometries are mandatory";
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the dimension permutation requested in the program arguments out of core.
+	 *
+	 * @param parser program arguments
+	 * @param memoryBudget memory budget in MB
+	 * @param err stream where samples out of range are reported
+	 *
+	 * @throws ParameterException when the permutation can not be done out of core
+	 * @throws WarningException when some I/O error occurs
+	 */
+	public static void run(ArgsParser parser, int memoryBudget, PrintStream err) throws ParameterException, WarningException{
+		String reason = getUnsupportedReason(parser);
+		if(reason != null){
+			throw new ParameterException("Out of core dimension permutation can not be used: " + reason + ".");
+		}
+		int[] inputImageGeometry = parser.getInputImageGeometry();
+		int[] outputImageGeometry = parser.getOutputImageGeometry();
+		MappedRawImage input = new MappedRawImage(parser.getInputImageFile(), inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2],
+				inputImageGeometry[3], inputImageGeometry[4]);
+		OutOfCoreTranspose transpose = new OutOfCoreTranspose(input, parser.getChangeDim(), (long) memoryBudget << 20);
+
+		RawImageWriter output = new RawImageWriter(parser.getOutputImageFile(), outputImageGeometry[3], outputImageGeometry[4], err);
+		try{
+			transpose.run(output);
+		}finally{
+			output.close();
+		}
+	}
+
+	/**
+	 * Permutes the image to the output.
+	 *
+	 * @param output writer of the output image
+	 *
+	 * @throws ParameterException when the permutation is not valid
+	 * @throws WarningException when some I/O error occurs
+	 */
+	public void run(RawImageWriter output) throws ParameterException, WarningException{
+		int[] sizes = {input.getZSize(), input.getYSize(), input.getXSize()};
+		int[] newSizes = {sizes[permutation[0]], sizes[permutation[1]], sizes[permutation[2]]};
+		long newBandSize = (long) newSizes[1] * newSizes[2];
+
+		//Slabs of components (dimension 0) or of rows of all the components (dimension 1)
+		int dimension = getRunLength(0) >= getRunLength(1) ? 0: 1;
+		int slabLength = getSlabLength(dimension);
+		//Dimension of the output where the slab dimension is moved
+		int newDimension = 0;
+		while(permutation[newDimension] != dimension){
+			newDimension++;
+		}
+		int[] allComponents = ImageView.identity(sizes[0]);
+		for(int begin = 0; begin < sizes[dimension]; begin += slabLength){
+			int length = Math.min(slabLength, sizes[dimension] - begin);
+			ImageBuffer slab;
+			if(dimension == 0){
+				int[] components = new int[length];
+				for(int z = 0; z < length; z++){
+					components[z] = begin + z;
+				}
+				slab = input.getImage(components, 0, 0, 0, 0);
+			}else{
+				slab = input.getImage(allComponents, begin, 0, length, 0);
+			}
+			slab = new DimensionTranspose(slab, permutation).run();
+
+			//The slab covers positions [begin, begin + length) of the new dimension
+			int xLength = slab.getXSize();
+			for(int z = 0; z < slab.getZSize(); z++){
+				float[] band = slab.getBand(z);
+				int newZ = newDimension == 0 ? begin + z: z;
+				long position = newZ * newBandSize;
+				switch(newDimension){
+				case 0:
+					output.writeSamples(band, 0, band.length, position);
+					break;
+				case 1:
+					output.writeSamples(band, 0, band.length, position + (long) begin * newSizes[2]);
+					break;
+				default:
+					for(int y = 0; y < slab.getYSize(); y++){
+						output.writeSamples(band, y * xLength, xLength, position + (long) y * newSizes[2] + begin);
+					}
+					break;
+				}
+				slab.setBand(z, null);
+			}
+		}
+	}
+
+	/**
+	 * Number of positions of the given dimension held in each slab.
+	 *
+	 * @param dimension 0 for slabs of components, 1 for slabs of rows
+	 * @return the slab length (at least 1)
+	 */
+	int getSlabLength(int dimension){
+		long positionSamples = dimension == 0 ? (long) input.getYSize() * input.getXSize(): (long) input.getZSize() * input.getXSize();
+		int size = dimension == 0 ? input.getZSize(): input.getYSize();
+		return (int) Math.max(1, Math.min(size, slabSamples / positionSamples));
+	}
+
+	/**
+	 * Length of the shortest run of consecutive samples read or written for each slab.
+	 *
+	 * @param dimension 0 for slabs of components, 1 for slabs of rows
+	 * @return the run length in samples
+	 */
+	long getRunLength(int dimension){
+		int[] sizes = {input.getZSize(), input.getYSize(), input.getXSize()};
+		long slabLength = getSlabLength(dimension);
+		//Input runs: the whole slab, or a run of rows of each component
+		long inputRun = dimension == 0 ? slabLength * sizes[1] * sizes[2]: slabLength * sizes[2];
+		//Output runs: whole components, a run of rows of each component, or a run of each row
+		long outputRun;
+		if(permutation[0] == dimension){
+			outputRun = slabLength * sizes[permutation[1]] * sizes[permutation[2]];
+		}else if(permutation[1] == dimension){
+			outputRun = slabLength * sizes[permutation[2]];
+		}else{
+			outputRun = slabLength;
+		}
+		return Math.min(inputRun, outputRun);
+	}
+}
@@ -0,0 +1,243 @@
+package ffc;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * Runs independent tasks with a given number of threads ("--threads" parameter). Tasks are
+ * identified by an index and taken in order by the workers, so when each task writes its own part
+ * of the output the result does not depend on the number of threads.<br>
+ * The workers are a fixed pool of as many threads as available processors, shared by all the
+ * conversions of the virtual machine (see {@link BatchRunner} and {@link ConversionServer}), so
+ * concurrent conversions, or a number of threads larger than the processors, do not create more
+ * threads. The thread that calls {@link #forEach(int, int, Task)} also runs tasks, so the tasks
+ * are always completed even when all the workers are busy (or are themselves waiting in a
+ * nested call).
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public final class Parallel{
+
+	/**
+	 * Task run for each index.
+	 */
+	public interface Task{
+
+		/**
+		 * Runs one task.
+		 *
+		 * @param index task index
+		 */
+		void run(int index);
+	}
+
+	/**
+	 * Maximum number of samples of a block of rows processed by one task in {@link #apply(ImageBuffer, RowOperation)}.
+	 */
+	static final int ROW_BLOCK_SAMPLES = 1 << 18;
+
+	/**
+	 * Maximum number of samples of a tile of spectral vectors (see {@link #getTilePixels(int, int)}).
+	 */
+	static final int TILE_SAMPLES = 1 << 16;
+
+	/**
+	 * Threads shared by all the calls (daemon threads, so they never keep the program alive).
+	 */
+	static final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+		final AtomicInteger numThreads = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable){
+			Thread thread = new Thread(StageStats.recordingExit(runnable), "ffc-worker-" + numThreads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Number of threads set by each thread that runs a conversion, so conversions run concurrently
+	 * (see {@link BatchRunner}) can use a different number of threads. 1 when it has not been set.
+	 */
+	static final ThreadLocal<Integer> threads = new ThreadLocal<Integer>();
+
+	private Parallel(){
+	}
+
+	/**
+	 * Sets the number of threads used by {@link #forEach(int, Task)} when it is called from the current thread.
+	 *
+	 * @param numThreads number of threads, 0 to use all the available processors
+	 */
+	public static void setThreads(int numThreads){
+		threads.set(numThreads > 0 ? numThreads: Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the number of threads used by {@link #forEach(int, Task)} when it is called from the current thread
+	 */
+	public static int getThreads(){
+		Integer numThreads = threads.get();
+		return(numThreads != null ? numThreads: 1);
+	}
+
+	/**
+	 * Runs tasks 0 to numTasks-1 with the number of threads set by {@link #setThreads(int)}.
+	 *
+	 * @param numTasks number of tasks
+	 * @param task task to run
+	 */
+	public static void forEach(int numTasks, Task task){
+		forEach(getThreads(), numTasks, task);
+	}
+
+	/**
+	 * Runs tasks 0 to numTasks-1 and waits for all of them. The calling thread is one of the
+	 * workers, and the workers that have not started when it runs out of tasks are skipped: a
+	 * worker only runs if it starts before the calling thread skips it, so it is either waited for
+	 * or never runs (its future can not tell it, it is not done while it runs either). A
+	 * runtime exception (or error) thrown by some task is thrown again here. If the calling thread
+	 * is interrupted, it still waits for the running workers (they write the output) and its
+	 * interrupt status is set again before returning.
+	 *
+	 * @param threads number of threads
+	 * @param numTasks number of tasks
+	 * @param task task to run
+	 */
+	public static void forEach(int threads, int numTasks, final Task task){
+		threads = Math.min(threads, numTasks);
+		if(threads <= 1){
+			for(int index = 0; index < numTasks; index++){
+				task.run(index);
+			}
+			return;
+		}
+		final int tasks = numTasks;
+		final AtomicInteger nextTask = new AtomicInteger();
+		final Runnable worker = new Runnable(){
+			public void run(){
+				try{
+					int index;
+					while((index = nextTask.getAndIncrement()) < tasks){
+						task.run(index);
+					}
+				}catch(RuntimeException e){
+					//Remaining tasks are skipped
+					nextTask.set(tasks);
+					throw e;
+				}catch(Error e){
+					nextTask.set(tasks);
+					throw e;
+				}
+			}
+		};
+		//State of each worker of the pool: 0 (not started), 1 (started) or 2 (skipped)
+		final AtomicIntegerArray states = new AtomicIntegerArray(threads - 1);
+		Future<?>[] futures = new Future<?>[threads - 1];
+		for(int t = 0; t < futures.length; t++){
+			final int helper = t;
+			futures[t] = workers.submit(new Runnable(){
+				public void run(){
+					if(states.compareAndSet(helper, 0, 1)){
+						worker.run();
+					}
+				}
+			});
+		}
+		Throwable failure = null;
+		try{
+			worker.run();
+		}catch(Throwable e){
+			failure = e;
+		}
+		boolean interrupted = false;
+		for(int t = 0; t < futures.length; t++){
+			Future<?> future = futures[t];
+			//A worker that has not started would find no task left
+			if(states.compareAndSet(t, 0, 2)){
+				future.cancel(false);
+				continue;
+			}
+			while(true){
+				try{
+					future.get();
+					break;
+				}catch(ExecutionException e){
+					if(failure == null) failure = e.getCause();
+					break;
+				}catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		if(failure instanceof RuntimeException){
+			throw (RuntimeException) failure;
+		}
+		if(failure instanceof Error){
+			throw (Error) failure;
+		}
+		if(failure != null){
+			throw new RuntimeException(failure);
+		}
+	}
+
+	/**
+	 * Number of rows of the blocks in which components are split to be processed in parallel:
+	 * blocks of at most {@link #ROW_BLOCK_SAMPLES} samples, and several blocks per thread to balance the load.
+	 *
+	 * @param ySize image height
+	 * @param xSize image width
+	 * @return the rows of each block (at least 1)
+	 */
+	public static int getBlockRows(int ySize, int xSize){
+		return Math.max(1, Math.min(ROW_BLOCK_SAMPLES / Math.max(1, xSize), ySize / (4 * getThreads())));
+	}
+
+	/**
+	 * Number of pixels of the tiles in which an image is split to process its spectral vectors
+	 * (all the components of the pixels of a tile) in parallel: tiles of at most {@link #TILE_SAMPLES}
+	 * samples, so they stay in cache, and several tiles per thread to balance the load.
+	 *
+	 * @param numPixels pixels of each component
+	 * @param zSize number of components
+	 * @return the pixels of each tile (at least 1)
+	 */
+	public static int getTilePixels(int numPixels, int zSize){
+		return Math.max(1, Math.min(TILE_SAMPLES / Math.max(1, zSize), numPixels / (4 * getThreads())));
+	}
+
+	/**
+	 * Runs a row operation over all the rows of an image, splitting the rows of every component in
+	 * blocks that are processed in parallel. The operation must be safe to call concurrently on
+	 * different rows.
+	 *
+	 * @param image image samples
+	 * @param operation operation to apply
+	 */
+	public static void apply(final ImageBuffer image, final RowOperation operation){
+		final int ySize = image.getYSize();
+		final int xSize = image.getXSize();
+		final int blockRows = getBlockRows(ySize, xSize);
+		final int blocksPerBand = (ySize + blockRows - 1) / blockRows;
+		forEach(image.getZSize() * blocksPerBand, new Task(){
+			public void run(int index){
+				int z = index / blocksPerBand;
+				int y0 = (index % blocksPerBand) * blockRows;
+				int y1 = Math.min(ySize, y0 + blockRows);
+				float[] band = image.getBand(z);
+				for(int y = y0; y < y1; y++){
+					operation.apply(z, band, y * xSize, xSize);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,594 @@
+package ffc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import GiciException.*;
+
+
+/**
+ * Plan of the stages of a conversion run in memory by {@link FormatFileConverter}. Stages are taken
+ * in the order given with "-pl" (or in {@link #DEFAULT_ORDER}), and then:
+ *   <ul>
+ *     <li> crops are moved before the stages that give the same result over the cropped image, so
+ *          those stages only transform the samples that are kept. The window of a crop is moved
+ *          before the stages that compute each pixel independently (spectral transforms and pointwise
+ *          stages), and its component selection before the stages that compute each component
+ *          independently (spatial transforms and pointwise stages with the same parameters for all
+ *          the components). Crops are only moved when their window is inside the image, since
+ *          samples out of it are not computed by the stages but set to 0
+ *     <li> adjacent pointwise stages (ca, rm and q) are joined in a single sweep (see {@link PointwisePipeline})
+ *     <li> crop, rotation and dimension permutation are computed as views (see {@link ImageView}),
+ *          so the image is copied only when a later stage needs its samples, or never if the view is
+ *          saved directly. A crop that is the first step is done while loading a memory mapped input
+ *   </ul>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class PipelinePlanner{
+
+	/**
+	 * Stage names (see "-pl").
+	 */
+	public static final String CA = "ca";
+	public static final String SWT = "swt";
+	public static final String WT = "wt";
+	public static final String DF = "df";
+	public static final String SPATIAL_DPCM = "sptDpcm";
+	public static final String CROP = "crop";
+	public static final String ROTATE = "rotate";
+	public static final String PD = "pd";
+	public static final String NNC = "nnc";
+	public static final String CD = "cd";
+	public static final String RM = "rm";
+	public static final String PC = "pc";
+	public static final String Q = "q";
+
+	/**
+	 * Order of the stages when "-pl" is not given.
+	 */
+	public static final String[] DEFAULT_ORDER = {CA, SWT, WT, DF, SPATIAL_DPCM, CROP, ROTATE, PD, NNC, CD, RM, PC, Q};
+
+	/**
+	 * How a step is computed.
+	 */
+	public static final int IN_PLACE = 0;
+	public static final int COPY = 1;
+	public static final int VIEW = 2;
+	public static final int AT_LOAD = 3;
+
+	/**
+	 * One step of the plan: a stage, or several pointwise stages joined in a single sweep.
+	 */
+	public static class Step{
+
+		/**
+		 * Stages of the step, in application order.
+		 */
+		List<String> stages = new ArrayList<String>();
+
+		/**
+		 * How the step is computed ({@link #IN_PLACE}, {@link #COPY}, {@link #VIEW} or {@link #AT_LOAD}).
+		 */
+		int execution;
+
+		/**
+		 * True if the step reads the samples of a view, which is copied first.
+		 */
+		boolean copiesView = false;
+
+		/**
+		 * Crop of a crop step: components (in output order) and window (lengths 0 mean the whole size).
+		 */
+		int[] components = null;
+		int y0 = 0;
+		int x0 = 0;
+		int yLength = 0;
+		int xLength = 0;
+
+		/**
+		 * Name of the crop part ("components", "window" or null for the whole crop).
+		 */
+		String cropPart = null;
+
+		/**
+		 * Sizes of the image after the step (-1 when unknown).
+		 */
+		int[] sizes = null;
+
+		Step(String stage){
+			stages.add(stage);
+		}
+
+		/**
+		 * @return the stages of the step, in application order
+		 */
+		public List<String> getStages(){
+			return(stages);
+		}
+
+		/**
+		 * @param stage stage name
+		 * @return true if the step computes the given stage
+		 */
+		public boolean has(String stage){
+			return(stages.contains(stage));
+		}
+
+		/**
+		 * @return how the step is computed
+		 */
+		public int getExecution(){
+			return(execution);
+		}
+
+		/**
+		 * @return true if the step reads the samples of a view, which is copied first
+		 */
+		public boolean copiesView(){
+			return(copiesView);
+		}
+
+		/**
+		 * @return the sizes of the image after the step (zSize, ySize and xSize, -1 when unknown)
+		 */
+		public int[] getSizes(){
+			return(sizes);
+		}
+
+		/**
+		 * @return the number of sweeps over the image done by the step (0 for views)
+		 */
+		public int getPasses(){
+			if(execution == VIEW || execution == AT_LOAD){
+				return(0);
+			}
+			//Range modification reduces the limits of each component first
+			return((copiesView ? 1: 0) + (has(RM) ? 2: 1));
+		}
+
+		/**
+		 * @return the stages of the step (and the part of a crop)
+		 */
+		public String getName(){
+			StringBuilder name = new StringBuilder();
+			for(int numStage = 0; numStage < stages.size(); numStage++){
+				name.append(numStage > 0 ? " + ": "").append(stages.get(numStage));
+			}
+			if(cropPart != null){
+				name.append(" (").append(cropPart).append(")");
+			}
+			return name.toString();
+		}
+
+		/**
+		 * @return a description of the stages of the step and how they are computed
+		 */
+		public String getDescription(){
+			StringBuilder description = new StringBuilder(getName());
+			switch(execution){
+			case IN_PLACE:
+				description.append(stages.size() > 1 ? " fused in place": " in place");
+				break;
+			case COPY:
+				description.append(" into a new image");
+				break;
+			case VIEW:
+				description.append(" as a view");
+				break;
+			case AT_LOAD:
+				description.append(" while loading");
+				break;
+			}
+			if(copiesView){
+				description.append(", after copying the view");
+			}
+			return description.toString();
+		}
+
+		/**
+		 * @return a description of the step
+		 */
+		public String toString(){
+			int passes = getPasses();
+			if(passes > 0){
+				return getDescription() + " (" + passes + (passes == 1 ? " pass)": " passes)");
+			}
+			return getDescription();
+		}
+	}
+
+	/**
+	 * Program arguments.
+	 */
+	ArgsParser parser;
+
+	/**
+	 * Steps of the plan, in order.
+	 */
+	List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * Constructor that builds the plan.
+	 *
+	 * @param parser program arguments
+	 * @param zSize number of components of the input image
+	 * @param ySize height of the input image
+	 * @param xSize width of the input image
+	 *
+	 * @throws ParameterException when the order of the stages is not valid
+	 */
+	public PipelinePlanner(ArgsParser parser, int zSize, int ySize, int xSize) throws ParameterException{
+		this.parser = parser;
+		String[] order = parser.getPipeline() != null ? parser.getPipeline(): DEFAULT_ORDER;
+		checkOrder(order);
+
+		//Stages in the given order. Sizes are followed to know whether crops are inside the image (-1 when unknown)
+		int[] sizes = {zSize, ySize, xSize};
+		int cropIndex = -1;
+		int[] cropSizes = null;
+		for(String stage: order){
+			if(!isRequested(parser, stage)){
+				continue;
+			}
+			Step step = new Step(stage);
+			if(stage.equals(CROP)){
+				step.components = FormatFileConverter.getCropComponents(parser.getZInit(), parser.getZLength(), parser.getZRanges(), Math.max(0, sizes[0]));
+				step.y0 = parser.getYInit();
+				step.x0 = parser.getXInit();
+				step.yLength = parser.getYLength();
+				step.xLength = parser.getXLength();
+				if(isInside(step, sizes)){
+					cropIndex = steps.size();
+					cropSizes = sizes;
+				}
+			}
+			sizes = getSizes(step, sizes);
+			steps.add(step);
+		}
+
+		if(cropIndex >= 0){
+			moveCrop(cropIndex, cropSizes);
+		}
+		fusePointwise();
+		setExecution();
+		sizes = new int[]{zSize, ySize, xSize};
+		for(Step step: steps){
+			step.sizes = sizes = getSizes(step, sizes);
+		}
+	}
+
+	/**
+	 * Sizes of the image after a step.
+	 *
+	 * @param step step of the plan
+	 * @param sizes sizes of the image before the step (-1 when unknown)
+	 * @return the sizes after the step (-1 when unknown)
+	 */
+	int[] getSizes(Step step, int[] sizes){
+		String stage = step.stages.get(0);
+		if(stage.equals(CROP)){
+			return new int[]{step.components.length, step.yLength != 0 ? step.yLength: sizes[1], step.xLength != 0 ? step.xLength: sizes[2]};
+		}else if(stage.equals(CD)){
+			int[] changeDim = parser.getChangeDim();
+			if(changeDim.length == 3){
+				int[] newSizes = new int[3];
+				for(int i = 0; i < 3; i++){
+					newSizes[i] = changeDim[i] >= 0 && changeDim[i] < 3 ? sizes[changeDim[i]]: -1;
+				}
+				return newSizes;
+			}
+		}else if(stage.equals(NNC)){
+			int[] outputImageGeometry = parser.getOutputImageGeometry();
+			if(parser.getRemoveNullCoefficients() == 0){
+				return new int[]{1, 1, -1};
+			}else if(outputImageGeometry != null){
+				return new int[]{outputImageGeometry[0], outputImageGeometry[1], outputImageGeometry[2]};
+			}
+			return new int[]{-1, -1, -1};
+		}
+		return sizes;
+	}
+
+	/**
+	 * Checks that the order only has known stages, without repetitions, and all the requested ones.
+	 *
+	 * @param order stage names
+	 *
+	 * @throws ParameterException when the order is not valid
+	 */
+	void checkOrder(String[] order) throws ParameterException{
+		List<String> known = Arrays.asList(DEFAULT_ORDER);
+		List<String> listed = new ArrayList<String>();
+		for(String stage: order){
+			if(!known.contains(stage)){
+				throw new ParameterException("Unknown stage \"" + stage + "\" in \"-pl\" (\"-h\" displays help).");
+			}
+			if(listed.contains(stage)){
+				throw new ParameterException("Stage \"" + stage + "\" is repeated in \"-pl\".");
+			}
+			listed.add(stage);
+		}
+		for(String stage: DEFAULT_ORDER){
+			if(isRequested(parser, stage) && !listed.contains(stage)){
+				throw new ParameterException("Stage \"" + stage + "\" has been requested but it is not in \"-pl\".");
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a stage has been requested in the program arguments.
+	 *
+	 * @param parser program arguments
+	 * @param stage stage name
+	 * @return true if it has been requested
+	 */
+	public static boolean isRequested(ArgsParser parser, String stage){
+		if(stage.equals(CA)){
+			return parser.getMinValue() != null || parser.getMaxValue() != null || parser.getLowerThresholdValue() != null
+					|| parser.getUpperThresholdValue() != null || parser.getSubtractValue() != null
+					|| parser.getSubtractValueForNonZeroPixels() != null || parser.getSubtractValueIfMatch() != null;
+		}else if(stage.equals(SWT)){
+			return parser.getSpectralWaveletType() != 0;
+		}else if(stage.equals(WT)){
+			return parser.getSpatialWaveletType() != 0;
+		}else if(stage.equals(DF)){
+			return parser.getDPCM() != 0;
+		}else if(stage.equals(SPATIAL_DPCM)){
+			return RowOperations.spatialDPCM(parser.getSpatialDPCM()) != null;
+		}else if(stage.equals(CROP)){
+			return parser.getXLength() != 0 || parser.getYLength() != 0 || parser.getZLength() != 0 || parser.getZRanges() != null;
+		}else if(stage.equals(ROTATE)){
+			return parser.getRotate() != 0;
+		}else if(stage.equals(PD)){
+			return parser.getPermuteDimension() != -1 || parser.getPermutationSequence() != null;
+		}else if(stage.equals(NNC)){
+			return parser.getRemoveNullCoefficientsRequested();
+		}else if(stage.equals(CD)){
+			return parser.getChangeDim() != null;
+		}else if(stage.equals(RM)){
+			return parser.getRangeModification() != null;
+		}else if(stage.equals(PC)){
+			return parser.getPermuteType() != null;
+		}else if(stage.equals(Q)){
+			return RowOperations.quantization(parser) != null;
+		}
+		return false;
+	}
+
+	/**
+	 * Short names of the program arguments of a stage.
+	 *
+	 * @param stage stage name
+	 * @return the names of its arguments (empty if it is not a stage)
+	 */
+	public static String[] getArgumentNames(String stage){
+		if(stage.equals(CA)){
+			return new String[]{"-ca", "-mn", "-mx", "-ltv", "-utv", "-sv", "-sv4not0p", "-svim"};
+		}else if(stage.equals(SWT)){
+			return new String[]{"-swt", "-swl"};
+		}else if(stage.equals(WT)){
+			return new String[]{"-wt", "-wl", "-wo"};
+		}else if(stage.equals(DF)){
+			return new String[]{"-df", "-di"};
+		}else if(stage.equals(SPATIAL_DPCM)){
+			return new String[]{"-sptDpcm"};
+		}else if(stage.equals(CROP)){
+			return new String[]{"-z0", "-zl", "-zr", "-y0", "-yl", "-x0", "-xl"};
+		}else if(stage.equals(ROTATE)){
+			return new String[]{"-ro"};
+		}else if(stage.equals(PD)){
+			return new String[]{"-pd", "-ps"};
+		}else if(stage.equals(NNC)){
+			return new String[]{"-nnc", "-nncm"};
+		}else if(stage.equals(CD)){
+			return new String[]{"-cd"};
+		}else if(stage.equals(RM)){
+			return new String[]{"-rm", "-nd"};
+		}else if(stage.equals(PC)){
+			return new String[]{"-pc"};
+		}else if(stage.equals(Q)){
+			return new String[]{"-q"};
+		}
+		return new String[0];
+	}
+
+	/**
+	 * Program arguments of some stages, as they were given.
+	 *
+	 * @param parser program arguments
+	 * @param stages stage names
+	 * @return the arguments of the stages, separated by spaces
+	 */
+	public static String getArguments(ArgsParser parser, List<String> stages){
+		StringBuilder arguments = new StringBuilder();
+		for(String stage: stages){
+			String given = parser.getGivenArguments(getArgumentNames(stage));
+			if(given.length() > 0){
+				arguments.append(arguments.length() > 0 ? " ": "").append(given);
+			}
+		}
+		return arguments.toString();
+	}
+
+	/**
+	 * Checks whether a crop selects only samples of the image (no sample is set to 0).
+	 */
+	static boolean isInside(Step crop, int[] sizes){
+		if(sizes[0] < 0 || sizes[1] < 0 || sizes[2] < 0){
+			return false;
+		}
+		for(int component: crop.components){
+			if(component < 0 || component >= sizes[0]){
+				return false;
+			}
+		}
+		int yLength = crop.yLength != 0 ? crop.yLength: sizes[1];
+		int xLength = crop.xLength != 0 ? crop.xLength: sizes[2];
+		return crop.y0 >= 0 && crop.x0 >= 0 && (long) crop.y0 + yLength <= sizes[1] && (long) crop.x0 + xLength <= sizes[2];
+	}
+
+	/**
+	 * Moves the crop before the stages that commute with it. The crop is split in its component
+	 * selection and its window, which are moved independently.
+	 *
+	 * @param cropIndex position of the crop in {@link #steps}
+	 * @param sizes sizes of the image before the crop
+	 */
+	void moveCrop(int cropIndex, int[] sizes){
+		Step crop = steps.get(cropIndex);
+		boolean selectsComponents = !Arrays.equals(crop.components, ImageView.identity(sizes[0]));
+		boolean hasWindow = crop.y0 != 0 || crop.x0 != 0 || (crop.yLength != 0 && crop.yLength != sizes[1]) || (crop.xLength != 0 && crop.xLength != sizes[2]);
+		int componentsIndex = selectsComponents ? getEarliestPosition(cropIndex, false): cropIndex;
+		int windowIndex = hasWindow ? getEarliestPosition(cropIndex, true): cropIndex;
+		if(componentsIndex == cropIndex && windowIndex == cropIndex){
+			return;
+		}
+		steps.remove(cropIndex);
+		Step window = new Step(CROP);
+		window.components = ImageView.identity(crop.components.length);
+		window.y0 = crop.y0;
+		window.x0 = crop.x0;
+		window.yLength = crop.yLength;
+		window.xLength = crop.xLength;
+		window.cropPart = "window";
+		Step components = new Step(CROP);
+		components.components = crop.components;
+		components.cropPart = "components";
+		if(!hasWindow){
+			steps.add(componentsIndex, components);
+		}else if(!selectsComponents){
+			steps.add(windowIndex, window);
+		}else if(windowIndex == componentsIndex){
+			crop.cropPart = null;
+			steps.add(windowIndex, crop);
+		}else if(windowIndex < componentsIndex){
+			//The window does not change the components, so its component list is the identity
+			window.components = ImageView.identity(sizes[0]);
+			steps.add(componentsIndex, components);
+			steps.add(windowIndex, window);
+		}else{
+			steps.add(windowIndex, window);
+			steps.add(componentsIndex, components);
+		}
+	}
+
+	/**
+	 * Earliest position the window or the component selection of a crop can be moved to.
+	 *
+	 * @param cropIndex position of the crop in {@link #steps}
+	 * @param window true for the window, false for the component selection
+	 * @return the position
+	 */
+	int getEarliestPosition(int cropIndex, boolean window){
+		int position = cropIndex;
+		while(position > 0){
+			Step previous = steps.get(position - 1);
+			String stage = previous.stages.get(0);
+			boolean commutes;
+			if(stage.equals(Q)){
+				commutes = true;
+			}else if(stage.equals(CA)){
+				commutes = window || hasSameParametersForAllComponents();
+			}else if(stage.equals(SWT) || stage.equals(DF)){
+				commutes = window;
+			}else if(stage.equals(WT) || stage.equals(SPATIAL_DPCM)){
+				commutes = !window;
+			}else{
+				commutes = false;
+			}
+			if(!commutes){
+				break;
+			}
+			position--;
+		}
+		return position;
+	}
+
+	/**
+	 * Checks whether the coefficients approximation applies the same parameters to all the components.
+	 */
+	boolean hasSameParametersForAllComponents(){
+		return (parser.getCoefficientsApproximation() == null || parser.getCoefficientsApproximation().length <= 1)
+				&& isSingleValue(parser.getMinValue()) && isSingleValue(parser.getMaxValue())
+				&& isSingleValue(parser.getLowerThresholdValue()) && isSingleValue(parser.getUpperThresholdValue())
+				&& isSingleValue(parser.getSubtractValue()) && isSingleValue(parser.getSubtractValueForNonZeroPixels())
+				&& isSingleValue(parser.getSubtractValueIfMatch());
+	}
+
+	static boolean isSingleValue(float[] values){
+		return values == null || values.length <= 1;
+	}
+
+	/**
+	 * Joins adjacent pointwise stages in a single step.
+	 */
+	void fusePointwise(){
+		for(int numStep = steps.size() - 1; numStep > 0; numStep--){
+			Step step = steps.get(numStep);
+			Step previous = steps.get(numStep - 1);
+			if(isPointwise(step) && isPointwise(previous)){
+				previous.stages.addAll(step.stages);
+				steps.remove(numStep);
+			}
+		}
+	}
+
+	static boolean isPointwise(Step step){
+		for(String stage: step.stages){
+			if(!stage.equals(CA) && !stage.equals(RM) && !stage.equals(Q)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Chooses how each step is computed.
+	 */
+	void setExecution(){
+		boolean view = false;
+		for(int numStep = 0; numStep < steps.size(); numStep++){
+			Step step = steps.get(numStep);
+			String stage = step.stages.get(0);
+			if(stage.equals(CROP) || stage.equals(ROTATE) || stage.equals(PD)){
+				if(numStep == 0 && stage.equals(CROP) && parser.getMemoryMappedInput()){
+					step.execution = AT_LOAD;
+				}else{
+					step.execution = VIEW;
+					view = true;
+				}
+			}else{
+				step.execution = stage.equals(NNC) || stage.equals(CD) ? COPY: IN_PLACE;
+				step.copiesView = view;
+				view = false;
+			}
+		}
+	}
+
+	/**
+	 * @return the steps of the plan, in order
+	 */
+	public List<Step> getSteps(){
+		return(steps);
+	}
+
+	/**
+	 * Prints the plan.
+	 *
+	 * @param out stream to print to
+	 */
+	public void print(PrintStream out){
+		out.println("Plan:");
+		int passes = 0;
+		for(int numStep = 0; numStep < steps.size(); numStep++){
+			out.println("  " + (numStep + 1) + ". " + steps.get(numStep));
+			passes += steps.get(numStep).getPasses();
+		}
+		boolean view = !steps.isEmpty() && steps.get(steps.size() - 1).execution == VIEW;
+		out.println("  " + (steps.size() + 1) + ". save" + (view ? " from the view": ""));
+		out.println("  Total: " + passes + (passes == 1 ? " pass": " passes") + " over the image before saving it");
+	}
+}
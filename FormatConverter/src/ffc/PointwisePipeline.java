@@ -0,0 +1,358 @@
+package ffc;
+
+import java.util.Arrays;
+import GiciException.*;
+
+
+/**
+ * Pointwise stages of ffc (coefficients approximation, range modification and quantization)
+ * compiled into a single sweep over the image. Instead of running each stage over the whole image,
+ * all the requested operations are applied to one row before moving to the next one, so the image
+ * is read and written once (when range modification is requested, a parallel reduction of the
+ * limits of each component is done first).<br>
+ * Operations are given already specialized (see {@link RowOperations}), and the pipeline is
+ * <pre>
+ *   before -&gt; range modification -&gt; after
+ * </pre>
+ * where the limits of the range modification are computed over the output of "before".
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class PointwisePipeline{
+
+	/**
+	 * Operation applied before the range modification (null if none).
+	 */
+	RowOperation before;
+
+	/**
+	 * Range modification (null if not requested).
+	 */
+	RangeModification rangeModification;
+
+	/**
+	 * Operation applied after the range modification (null if none).
+	 */
+	RowOperation after;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param before definition in {@link #before}
+	 * @param rangeModification definition in {@link #rangeModification}
+	 * @param after definition in {@link #after}
+	 */
+	PointwisePipeline(RowOperation before, RangeModification rangeModification, RowOperation after){
+		this.before = before;
+		this.rangeModification = rangeModification;
+		this.after = after;
+	}
+
+	/**
+	 * Builds the pipeline.
+	 *
+	 * @param before operation applied before the range modification (null if none)
+	 * @param rangeModification range modification parameter (see "-rm"), null if not requested
+	 * @param nodataValues no-data values of the range modification (see "-nd"), null if not given
+	 * @param after operation applied after the range modification (null if none)
+	 * @return the pipeline, or null if there is nothing to apply
+	 */
+	public static PointwisePipeline compile(RowOperation before, float[] rangeModification, float[] nodataValues, RowOperation after){
+		if(before == null && rangeModification == null && after == null){
+			return null;
+		}
+		if(rangeModification == null){
+			return new PointwisePipeline(RowOperations.chain(before, after), null, null);
+		}
+		return new PointwisePipeline(before, new RangeModification(rangeModification[0], nodataValues), after);
+	}
+
+	/**
+	 * Applies the pipeline over the image, in place. Blocks of rows are processed in parallel (see
+	 * {@link Parallel}) and the result does not depend on the number of threads.
+	 *
+	 * @param image image samples
+	 */
+	public void apply(ImageBuffer image){
+		if(rangeModification == null){
+			Parallel.apply(image, before);
+			return;
+		}
+		computeLimits(image);
+		Parallel.apply(image, RowOperations.chain(rangeModification, after));
+	}
+
+	/**
+	 * Applies the pipeline over some consecutive components of an image, in place (see
+	 * {@link HalfImage}). Range modification needs the limits of the whole image, so it can not be
+	 * applied this way.
+	 *
+	 * @param components image samples of the components
+	 * @param z0 component of the whole image that is the first component given
+	 *
+	 * @throws ErrorException when the pipeline has a range modification
+	 */
+	public void apply(ImageBuffer components, int z0) throws ErrorException{
+		if(rangeModification != null){
+			throw new ErrorException("Range modification can only be applied to the whole image.");
+		}
+		Parallel.apply(components, RowOperations.shift(before, z0));
+	}
+
+	/**
+	 * Applies the pipeline and writes the result as 8 bit samples (type 1 of "-og"), without
+	 * storing the result in the image. Each component is released once it has been written.
+	 *
+	 * @param image image samples
+	 * @param writer writer of the output file (its sample type must be 1)
+	 *
+	 * @throws WarningException when some write fails
+	 */
+	public void write8Bit(final ImageBuffer image, RawImageWriter writer) throws WarningException{
+		if(rangeModification != null){
+			computeLimits(image);
+		}
+		final RowOperation operation = rangeModification == null ? before: RowOperations.chain(rangeModification, after);
+		final int ySize = image.getYSize();
+		final int xSize = image.getXSize();
+		final int blockRows = Parallel.getBlockRows(ySize, xSize);
+		final int numBlocks = (ySize + blockRows - 1) / blockRows;
+		final byte[] bytes = new byte[ImageBuffer.getBandSize(ySize, xSize)];
+		//Samples out of [0, 255] found in each block, and the first one of them
+		final int[] outOfRange = new int[numBlocks];
+		final float[] firstOutOfRange = new float[numBlocks];
+		for(int z = 0; z < image.getZSize(); z++){
+			final int zBand = z;
+			final float[] band = image.getBand(z);
+			Arrays.fill(outOfRange, 0);
+			Parallel.forEach(numBlocks, new Parallel.Task(){
+				public void run(int block){
+					float[] row = new float[xSize];
+					int count = 0;
+					for(int y = block * blockRows; y < Math.min(ySize, (block + 1) * blockRows); y++){
+						System.arraycopy(band, y * xSize, row, 0, xSize);
+						if(operation != null){
+							operation.apply(zBand, row, 0, xSize);
+						}
+						for(int x = 0; x < xSize; x++){
+							float sample = row[x];
+							if(sample > 255f || sample < 0f){
+								if(count++ == 0) firstOutOfRange[block] = sample;
+							}
+							bytes[y * xSize + x] = (byte) (int) Math.max(Math.min(sample, 255f), 0f);
+						}
+					}
+					outOfRange[block] = count;
+				}
+			});
+			for(int block = 0; block < numBlocks; block++){
+				if(outOfRange[block] > 0){
+					writer.warnOutOfRange("Pixel out of range: " + firstOutOfRange[block] + " not in [0, 255]", outOfRange[block]);
+				}
+			}
+			writer.writeBytes(bytes, 0, bytes.length);
+			image.setBand(z, null);
+		}
+	}
+
+	/**
+	 * Computes the limits of the range modification of all the components, applying the operation
+	 * before it to the image. Each component is split in blocks of rows reduced in parallel, and
+	 * the partial limits are then joined in block order.
+	 *
+	 * @param image image samples
+	 */
+	void computeLimits(final ImageBuffer image){
+		final int zSize = image.getZSize();
+		final int ySize = image.getYSize();
+		final int xSize = image.getXSize();
+		final int blockRows = Parallel.getBlockRows(ySize, xSize);
+		final int blocksPerBand = (ySize + blockRows - 1) / blockRows;
+		final float[] blockMin = new float[zSize * blocksPerBand];
+		final float[] blockMax = new float[zSize * blocksPerBand];
+		Arrays.fill(blockMin, Float.MAX_VALUE);
+		Arrays.fill(blockMax, Float.MIN_VALUE);
+		Parallel.forEach(zSize * blocksPerBand, new Parallel.Task(){
+			public void run(int index){
+				int z = index / blocksPerBand;
+				int y0 = (index % blocksPerBand) * blockRows;
+				int y1 = Math.min(ySize, y0 + blockRows);
+				float[] band = image.getBand(z);
+				for(int y = y0; y < y1; y++){
+					if(before != null){
+						before.apply(z, band, y * xSize, xSize);
+					}
+				}
+				rangeModification.accumulate(band, y0 * xSize, (y1 - y0) * xSize, blockMin, blockMax, index);
+			}
+		});
+		float[] min = new float[zSize];
+		float[] max = new float[zSize];
+		for(int z = 0; z < zSize; z++){
+			min[z] = Float.MAX_VALUE;
+			max[z] = Float.MIN_VALUE;
+			for(int block = z * blocksPerBand; block < (z + 1) * blocksPerBand; block++){
+				if(blockMax[block] > max[z]) max[z] = blockMax[block];
+				if(blockMin[block] < min[z]) min[z] = blockMin[block];
+			}
+		}
+		rangeModification.setLimits(min, max);
+	}
+
+	/**
+	 * Checks whether range modification has been requested.
+	 *
+	 * @return true if the pipeline has a range modification
+	 */
+	public boolean hasRangeModification(){
+		return rangeModification != null;
+	}
+
+	/**
+	 * Range modification ("-rm" parameter): each component is mapped to [0, 255] after shortening its
+	 * histogram, and no-data values (see "-nd") are set to 0. The limits of the components must be
+	 * set with {@link #setLimits(float[], float[])} before applying the operation.
+	 */
+	static final class RangeModification implements RowOperation{
+
+		final float percentage;
+
+		/**
+		 * No-data values (null if none).
+		 */
+		final NodataSet nodata;
+
+		/**
+		 * Limits of each component.
+		 */
+		float[] min;
+		float[] max;
+
+		RangeModification(float percentage, float[] nodataValues){
+			this.percentage = percentage;
+			this.nodata = nodataValues == null ? null: new NodataSet(nodataValues);
+		}
+
+		/**
+		 * Updates the limits with a run of samples (no-data samples are skipped).
+		 *
+		 * @param samples array containing the samples
+		 * @param offset position of the first sample
+		 * @param length number of samples
+		 * @param min minimum values, updated at position index
+		 * @param max maximum values, updated at position index
+		 * @param index position of min and max to update
+		 */
+		void accumulate(float[] samples, int offset, int length, float[] min, float[] max, int index){
+			int end = offset + length;
+			float runMax = max[index];
+			float runMin = min[index];
+			if(nodata != null){
+				for(int i = offset; i < end; i++){
+					if(!nodata.contains(samples[i])){
+						if(samples[i] > runMax) runMax = samples[i];
+						if(samples[i] < runMin) runMin = samples[i];
+					}
+				}
+			}else{
+				for(int i = offset; i < end; i++){
+					if(samples[i] > runMax) runMax = samples[i];
+					if(samples[i] < runMin) runMin = samples[i];
+				}
+			}
+			max[index] = runMax;
+			min[index] = runMin;
+		}
+
+		/**
+		 * Sets the limits of all the components, shortening them by the requested percentage.
+		 *
+		 * @param min minimum value of each component
+		 * @param max maximum value of each component
+		 */
+		void setLimits(float[] min, float[] max){
+			for(int z = 0; z < min.length; z++){
+				float tmp = (max[z] - min[z]) * percentage / 100;
+				min[z] = min[z] - tmp;
+				max[z] = max[z] - tmp;
+			}
+			this.min = min;
+			this.max = max;
+		}
+
+		public void apply(int z, float[] samples, int offset, int length){
+			int end = offset + length;
+			float max = this.max[z];
+			float min = this.min[z];
+			if(nodata != null){
+				for(int i = offset; i < end; i++){
+					if(!nodata.contains(samples[i])){
+						samples[i] = (samples[i] * Math.abs(min) * 255) / (max-min);
+					}else{
+						samples[i] = 0;
+					}
+				}
+			}else{
+				for(int i = offset; i < end; i++){
+					samples[i] = ((samples[i] + Math.abs(min)) * 255) / (max-min);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set of no-data values with constant time lookup: an open addressing hash table of the bits of
+	 * the values. Values are compared as the == operator does (0 and -0 are the same value, NaN is
+	 * never a no-data value).
+	 */
+	static final class NodataSet{
+
+		/**
+		 * Bits of the values (slots in use are marked in {@link #used}).
+		 */
+		final int[] table;
+		final boolean[] used;
+		final int mask;
+
+		NodataSet(float[] values){
+			int size = 2;
+			while(size < 2 * values.length){
+				size <<= 1;
+			}
+			table = new int[size];
+			used = new boolean[size];
+			mask = size - 1;
+			for(float value: values){
+				if(value == value){
+					int bits = Float.floatToIntBits(value + 0f);
+					int slot = hash(bits);
+					while(used[slot] && table[slot] != bits){
+						slot = (slot + 1) & mask;
+					}
+					table[slot] = bits;
+					used[slot] = true;
+				}
+			}
+		}
+
+		int hash(int bits){
+			return ((bits ^ (bits >>> 16)) * 0x9E3779B1 >>> 8) & mask;
+		}
+
+		boolean contains(float value){
+			if(value != value){
+				return false;
+			}
+			int bits = Float.floatToIntBits(value + 0f);
+			int slot = hash(bits);
+			while(used[slot]){
+				if(table[slot] == bits){
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+	}
+}
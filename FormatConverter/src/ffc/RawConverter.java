@@ -0,0 +1,309 @@
+package ffc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import GiciException.*;
+import GiciFile.LoadFile;
+
+
+/**
+ * Direct conversion between raw image files (".raw" or ".img") when no transformation is requested.
+ * Samples are never stored as a float image: the file is processed in chunks of
+ * {@link #CHUNK_SAMPLES} samples, so memory is constant.<br>
+ * Conversions are done as follows:
+ *   <ul>
+ *     <li> same type and byte order: the file is copied
+ *     <li> same type, different byte order: bytes are swapped with buffer views
+ *     <li> integer type to integer type: exact conversion (without passing through float), clipped to the output range.
+ *          Boolean samples (type 0) are always converted this way, so they are written as 0 or 1
+ *     <li> any other case: as in the float path (see {@link StripStreamer})
+ *   </ul>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class RawConverter{
+
+	/**
+	 * Number of samples converted at once.
+	 */
+	static final int CHUNK_SAMPLES = 1 << 16;
+
+	/**
+	 * Minimum and maximum values of integer types (0 to 5, see "-og" parameter).
+	 */
+	static final long[] MIN_VALUE = {0, 0, 0, Short.MIN_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE};
+	static final long[] MAX_VALUE = {1, 255, 65535, Short.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE};
+
+	/**
+	 * Number of samples out of range found.
+	 */
+	int outOfRangeWarnings = 0;
+
+	/**
+	 * Stream where samples out of range are reported.
+	 */
+	PrintStream err;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param err definition in {@link #err}
+	 */
+	RawConverter(PrintStream err){
+		this.err = err;
+	}
+
+	/**
+	 * Checks whether the program arguments ask for a plain raw to raw conversion.
+	 *
+	 * @param parser program arguments
+	 * @return true if the conversion can be done by this class
+	 */
+	public static boolean isApplicable(ArgsParser parser){
+		if(!LoadFile.isRaw(parser.getInputImageFile()) || !LoadFile.isRaw(parser.getOutputImageFile())){
+			return false;
+		}
+		if(parser.isTransformRequested()){
+			return false;
+		}
+		return isValidGeometry(parser.getInputImageGeometry()) && isValidGeometry(parser.getOutputImageGeometry());
+	}
+
+	/**
+	 * Checks a raw image geometry (invalid geometries are reported by the normal path).
+	 *
+	 * @param geometry image geometry (see "-ig" parameter)
+	 * @return true if it is valid
+	 */
+	static boolean isValidGeometry(int[] geometry){
+		return (geometry != null) && (geometry[0] > 0) && (geometry[1] > 0) && (geometry[2] > 0)
+				&& (geometry[3] >= 0) && (geometry[3] <= 7) && (geometry[4] == 0 || geometry[4] == 1);
+	}
+
+	/**
+	 * Converts a raw file. Output image has the size of the input image (only type and byte order of the output geometry are used).
+	 *
+	 * @param inputFile input file name
+	 * @param inputGeometry input image geometry (see "-ig" parameter)
+	 * @param outputFile output file name
+	 * @param outputGeometry output image geometry (see "-og" parameter)
+	 * @param err stream where samples out of range are reported
+	 *
+	 * @throws WarningException when some I/O error occurs
+	 */
+	public static void convert(String inputFile, int[] inputGeometry, String outputFile, int[] outputGeometry, PrintStream err) throws WarningException{
+		int inType = inputGeometry[3];
+		int outType = outputGeometry[3];
+		int inBytes = MappedRawImage.getSampleBytes(inType);
+		ByteOrder inOrder = inputGeometry[4] == 0 ? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+		ByteOrder outOrder = outputGeometry[4] == 0 ? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+		long numSamples = (long) inputGeometry[0] * inputGeometry[1] * inputGeometry[2];
+
+		boolean integerConversion = inType <= 5 && outType <= 5;
+		if(inType != outType && !integerConversion){
+			//Float conversion: done row by row as the normal path does
+			MappedRawImage input = new MappedRawImage(inputFile, inputGeometry[0], inputGeometry[1], inputGeometry[2], inType, inputGeometry[4]);
+			int[] components = FormatFileConverter.getCropComponents(0, 0, null, inputGeometry[0]);
+			StripStreamer streamer = new StripStreamer(input, components, 0, 0, 0, 0, false, new RowOperation[0]);
+			RawImageWriter output = new RawImageWriter(outputFile, outType, outputGeometry[4], err);
+			try{
+				streamer.run(output, Math.max(1, CHUNK_SAMPLES / inputGeometry[2]));
+			}finally{
+				output.close();
+			}
+			return;
+		}
+
+		MappedRawImage.checkFile(inputFile, numSamples * inBytes);
+		File file = new File(outputFile);
+		if(file.exists()){
+			file.delete();
+		}
+		RandomAccessFile in = null;
+		RandomAccessFile out = null;
+		try{
+			in = new RandomAccessFile(inputFile, "r");
+			out = new RandomAccessFile(file, "rw");
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			if(inType == outType && inType != 0 && (inOrder == outOrder || inBytes == 1)){
+				long position = 0;
+				long imageBytes = numSamples * inBytes;
+				while(position < imageBytes){
+					FlightEvents.IOEvent event = FlightEvents.beginIO();
+					long bytes = inChannel.transferTo(position, imageBytes - position, outChannel);
+					FlightEvents.end(event, outputFile, FlightEvents.WRITE, position, bytes);
+					position += bytes;
+				}
+			}else{
+				new RawConverter(err).convertChunks(inputFile, inChannel, inType, inOrder, outputFile, outChannel, outType, outOrder, numSamples);
+			}
+		}catch(IOException e){
+			throw new WarningException("I/O error converting file \"" + inputFile + "\" to \"" + outputFile + "\".");
+		}finally{
+			try{
+				if(in != null) in.close();
+				if(out != null) out.close();
+			}catch(IOException e){
+				throw new WarningException("Error closing file \"" + outputFile + "\".");
+			}
+		}
+	}
+
+	/**
+	 * Converts chunk by chunk. Only for same type conversions (byte swap) or integer to integer conversions (booleans included).
+	 */
+	void convertChunks(String inputFile, FileChannel inChannel, int inType, ByteOrder inOrder, String outputFile, FileChannel outChannel, int outType, ByteOrder outOrder,
+			long numSamples) throws IOException{
+		int inBytes = sampleBytes(inType);
+		int outBytes = sampleBytes(outType);
+		ByteBuffer inBuffer = ByteBuffer.allocateDirect(CHUNK_SAMPLES * inBytes).order(inOrder);
+		ByteBuffer outBuffer = ByteBuffer.allocateDirect(CHUNK_SAMPLES * outBytes).order(outOrder);
+		long[] values = inType == outType && inType != 0 ? null: new long[CHUNK_SAMPLES];
+
+		for(long sample = 0; sample < numSamples; sample += CHUNK_SAMPLES){
+			int length = (int) Math.min(CHUNK_SAMPLES, numSamples - sample);
+			inBuffer.clear().limit(length * inBytes);
+			FlightEvents.IOEvent event = FlightEvents.beginIO();
+			while(inBuffer.hasRemaining()){
+				if(inChannel.read(inBuffer) < 0){
+					throw new IOException("Unexpected end of file.");
+				}
+			}
+			FlightEvents.end(event, inputFile, FlightEvents.READ, sample * inBytes, length * inBytes);
+			inBuffer.flip();
+			outBuffer.clear().limit(length * outBytes);
+			if(values == null){
+				swap(inBuffer, outBuffer, inBytes);
+			}else{
+				decode(inBuffer, inType, length, values);
+				encode(values, length, outType, outBuffer);
+			}
+			outBuffer.position(0).limit(length * outBytes);
+			event = FlightEvents.beginIO();
+			while(outBuffer.hasRemaining()){
+				outChannel.write(outBuffer);
+			}
+			FlightEvents.end(event, outputFile, FlightEvents.WRITE, sample * outBytes, length * outBytes);
+		}
+		reportWarnings();
+	}
+
+	/**
+	 * Byte order conversion. Views of both buffers have different byte orders, so a bulk put swaps every sample.
+	 */
+	static void swap(ByteBuffer in, ByteBuffer out, int sampleBytes){
+		switch(sampleBytes){
+		case 2:
+			out.asShortBuffer().put(in.asShortBuffer());
+			break;
+		case 4:
+			out.asIntBuffer().put(in.asIntBuffer());
+			break;
+		case 8:
+			out.asLongBuffer().put(in.asLongBuffer());
+			break;
+		default:
+			out.put(in);
+			break;
+		}
+	}
+
+	/**
+	 * Decodes integer samples (types 0 to 5) to long values.
+	 */
+	static void decode(ByteBuffer in, int type, int length, long[] values){
+		switch(type){
+		case 0:
+			for(int i = 0; i < length; i++) values[i] = in.get(i) == 0 ? 0: 1;
+			break;
+		case 1:
+			for(int i = 0; i < length; i++) values[i] = in.get(i) & 0xff;
+			break;
+		case 2:
+			for(int i = 0; i < length; i++) values[i] = in.getChar(i << 1);
+			break;
+		case 3:
+			for(int i = 0; i < length; i++) values[i] = in.getShort(i << 1);
+			break;
+		case 4:
+			for(int i = 0; i < length; i++) values[i] = in.getInt(i << 2);
+			break;
+		case 5:
+			for(int i = 0; i < length; i++) values[i] = in.getLong(i << 3);
+			break;
+		}
+	}
+
+	/**
+	 * Encodes long values to integer samples (types 0 to 5), clipping them to the range of the type.
+	 */
+	void encode(long[] values, int length, int type, ByteBuffer out){
+		if(type == 0){
+			for(int i = 0; i < length; i++) out.put(i, values[i] == 0 ? (byte) 0: (byte) 1);
+			return;
+		}
+		long min = MIN_VALUE[type];
+		long max = MAX_VALUE[type];
+		for(int i = 0; i < length; i++){
+			long value = values[i];
+			if(value < min || value > max){
+				warnOutOfRange("Pixel out of range: " + value + " not in [" + min + ", " + max + "]");
+				value = value < min ? min: max;
+			}
+			switch(type){
+			case 1:
+				out.put(i, (byte) value);
+				break;
+			case 2:
+				out.putChar(i << 1, (char) value);
+				break;
+			case 3:
+				out.putShort(i << 1, (short) value);
+				break;
+			case 4:
+				out.putInt(i << 2, (int) value);
+				break;
+			case 5:
+				out.putLong(i << 3, value);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reports a sample out of the range of the output type (only the first one is printed).
+	 */
+	void warnOutOfRange(String message){
+		if(outOfRangeWarnings == 0){
+			err.println(message);
+		}
+		outOfRangeWarnings++;
+	}
+
+	/**
+	 * Reports how many samples out of range were not printed, once all the samples are encoded.
+	 */
+	void reportWarnings(){
+		if(outOfRangeWarnings > 1){
+			err.println("[" + (outOfRangeWarnings - 1) + " duplicate warning messages suppressed]");
+		}
+	}
+
+	/**
+	 * Number of bytes of the sample type (the type has already been validated).
+	 */
+	static int sampleBytes(int type){
+		try{
+			return MappedRawImage.getSampleBytes(type);
+		}catch(WarningException e){
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,444 @@
+package ffc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import GiciException.*;
+
+
+/**
+ * Sequential writer of raw image files (".raw" or ".img") that receives the image by rows. Samples
+ * are encoded as GiciFile.SaveFile does for raw data (values out of the range of the sample type are
+ * clipped and reported to the error stream of the conversion).<br>
+ * Encoding is done in the calling thread, while the encoded data is written to disk in a background
+ * thread, so that writing one strip of rows overlaps with the computation of the next one.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class RawImageWriter{
+
+	/**
+	 * Maximum number of samples encoded in one buffer by {@link #writeSamples(float[], int, int)}.
+	 */
+	static final int WRITE_SAMPLES = 1 << 20;
+
+	/**
+	 * Name of the output file.
+	 */
+	String fileName;
+
+	/**
+	 * Output channel.
+	 */
+	FileChannel channel = null;
+
+	/**
+	 * Sample type of the raw data (see "-og" in {@link ArgsParser}).
+	 */
+	int sampleType;
+
+	/**
+	 * Number of bytes of each sample.
+	 */
+	int sampleBytes;
+
+	/**
+	 * Byte order of the output.
+	 */
+	ByteOrder order;
+
+	/**
+	 * Buffers used alternatively to encode samples (one is being written while the other is filled).
+	 */
+	ByteBuffer[] buffers = new ByteBuffer[2];
+
+	/**
+	 * Index of the buffer to be filled next.
+	 */
+	int currentBuffer = 0;
+
+	/**
+	 * Pending writes of each buffer (null if the buffer is free).
+	 */
+	Future<?>[] pendingWrites = new Future<?>[2];
+
+	/**
+	 * Thread that writes to disk.
+	 */
+	ExecutorService writerThread = null;
+
+	/**
+	 * Number of samples out of range found.
+	 */
+	int outOfRangeWarnings = 0;
+
+	/**
+	 * Stream where samples out of range are reported.
+	 */
+	PrintStream err;
+
+	/**
+	 * Constructor that creates (or truncates) the output file. Samples out of range are reported to
+	 * System.err.
+	 *
+	 * @param fileName name of the output file
+	 * @param sampleType data type of the samples (0 to 7, see "-og" parameter)
+	 * @param byteOrder 0 if BIG ENDIAN, 1 if LITTLE ENDIAN
+	 *
+	 * @throws WarningException when the file can not be created
+	 */
+	public RawImageWriter(String fileName, int sampleType, int byteOrder) throws WarningException{
+		this(fileName, sampleType, byteOrder, System.err);
+	}
+
+	/**
+	 * Constructor that creates (or truncates) the output file.
+	 *
+	 * @param fileName name of the output file
+	 * @param sampleType data type of the samples (0 to 7, see "-og" parameter)
+	 * @param byteOrder 0 if BIG ENDIAN, 1 if LITTLE ENDIAN
+	 * @param err definition in {@link #err}
+	 *
+	 * @throws WarningException when the file can not be created
+	 */
+	public RawImageWriter(String fileName, int sampleType, int byteOrder, PrintStream err) throws WarningException{
+		this.fileName = fileName;
+		this.err = err;
+		this.sampleType = sampleType;
+		this.sampleBytes = MappedRawImage.getSampleBytes(sampleType);
+		this.order = byteOrder == 0 ? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+		try{
+			File file = new File(fileName);
+			if(file.exists()){
+				file.delete();
+			}
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		}catch(IOException e){
+			throw new WarningException("File \"" + fileName + "\" can not be open.");
+		}
+		writerThread = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				return new Thread(StageStats.recordingExit(runnable), "ffc-writer");
+			}
+		});
+	}
+
+	/**
+	 * Encodes and writes a strip of rows. The call returns as soon as the rows are encoded, so the
+	 * rows can be reused by the caller.
+	 *
+	 * @param rows rows to write
+	 * @param numRows number of rows of the strip to write
+	 * @param xSize number of samples of each row
+	 *
+	 * @throws WarningException when some previous write failed
+	 */
+	public void writeRows(float[][] rows, int numRows, int xSize) throws WarningException{
+		ByteBuffer buffer = getBuffer(numRows * xSize);
+		for(int y = 0; y < numRows; y++){
+			encode(rows[y], 0, xSize, buffer);
+		}
+		submitWrite(buffer);
+	}
+
+	/**
+	 * Encodes and writes consecutive samples. The call returns as soon as the samples are encoded.
+	 *
+	 * @param samples array containing the samples
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 *
+	 * @throws WarningException when some previous write failed
+	 */
+	public void writeSamples(float[] samples, int offset, int length) throws WarningException{
+		while(length > 0){
+			int run = Math.min(length, WRITE_SAMPLES);
+			ByteBuffer buffer = getBuffer(run);
+			encode(samples, offset, run, buffer);
+			submitWrite(buffer);
+			offset += run;
+			length -= run;
+		}
+	}
+
+	/**
+	 * Encodes and writes consecutive samples at the given position of the file (not at the end of
+	 * the data already written). The call returns as soon as the samples are encoded.
+	 *
+	 * @param samples array containing the samples
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 * @param position position of the file, in samples, where the first sample is written
+	 *
+	 * @throws WarningException when some previous write failed
+	 */
+	public void writeSamples(float[] samples, int offset, int length, long position) throws WarningException{
+		while(length > 0){
+			int run = Math.min(length, WRITE_SAMPLES);
+			ByteBuffer buffer = getBuffer(run);
+			encode(samples, offset, run, buffer);
+			submitWrite(buffer, position * sampleBytes);
+			offset += run;
+			length -= run;
+			position += run;
+		}
+	}
+
+	/**
+	 * Writes the whole image.
+	 *
+	 * @param image image samples
+	 *
+	 * @throws WarningException when some write failed
+	 */
+	public void writeImage(ImageBuffer image) throws WarningException{
+		for(int z = 0; z < image.getZSize(); z++){
+			float[] band = image.getBand(z);
+			writeSamples(band, 0, band.length);
+		}
+	}
+
+	/**
+	 * Writes the samples of a view, reading each selected sample only once.
+	 *
+	 * @param view image view
+	 *
+	 * @throws WarningException when some write failed
+	 */
+	public void writeView(ImageView view) throws WarningException{
+		int xSize = view.getXSize();
+		int stripHeight = Math.max(1, WRITE_SAMPLES / Math.max(1, xSize));
+		float[] strip = new float[Math.min(stripHeight, view.getYSize()) * xSize];
+		for(int z = 0; z < view.getZSize(); z++){
+			for(int y = 0; y < view.getYSize(); y += stripHeight){
+				int numRows = Math.min(stripHeight, view.getYSize() - y);
+				for(int row = 0; row < numRows; row++){
+					view.getRow(z, y + row, strip, row * xSize);
+				}
+				writeSamples(strip, 0, numRows * xSize);
+			}
+		}
+	}
+
+	/**
+	 * Writes data already encoded in the sample type and byte order of the output.
+	 *
+	 * @param data encoded samples
+	 * @param offset position of the first byte
+	 * @param length number of bytes
+	 *
+	 * @throws WarningException when some previous write failed
+	 */
+	public void writeBytes(byte[] data, int offset, int length) throws WarningException{
+		while(length > 0){
+			int run = Math.min(length, WRITE_SAMPLES * sampleBytes);
+			ByteBuffer buffer = getByteBuffer(run);
+			buffer.put(data, offset, run);
+			submitWrite(buffer);
+			offset += run;
+			length -= run;
+		}
+	}
+
+	/**
+	 * Waits until the next buffer is free and prepares it to encode the given number of samples.
+	 */
+	ByteBuffer getBuffer(int numSamples) throws WarningException{
+		return getByteBuffer(numSamples * sampleBytes);
+	}
+
+	/**
+	 * Waits until the next buffer is free and prepares it to receive the given number of bytes.
+	 */
+	ByteBuffer getByteBuffer(int bytes) throws WarningException{
+		waitWrite(currentBuffer);
+		if(buffers[currentBuffer] == null || buffers[currentBuffer].capacity() < bytes){
+			buffers[currentBuffer] = ByteBuffer.allocate(bytes).order(order);
+		}
+		ByteBuffer buffer = buffers[currentBuffer];
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Writes the encoded buffer in the background and switches to the other buffer.
+	 */
+	void submitWrite(ByteBuffer buffer){
+		submitWrite(buffer, -1);
+	}
+
+	/**
+	 * Writes the encoded buffer in the background at the given position of the file and switches to
+	 * the other buffer.
+	 *
+	 * @param buffer encoded buffer
+	 * @param position position of the file in bytes, -1 to write at the current position
+	 */
+	void submitWrite(final ByteBuffer buffer, final long position){
+		buffer.flip();
+		pendingWrites[currentBuffer] = writerThread.submit(new Runnable(){
+			public void run(){
+				try{
+					FlightEvents.IOEvent event = FlightEvents.beginIO();
+					long offset = position < 0 && event.isEnabled() ? channel.position(): position;
+					long bytes = buffer.remaining();
+					while(buffer.hasRemaining()){
+						if(position < 0){
+							channel.write(buffer);
+						}else{
+							channel.write(buffer, position + buffer.position());
+						}
+					}
+					FlightEvents.end(event, fileName, FlightEvents.WRITE, offset, bytes);
+				}catch(IOException e){
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		currentBuffer = 1 - currentBuffer;
+	}
+
+	/**
+	 * Waits until the given buffer has been written.
+	 *
+	 * @param numBuffer buffer index
+	 *
+	 * @throws WarningException when the write failed
+	 */
+	void waitWrite(int numBuffer) throws WarningException{
+		if(pendingWrites[numBuffer] != null){
+			try{
+				pendingWrites[numBuffer].get();
+			}catch(InterruptedException e){
+				throw new WarningException("I/O error saving file \"" + fileName + "\".");
+			}catch(ExecutionException e){
+				throw new WarningException("I/O error saving file \"" + fileName + "\".");
+			}
+			pendingWrites[numBuffer] = null;
+		}
+	}
+
+	/**
+	 * Waits for the pending writes and closes the file.
+	 *
+	 * @throws WarningException when some write failed or the file can not be closed
+	 */
+	public void close() throws WarningException{
+		try{
+			waitWrite(0);
+			waitWrite(1);
+		}finally{
+			writerThread.shutdown();
+			try{
+				channel.close();
+			}catch(IOException e){
+				throw new WarningException("Error closing file \"" + fileName + "\".");
+			}
+		}
+		if(outOfRangeWarnings > 1){
+			err.println("[" + (outOfRangeWarnings - 1) + " duplicate warning messages suppressed]");
+		}
+	}
+
+	/**
+	 * Reports a sample out of the range of the output type (only the first one is printed).
+	 *
+	 * @param message warning message
+	 */
+	void warnOutOfRange(String message){
+		warnOutOfRange(message, 1);
+	}
+
+	/**
+	 * Reports several samples out of the range of the output type at once.
+	 *
+	 * @param message warning message of the first sample
+	 * @param count number of samples
+	 */
+	void warnOutOfRange(String message, int count){
+		if(outOfRangeWarnings == 0){
+			err.println(message);
+		}
+		outOfRangeWarnings += count;
+	}
+
+	/**
+	 * Encodes a run of samples at the current position of the buffer.
+	 *
+	 * @param samples samples to encode
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 * @param buffer destination buffer
+	 */
+	void encode(float[] samples, int offset, int length, ByteBuffer buffer){
+		int end = offset + length;
+		switch(sampleType){
+		case 0:
+			for(int x = offset; x < end; x++){
+				buffer.put(samples[x] == 0 ? (byte) 0: (byte) 1);
+			}
+			break;
+		case 1:
+			for(int x = offset; x < end; x++){
+				float sample = samples[x];
+				if(sample > 255f || sample < 0f){
+					warnOutOfRange("Pixel out of range: " + sample + " not in [0, 255]");
+				}
+				buffer.put((byte) (int) Math.max(Math.min(sample, 255f), 0f));
+			}
+			break;
+		case 2:
+			for(int x = offset; x < end; x++){
+				float sample = samples[x];
+				if(sample > 65535f || sample < 0f){
+					warnOutOfRange("Pixel out of range: " + sample + " not in [0, 65535]");
+				}
+				buffer.putChar((char) (int) Math.max(Math.min(sample, 65535f), 0f));
+			}
+			break;
+		case 3:
+			for(int x = offset; x < end; x++){
+				float sample = samples[x];
+				if(sample > 32767f || sample < -32768f){
+					warnOutOfRange("Pixel out of range: " + sample + " not in [-32768, 32767]");
+				}
+				buffer.putShort((short) (int) Math.max(Math.min(sample, 32767f), -32768f));
+			}
+			break;
+		case 4:
+			for(int x = offset; x < end; x++){
+				float sample = samples[x];
+				if(sample > 2097152f || sample < -2097152f){
+					warnOutOfRange("Pixel probably out of range.");
+				}
+				buffer.putInt((int) sample);
+			}
+			break;
+		case 5:
+			for(int x = offset; x < end; x++){
+				buffer.putLong((long) samples[x]);
+			}
+			break;
+		case 6:
+			for(int x = offset; x < end; x++){
+				buffer.putFloat(samples[x]);
+			}
+			break;
+		case 7:
+			for(int x = offset; x < end; x++){
+				buffer.putDouble(samples[x]);
+			}
+			break;
+		}
+	}
+}
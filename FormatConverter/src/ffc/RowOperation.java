@@ -0,0 +1,23 @@
+package ffc;
+
+
+/**
+ * Operation that only needs the samples of one image row to be computed. Stages implementing this
+ * interface can be applied over a fully loaded image or over strips of rows read from a file (see
+ * {@link StripStreamer}), giving exactly the same result.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public interface RowOperation{
+
+	/**
+	 * Applies the operation, in place, over one image row.
+	 *
+	 * @param z component the row belongs to (operations may have different parameters for each component)
+	 * @param samples array containing the row
+	 * @param offset position of samples where the row begins
+	 * @param length number of samples of the row (image width)
+	 */
+	void apply(int z, float[] samples, int offset, int length);
+}
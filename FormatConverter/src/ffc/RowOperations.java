@@ -0,0 +1,313 @@
+package ffc;
+
+import GiciException.*;
+
+
+/**
+ * Row operations of ffc (see {@link RowOperation}) and the methods that build them from the program
+ * arguments. Each method returns null when the corresponding stage has not been requested.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public final class RowOperations{
+
+	private RowOperations(){
+	}
+
+	/**
+	 * Applies a row operation over all the rows of an image, using the threads set with
+	 * {@link Parallel#setThreads(int)}. All the operations of this class can be applied concurrently
+	 * to different rows.
+	 *
+	 * @param image image samples
+	 * @param operation operation to apply
+	 */
+	public static void apply(ImageBuffer image, RowOperation operation){
+		Parallel.apply(image, operation);
+	}
+
+	/**
+	 * Builds the coefficients approximation operation ("-ca", "-mn", "-mx", "-ltv", "-utv", "-sv", "-sv4not0p" and "-svim" parameters).
+	 * Only the given parameters are compiled into the operation, each one as a specialized
+	 * {@link Pointwise} step, so no parameter is checked per sample.
+	 *
+	 * @param parser program arguments
+	 * @param zSize number of image components
+	 * @return the operation, or null if none of its parameters has been given
+	 *
+	 * @throws ParameterException when too much values are given for some parameter
+	 */
+	public static RowOperation coefficientsApproximation(ArgsParser parser, int zSize) throws ParameterException{
+		int[] coefficientsApproximation = null;
+		float[] minValue = parser.getMinValue();
+		float[] maxValue = parser.getMaxValue();
+		float[] lowerThresholdValue = parser.getLowerThresholdValue();
+		float[] upperThresholdValue = parser.getUpperThresholdValue();
+		float[] subtractValue = parser.getSubtractValue();
+		float[] subtractValueForNonZeroPixels = parser.getSubtractValueForNonZeroPixels();
+		float[] subtractValueIfMatch = parser.getSubtractValueIfMatch();
+
+		if((minValue == null) && (maxValue == null) && (lowerThresholdValue == null) && (upperThresholdValue == null) && (subtractValue == null) && (subtractValueForNonZeroPixels == null) && (subtractValueIfMatch == null)){
+			return null;
+		}
+		coefficientsApproximation = FormatFileConverter.setParameterInt(parser.getCoefficientsApproximation(),zSize,0);
+		if (minValue!=null){
+			minValue = FormatFileConverter.setParameterFloat(minValue,zSize,minValue[0]);
+		}
+		if (maxValue!=null){
+			maxValue = FormatFileConverter.setParameterFloat(maxValue,zSize,maxValue[0]);
+		}
+		if (lowerThresholdValue!=null){
+			lowerThresholdValue = FormatFileConverter.setParameterFloat(lowerThresholdValue,zSize,lowerThresholdValue[0]);
+		}
+		if (upperThresholdValue!=null){
+			upperThresholdValue = FormatFileConverter.setParameterFloat(upperThresholdValue,zSize,upperThresholdValue[0]);
+		}
+		if (subtractValue!=null){
+			subtractValue = FormatFileConverter.setParameterFloat(subtractValue,zSize,subtractValue[0]);
+		}
+		if (subtractValueForNonZeroPixels!=null){
+			subtractValueForNonZeroPixels = FormatFileConverter.setParameterFloat(subtractValueForNonZeroPixels,zSize,subtractValueForNonZeroPixels[0]);
+		}
+		if (subtractValueIfMatch!=null){
+			subtractValueIfMatch = FormatFileConverter.setParameterFloat(subtractValue,zSize,subtractValueIfMatch[0]);
+		}
+
+		//Steps in the same order as TransformImage.coefficientsApproximation
+		boolean rounding = false;
+		for(int z = 0; z < zSize; z++){
+			if(coefficientsApproximation[z] >= 1 && coefficientsApproximation[z] <= 3){
+				rounding = true;
+			}
+		}
+		return chain(
+			maxValue == null ? null: new Pointwise(Pointwise.MAX_VALUE, maxValue, null),
+			minValue == null ? null: new Pointwise(Pointwise.MIN_VALUE, minValue, null),
+			lowerThresholdValue == null ? null: new Pointwise(Pointwise.LOWER_THRESHOLD, lowerThresholdValue, null),
+			upperThresholdValue == null ? null: new Pointwise(Pointwise.UPPER_THRESHOLD, upperThresholdValue, null),
+			subtractValue == null ? null: new Pointwise(Pointwise.SUBTRACT, subtractValue, null),
+			subtractValueForNonZeroPixels == null ? null: new Pointwise(Pointwise.SUBTRACT_NON_ZERO, subtractValueForNonZeroPixels, null),
+			subtractValueIfMatch == null ? null: new Pointwise(Pointwise.ZERO_IF_MATCH, subtractValueIfMatch, null),
+			rounding ? new Pointwise(Pointwise.ROUNDING, null, coefficientsApproximation): null
+		);
+	}
+
+	/**
+	 * Joins several operations into one that applies all of them to each row before moving to the
+	 * next row, so the image is swept only once.
+	 *
+	 * @param operations operations in application order (null ones are skipped)
+	 * @return the joined operation, or null if all the operations are null
+	 */
+	public static RowOperation chain(RowOperation... operations){
+		int numOperations = 0;
+		for(RowOperation operation: operations){
+			if(operation != null) numOperations++;
+		}
+		if(numOperations == 0){
+			return null;
+		}
+		RowOperation[] steps = new RowOperation[numOperations];
+		numOperations = 0;
+		for(RowOperation operation: operations){
+			if(operation != null) steps[numOperations++] = operation;
+		}
+		return numOperations == 1 ? steps[0]: new Chain(steps);
+	}
+
+	/**
+	 * Builds the quantization/dequantization operation ("-q" parameter).
+	 *
+	 * @param parser program arguments
+	 * @return the operation, or null if no quantization has been requested
+	 */
+	public static RowOperation quantization(ArgsParser parser){
+		int[] quantization = parser.getQuantization();
+		if(quantization == null){
+			return null;
+		}
+		int direction = quantization[0];
+		int quantizer = quantization[1];
+		int qstep = quantization[2];
+		if((direction != 1 && direction != -1) || (quantizer != 0 && quantizer != 1)){
+			return null;
+		}
+		return new Quantization(direction, quantizer, qstep);
+	}
+
+	/**
+	 * Builds the spatial DPCM operation ("-sptDpcm" parameter, see {@link SpatialDPCM}).
+	 *
+	 * @param spatialDPCM DPCM mode (1, -1, 2 or -2)
+	 * @return the operation, or null for any other mode
+	 */
+	public static RowOperation spatialDPCM(int spatialDPCM){
+		if(spatialDPCM != 1 && spatialDPCM != -1 && spatialDPCM != 2 && spatialDPCM != -2){
+			return null;
+		}
+		return new SpatialDPCM(spatialDPCM);
+	}
+
+	/**
+	 * Applies an operation to a partial image whose first component is a later component of the
+	 * whole image, so that the operation uses the parameters of the right components.
+	 *
+	 * @param operation operation built for the whole image (null if none)
+	 * @param z0 component of the whole image that is the first component of the partial image
+	 * @return the shifted operation, or operation itself when z0 is 0 or operation is null
+	 */
+	public static RowOperation shift(RowOperation operation, int z0){
+		return operation == null || z0 == 0 ? operation: new Shift(operation, z0);
+	}
+
+	/**
+	 * Operation shifted by {@link RowOperations#shift(RowOperation, int)}.
+	 */
+	static final class Shift implements RowOperation{
+
+		final RowOperation operation;
+		final int z0;
+
+		Shift(RowOperation operation, int z0){
+			this.operation = operation;
+			this.z0 = z0;
+		}
+
+		public void apply(int z, float[] samples, int offset, int length){
+			operation.apply(z0 + z, samples, offset, length);
+		}
+	}
+
+	/**
+	 * Operations joined by {@link RowOperations#chain(RowOperation...)}.
+	 */
+	static final class Chain implements RowOperation{
+
+		final RowOperation[] operations;
+
+		Chain(RowOperation[] operations){
+			this.operations = operations;
+		}
+
+		public void apply(int z, float[] samples, int offset, int length){
+			for(RowOperation operation: operations){
+				operation.apply(z, samples, offset, length);
+			}
+		}
+	}
+
+	/**
+	 * One step of the coefficients approximation (see {@link TransformImage#coefficientsApproximation(int, float[], int, int, int[], float[], float[], float[], float[], float[], float[], float[])}).
+	 * The kind of step is selected once per row, and each kind has its own loop.
+	 */
+	static final class Pointwise implements RowOperation{
+
+		static final int MAX_VALUE = 0;
+		static final int MIN_VALUE = 1;
+		static final int LOWER_THRESHOLD = 2;
+		static final int UPPER_THRESHOLD = 3;
+		static final int SUBTRACT = 4;
+		static final int SUBTRACT_NON_ZERO = 5;
+		static final int ZERO_IF_MATCH = 6;
+		static final int ROUNDING = 7;
+
+		final int step;
+		final float[] values;
+		final int[] modes;
+
+		/**
+		 * @param step kind of step
+		 * @param values value of each component (all steps but ROUNDING)
+		 * @param modes rounding mode of each component (ROUNDING step, see "-ca")
+		 */
+		Pointwise(int step, float[] values, int[] modes){
+			this.step = step;
+			this.values = values;
+			this.modes = modes;
+		}
+
+		public void apply(int z, float[] samples, int offset, int length){
+			int end = offset + length;
+			float value = values == null ? 0f: values[z];
+			switch(step){
+			case MAX_VALUE:
+				for(int x = offset; x < end; x++){
+					if(samples[x] > value) samples[x] = value;
+				}
+				break;
+			case MIN_VALUE:
+				for(int x = offset; x < end; x++){
+					if(samples[x] < value) samples[x] = value;
+				}
+				break;
+			case LOWER_THRESHOLD:
+				for(int x = offset; x < end; x++){
+					if(Math.abs(samples[x]) < value) samples[x] = 0;
+				}
+				break;
+			case UPPER_THRESHOLD:
+				for(int x = offset; x < end; x++){
+					if(Math.abs(samples[x]) >= value) samples[x] = 0;
+				}
+				break;
+			case SUBTRACT:
+				for(int x = offset; x < end; x++){
+					samples[x] -= value;
+				}
+				break;
+			case SUBTRACT_NON_ZERO:
+				for(int x = offset; x < end; x++){
+					if(samples[x] != 0) samples[x] -= value;
+				}
+				break;
+			case ZERO_IF_MATCH:
+				for(int x = offset; x < end; x++){
+					if(samples[x] == value) samples[x] = 0;
+				}
+				break;
+			case ROUNDING:
+				switch(modes[z]){
+				case 1:
+					for(int x = offset; x < end; x++){
+						samples[x] = (float) Math.rint(samples[x]);
+					}
+					break;
+				case 2:
+					for(int x = offset; x < end; x++){
+						samples[x] = (float) Math.floor(samples[x]);
+					}
+					break;
+				case 3:
+					for(int x = offset; x < end; x++){
+						samples[x] = (float) Math.ceil(samples[x]);
+					}
+					break;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Quantization (direction 1) or dequantization (direction -1) with the SDQ (quantizer 0) or UQ (quantizer 1) quantizers.
+	 */
+	static final class Quantization implements RowOperation{
+
+		final int direction;
+		final BulkQuantizer quantizer;
+
+		Quantization(int direction, int quantizer, int qstep){
+			this.direction = direction;
+			this.quantizer = new BulkQuantizer(quantizer, qstep);
+		}
+
+		public void apply(int z, float[] samples, int offset, int length){
+			if(direction == 1){
+				quantizer.quantize(samples, offset, length, samples);
+			}else{
+				quantizer.dequantize(samples, offset, length, samples);
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package ffc;
+
+
+/**
+ * In place spatial DPCM ("-sptDpcm" parameter), along the rows of each component:
+ *   <ul>
+ *     <li> forward modes (1 and 2) are differences of neighbour samples. They are computed in short
+ *          blocks whose inner loop has no dependencies between samples, so the JIT compiler can
+ *          vectorize it
+ *     <li> inverse modes (-1 and -2) are prefix sums of the rows. Rows are computed in parallel and,
+ *          when there are fewer rows than threads and rows are very wide, each row is computed with a
+ *          blocked parallel scan
+ *   </ul>
+ * Results are exactly the ones of computing each row sequentially, sample by sample.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class SpatialDPCM implements RowOperation{
+
+	/**
+	 * Samples of the blocks of the forward modes.
+	 */
+	static final int BLOCK_SAMPLES = 256;
+
+	/**
+	 * Minimum length of the rows computed with a parallel scan.
+	 */
+	static final int WIDE_ROW_SAMPLES = 1 << 16;
+
+	/**
+	 * Largest magnitude up to which every integer is exactly represented as a float (2^24).
+	 */
+	static final double EXACT_INTEGER_LIMIT = 1 << 24;
+
+	/**
+	 * DPCM mode (1, -1, 2 or -2, see "-sptDpcm").
+	 */
+	final int mode;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param mode definition in {@link #mode}
+	 */
+	public SpatialDPCM(int mode){
+		this.mode = mode;
+	}
+
+	/**
+	 * Computes the DPCM over all the rows of an image, in place.
+	 *
+	 * @param image image samples
+	 */
+	public void run(ImageBuffer image){
+		int zSize = image.getZSize();
+		int ySize = image.getYSize();
+		int xSize = image.getXSize();
+		if(mode < 0 && xSize >= WIDE_ROW_SAMPLES && (long) zSize * ySize < Parallel.getThreads()){
+			for(int z = 0; z < zSize; z++){
+				float[] band = image.getBand(z);
+				for(int y = 0; y < ySize; y++){
+					if(!scan(band, y * xSize, xSize)){
+						apply(z, band, y * xSize, xSize);
+					}
+				}
+			}
+		}else{
+			Parallel.apply(image, this);
+		}
+	}
+
+	public void apply(int z, float[] samples, int offset, int length){
+		int end = offset + length;
+		switch(mode){
+		case 1:
+			//Blocks are computed from the end of the row, so each one is predicted from original samples
+			float[] previous = new float[Math.min(BLOCK_SAMPLES, length)];
+			for(int blockEnd = end; blockEnd > offset + 1; blockEnd -= previous.length){
+				int blockStart = Math.max(offset + 1, blockEnd - previous.length);
+				int blockLength = blockEnd - blockStart;
+				System.arraycopy(samples, blockStart - 1, previous, 0, blockLength);
+				for(int i = 0; i < blockLength; i++){
+					samples[blockStart + i] = samples[blockStart + i] - previous[i];
+				}
+			}
+			break;
+		case -1:
+			for(int x = offset + 1; x < end; x++){
+				samples[x] = samples[x] + samples[x-1];
+			}
+			break;
+		case 2:
+			for(int x = offset; x < end - 1; x++){
+				samples[x] = samples[x] - samples[x+1];
+			}
+			break;
+		case -2:
+			for(int x = end - 2; x >= offset; x--){
+				samples[x] = samples[x] + samples[x+1];
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Computes an inverse mode over one row with a blocked parallel scan: the prefix sums of each
+	 * block are computed in parallel, then the sum of the previous blocks is added to each block. This
+	 * only gives the same result as the sequential sum when no sum is rounded, so the scan is only
+	 * done when all the samples are integers and the sum of their magnitudes is exactly representable.
+	 *
+	 * @param samples array containing the row
+	 * @param offset position of the first sample of the row
+	 * @param length number of samples of the row
+	 * @return true if the row has been computed, false if it has not been modified because the scan would not be exact
+	 */
+	boolean scan(final float[] samples, final int offset, final int length){
+		final int blockLength = (length + 4 * Parallel.getThreads() - 1) / (4 * Parallel.getThreads());
+		//No block is empty
+		final int numBlocks = (length + blockLength - 1) / blockLength;
+		final double[] magnitudes = new double[numBlocks];
+		Parallel.forEach(numBlocks, new Parallel.Task(){
+			public void run(int block){
+				double magnitude = 0;
+				for(int x = offset + block * blockLength; x < Math.min(offset + length, offset + (block + 1) * blockLength); x++){
+					float sample = samples[x];
+					if(sample != (float) Math.rint(sample)){
+						//Not an integer (or NaN)
+						magnitude = Double.POSITIVE_INFINITY;
+						break;
+					}
+					magnitude += Math.abs(sample);
+				}
+				magnitudes[block] = magnitude;
+			}
+		});
+		double magnitude = 0;
+		for(int block = 0; block < numBlocks; block++){
+			magnitude += magnitudes[block];
+		}
+		if(!(magnitude <= EXACT_INTEGER_LIMIT)){
+			return false;
+		}
+		//Blocks in the order of the sums (from the right in mode -2)
+		final boolean fromRight = mode == -2;
+		final float[] totals = new float[numBlocks];
+		Parallel.forEach(numBlocks, new Parallel.Task(){
+			public void run(int block){
+				int start = offset + block * blockLength;
+				int end = Math.min(offset + length, start + blockLength);
+				apply(0, samples, start, end - start);
+				totals[block] = fromRight ? samples[start]: samples[end - 1];
+			}
+		});
+		//Sum of the blocks before each block (none for the first one, so -0 samples are kept)
+		final float[] carries = new float[numBlocks];
+		if(fromRight){
+			for(int block = numBlocks - 2; block >= 0; block--){
+				carries[block] = block == numBlocks - 2 ? totals[block + 1]: carries[block + 1] + totals[block + 1];
+			}
+		}else{
+			for(int block = 1; block < numBlocks; block++){
+				carries[block] = block == 1 ? totals[block - 1]: carries[block - 1] + totals[block - 1];
+			}
+		}
+		Parallel.forEach(numBlocks, new Parallel.Task(){
+			public void run(int block){
+				if(block == (fromRight ? numBlocks - 1: 0)){
+					return;
+				}
+				float carry = carries[block];
+				for(int x = offset + block * blockLength; x < Math.min(offset + length, offset + (block + 1) * blockLength); x++){
+					samples[x] = samples[x] + carry;
+				}
+			}
+		});
+		return true;
+	}
+}
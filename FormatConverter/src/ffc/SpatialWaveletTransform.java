@@ -0,0 +1,278 @@
+package ffc;
+
+import GiciException.*;
+import GiciTransform.ForwardWaveletTransform;
+import GiciTransform.InverseWaveletTransform;
+
+
+/**
+ * Parallel spatial discrete wavelet transform ("-wt", "-wl" and "-wo" parameters). The result is
+ * exactly the one of GiciTransform.ForwardWaveletTransform and InverseWaveletTransform, since the
+ * one-dimensional filtering of each row and column is still done by those classes:
+ *   <ul>
+ *     <li> when there are at least as many components as threads, components are transformed concurrently
+ *     <li> otherwise, components are transformed one after another, and each pass of rows or columns
+ *          of each level is split in blocks of rows (or columns) filtered concurrently
+ *   </ul>
+ * Samples are taken from the component arrays of the {@link ImageBuffer}, so the whole image is
+ * never copied to a jagged array.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class SpatialWaveletTransform{
+
+	/**
+	 * Image to transform (transformed in place).
+	 */
+	ImageBuffer image;
+
+	/**
+	 * Parameters of each component, as in ForwardWaveletTransform.setParameters.
+	 */
+	int[] types;
+	int[] levels;
+	int[] order;
+
+	/**
+	 * true for the forward transform, false for the inverse one.
+	 */
+	boolean forward;
+
+	/**
+	 * First error found by some thread.
+	 */
+	ErrorException failure = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param image image to transform (transformed in place)
+	 * @param types wavelet type of each component (see "-wt", 0 means no transform)
+	 * @param levels number of levels of each component
+	 * @param order order of the horizontal and vertical passes of each component (see "-wo")
+	 * @param forward true for the forward transform, false for the inverse one
+	 */
+	public SpatialWaveletTransform(ImageBuffer image, int[] types, int[] levels, int[] order, boolean forward){
+		this.image = image;
+		this.types = types;
+		this.levels = levels;
+		this.order = order;
+		this.forward = forward;
+	}
+
+	/**
+	 * Computes the transform.
+	 *
+	 * @throws ErrorException when the GICI transform fails
+	 */
+	public void run() throws ErrorException{
+		int zSize = image.getZSize();
+		if(zSize >= Parallel.getThreads()){
+			Parallel.forEach(zSize, new Parallel.Task(){
+				public void run(int z){
+					try{
+						transformComponent(z);
+					}catch(ErrorException e){
+						setFailure(e);
+					}
+				}
+			});
+		}else{
+			for(int z = 0; z < zSize && failure == null; z++){
+				transformLevels(z);
+			}
+		}
+		if(failure != null){
+			throw failure;
+		}
+	}
+
+	/**
+	 * Keeps the first error found.
+	 */
+	synchronized void setFailure(ErrorException e){
+		if(failure == null){
+			failure = e;
+		}
+	}
+
+	/**
+	 * Transforms one component with a single GICI transform.
+	 *
+	 * @param z component
+	 *
+	 * @throws ErrorException when the GICI transform fails
+	 */
+	void transformComponent(int z) throws ErrorException{
+		if(types[z] == 0 || levels[z] <= 0){
+			return;
+		}
+		int ySize = image.getYSize();
+		int xSize = image.getXSize();
+		float[] band = image.getBand(z);
+		float[][][] samples = new float[1][ySize][xSize];
+		for(int y = 0; y < ySize; y++){
+			System.arraycopy(band, y * xSize, samples[0][y], 0, xSize);
+		}
+		samples = transform(samples, types[z], levels[z], order[z]);
+		for(int y = 0; y < ySize; y++){
+			System.arraycopy(samples[0][y], 0, band, y * xSize, xSize);
+		}
+	}
+
+	/**
+	 * Transforms one component level by level, filtering the rows and columns of each pass in parallel.
+	 * Passes are done in the same order as the GICI transforms do.
+	 *
+	 * @param z component
+	 */
+	void transformLevels(int z){
+		int numLevels = levels[z];
+		if(types[z] == 0 || numLevels <= 0){
+			return;
+		}
+		int ySize = image.getYSize();
+		int xSize = image.getXSize();
+		if(forward){
+			int xLength = xSize;
+			int yLength = ySize;
+			for(int level = 0; level < numLevels && failure == null; level++){
+				if(order[z] == 0 || order[z] == 2){
+					filterRows(z, yLength, xLength);
+				}
+				if(order[z] != 2){
+					filterColumns(z, xLength, yLength);
+				}
+				if(order[z] == 1){
+					filterRows(z, yLength, xLength);
+				}
+				xLength = xLength / 2 + xLength % 2;
+				if(order[z] != 2){
+					yLength = yLength / 2 + yLength % 2;
+				}
+			}
+		}else{
+			//Sizes of the low pass band of each level, from the deepest one
+			int[] xLengths = new int[numLevels];
+			int[] yLengths = new int[numLevels];
+			xLengths[numLevels - 1] = xSize;
+			yLengths[numLevels - 1] = ySize;
+			for(int level = numLevels - 2; level >= 0; level--){
+				xLengths[level] = xLengths[level + 1] / 2 + xLengths[level + 1] % 2;
+				yLengths[level] = yLengths[level + 1] / 2 + yLengths[level + 1] % 2;
+			}
+			for(int level = 0; level < numLevels && failure == null; level++){
+				int xLength = xLengths[level];
+				int yLength = order[z] == 2 ? ySize: yLengths[level];
+				if(order[z] == 0){
+					filterColumns(z, xLength, yLength);
+				}
+				filterRows(z, yLength, xLength);
+				if(order[z] == 1){
+					filterColumns(z, xLength, yLength);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Filters the first numRows rows of a component (only their first length samples).
+	 */
+	void filterRows(final int z, final int numRows, final int length){
+		final float[] band = image.getBand(z);
+		final int xSize = image.getXSize();
+		final int blockRows = Parallel.getBlockRows(numRows, length);
+		final int numBlocks = (numRows + blockRows - 1) / blockRows;
+		Parallel.forEach(numBlocks, new Parallel.Task(){
+			public void run(int block){
+				int y0 = block * blockRows;
+				int rows = Math.min(blockRows, numRows - y0);
+				float[][][] lines = new float[1][rows][length];
+				for(int row = 0; row < rows; row++){
+					System.arraycopy(band, (y0 + row) * xSize, lines[0][row], 0, length);
+				}
+				try{
+					lines = filter(lines, types[z]);
+				}catch(ErrorException e){
+					setFailure(e);
+					return;
+				}
+				for(int row = 0; row < rows; row++){
+					System.arraycopy(lines[0][row], 0, band, (y0 + row) * xSize, length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Filters the first numColumns columns of a component (only their first length samples).
+	 */
+	void filterColumns(final int z, final int numColumns, final int length){
+		final float[] band = image.getBand(z);
+		final int xSize = image.getXSize();
+		final int blockColumns = Parallel.getBlockRows(numColumns, length);
+		final int numBlocks = (numColumns + blockColumns - 1) / blockColumns;
+		Parallel.forEach(numBlocks, new Parallel.Task(){
+			public void run(int block){
+				int x0 = block * blockColumns;
+				int columns = Math.min(blockColumns, numColumns - x0);
+				float[][][] lines = new float[1][columns][length];
+				for(int y = 0; y < length; y++){
+					for(int column = 0; column < columns; column++){
+						lines[0][column][y] = band[y * xSize + x0 + column];
+					}
+				}
+				try{
+					lines = filter(lines, types[z]);
+				}catch(ErrorException e){
+					setFailure(e);
+					return;
+				}
+				for(int y = 0; y < length; y++){
+					for(int column = 0; column < columns; column++){
+						band[y * xSize + x0 + column] = lines[0][column][y];
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Filters each row of lines once. A one level transform with only horizontal passes (order 2)
+	 * filters each row exactly once, as the GICI transforms do with every row and column.
+	 *
+	 * @param lines lines to filter (index meaning [0][line][sample])
+	 * @param type wavelet type
+	 * @return the filtered lines
+	 *
+	 * @throws ErrorException when the GICI transform fails
+	 */
+	float[][][] filter(float[][][] lines, int type) throws ErrorException{
+		return transform(lines, type, 1, 2);
+	}
+
+	/**
+	 * Runs the GICI transform over a one component image.
+	 */
+	float[][][] transform(float[][][] samples, int type, int numLevels, int passOrder) throws ErrorException{
+		int[] typeParameter = {type};
+		int[] levelsParameter = {numLevels};
+		int[] orderParameter = {passOrder};
+		if(forward){
+			ForwardWaveletTransform fwt = new ForwardWaveletTransform(samples);
+			fwt.setParameters(typeParameter, levelsParameter, orderParameter);
+			return fwt.run();
+		}else{
+			InverseWaveletTransform iwt = new InverseWaveletTransform(samples);
+			iwt.setParameters(typeParameter, levelsParameter, orderParameter);
+			try{
+				return iwt.run();
+			}catch(ErrorException e){
+				throw e;
+			}catch(Exception e){
+				throw new ErrorException(e.getMessage());
+			}
+		}
+	}
+}
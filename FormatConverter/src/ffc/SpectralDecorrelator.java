@@ -0,0 +1,166 @@
+package ffc;
+
+import GiciException.*;
+
+
+/**
+ * Parallel spectral decorrelators of the "-df" parameter (DPCM and differential reference). The
+ * results are exactly the ones of GiciTransform.DPCMSpectralDecorrelator, which computes them over
+ * the whole image with a single thread.<br>
+ * Every pixel is decorrelated independently of the others (the inverse transforms are only
+ * sequential along the components), so the image is split in tiles of consecutive pixels and the
+ * tiles are processed concurrently (see {@link Parallel}). Inside a tile, each component is swept
+ * as a contiguous run of samples.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class SpectralDecorrelator{
+
+	/**
+	 * Image samples (decorrelated in place).
+	 */
+	ImageBuffer image;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param image definition in {@link #image}
+	 */
+	public SpectralDecorrelator(ImageBuffer image){
+		this.image = image;
+	}
+
+	/**
+	 * Forward DPCM: each component is predicted by the previous one, except the components multiple
+	 * of the index, which are kept as they are.
+	 *
+	 * @param index distance between the components that are not predicted (0 means only the first one)
+	 * @return the decorrelated image
+	 */
+	public ImageBuffer forwardDPCM(int index){
+		final int distance = index == 0 ? image.getZSize(): index;
+		forEachTile(new TileOperation(){
+			public void apply(int p0, int length){
+				for(int z = image.getZSize() - 1; z > 0; z--){
+					if(z % distance != 0){
+						float[] band = image.getBand(z);
+						float[] previous = image.getBand(z - 1);
+						for(int p = p0; p < p0 + length; p++){
+							band[p] -= previous[p];
+						}
+					}
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Inverse of {@link #forwardDPCM(int)}.
+	 *
+	 * @param index distance between the components that are not predicted (0 means only the first one)
+	 * @return the image
+	 */
+	public ImageBuffer inverseDPCM(int index){
+		final int distance = index == 0 ? image.getZSize(): index;
+		forEachTile(new TileOperation(){
+			public void apply(int p0, int length){
+				for(int z = 1; z < image.getZSize(); z++){
+					if(z % distance != 0){
+						float[] band = image.getBand(z);
+						float[] previous = image.getBand(z - 1);
+						for(int p = p0; p < p0 + length; p++){
+							band[p] += previous[p];
+						}
+					}
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Forward differential reference: the reference component is subtracted from all the others.
+	 *
+	 * @param reference reference component
+	 * @return the decorrelated image
+	 *
+	 * @throws ErrorException when the reference is not a component of the image
+	 */
+	public ImageBuffer forwardDifferentialReference(int reference) throws ErrorException{
+		return differentialReference(reference, true);
+	}
+
+	/**
+	 * Inverse of {@link #forwardDifferentialReference(int)}.
+	 *
+	 * @param reference reference component
+	 * @return the image
+	 *
+	 * @throws ErrorException when the reference is not a component of the image
+	 */
+	public ImageBuffer inverseDifferentialReference(int reference) throws ErrorException{
+		return differentialReference(reference, false);
+	}
+
+	/**
+	 * Subtracts (or adds) the reference component to all the others.
+	 */
+	ImageBuffer differentialReference(final int reference, final boolean forward) throws ErrorException{
+		if(reference < 0 || reference >= image.getZSize()){
+			throw new ErrorException("Reference index is not is the proper range");
+		}
+		final float[] referenceBand = image.getBand(reference);
+		forEachTile(new TileOperation(){
+			public void apply(int p0, int length){
+				for(int z = 0; z < image.getZSize(); z++){
+					if(z != reference){
+						float[] band = image.getBand(z);
+						if(forward){
+							for(int p = p0; p < p0 + length; p++){
+								band[p] -= referenceBand[p];
+							}
+						}else{
+							for(int p = p0; p < p0 + length; p++){
+								band[p] += referenceBand[p];
+							}
+						}
+					}
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Operation over the pixels of a tile.
+	 */
+	interface TileOperation{
+
+		/**
+		 * Processes all the components of a tile.
+		 *
+		 * @param p0 position of the first pixel of the tile in the components
+		 * @param length number of pixels of the tile
+		 */
+		void apply(int p0, int length);
+	}
+
+	/**
+	 * Runs an operation over all the tiles of the image in parallel.
+	 *
+	 * @param operation operation to run
+	 */
+	void forEachTile(final TileOperation operation){
+		final int numPixels = image.getYSize() * image.getXSize();
+		final int tilePixels = Parallel.getTilePixels(numPixels, image.getZSize());
+		int numTiles = (numPixels + tilePixels - 1) / tilePixels;
+		Parallel.forEach(numTiles, new Parallel.Task(){
+			public void run(int tile){
+				int p0 = tile * tilePixels;
+				operation.apply(p0, Math.min(tilePixels, numPixels - p0));
+			}
+		});
+	}
+}
@@ -0,0 +1,158 @@
+package ffc;
+
+import GiciException.*;
+import GiciTransform.ForwardDWTCore;
+import GiciTransform.InverseDWTCore;
+
+
+/**
+ * Parallel spectral discrete wavelet transform ("-swt" and "-swl" parameters). The result is
+ * exactly the one of GiciTransform.ForwardNonPyramidal3D and InverseNonPyramidal3D with only the
+ * levels of the spectral axis set, since each spectral vector is still filtered by the GICI
+ * wavelet cores.<br>
+ * The image is split in tiles of consecutive pixels. The spectral vectors of a tile are gathered
+ * in a small block where each vector is contiguous, all the levels of the transform are computed
+ * over that block while it is in cache, and the vectors are then scattered back to the components.
+ * Tiles are transformed concurrently (see {@link Parallel}).
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class SpectralWaveletTransform{
+
+	/**
+	 * Image to transform (transformed in place).
+	 */
+	ImageBuffer image;
+
+	/**
+	 * Wavelet type (see "-swt").
+	 */
+	int type;
+
+	/**
+	 * Number of levels (see "-swl").
+	 */
+	int levels;
+
+	/**
+	 * true for the forward transform, false for the inverse one.
+	 */
+	boolean forward;
+
+	/**
+	 * First error found by some thread.
+	 */
+	ErrorException failure = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param image image to transform (transformed in place)
+	 * @param type wavelet type (see "-swt", 0 means no transform)
+	 * @param levels number of levels
+	 * @param forward true for the forward transform, false for the inverse one
+	 */
+	public SpectralWaveletTransform(ImageBuffer image, int type, int levels, boolean forward){
+		this.image = image;
+		this.type = type;
+		this.levels = levels;
+		this.forward = forward;
+	}
+
+	/**
+	 * Computes the transform.
+	 *
+	 * @throws ErrorException when the levels are negative or the GICI transform fails
+	 */
+	public void run() throws ErrorException{
+		if(levels < 0){
+			throw new ErrorException("All the transform levels to apply must be no negative.");
+		}
+		if(type == 0 || levels == 0){
+			return;
+		}
+		final int zSize = image.getZSize();
+		final int numPixels = image.getYSize() * image.getXSize();
+		final int tilePixels = Parallel.getTilePixels(numPixels, zSize);
+		final int numTiles = (numPixels + tilePixels - 1) / tilePixels;
+		//Length of the spectral vectors filtered at each level
+		final int[] lengths = new int[levels];
+		if(forward){
+			lengths[0] = zSize;
+			for(int level = 1; level < levels; level++){
+				lengths[level] = lengths[level - 1] / 2 + lengths[level - 1] % 2;
+			}
+		}else{
+			lengths[levels - 1] = zSize;
+			for(int level = levels - 2; level >= 0; level--){
+				lengths[level] = lengths[level + 1] / 2 + lengths[level + 1] % 2;
+			}
+		}
+		Parallel.forEach(numTiles, new Parallel.Task(){
+			public void run(int tile){
+				int p0 = tile * tilePixels;
+				int pixels = Math.min(tilePixels, numPixels - p0);
+				float[][][] vectors = new float[1][pixels][zSize];
+				for(int z = 0; z < zSize; z++){
+					float[] band = image.getBand(z);
+					for(int p = 0; p < pixels; p++){
+						vectors[0][p][z] = band[p0 + p];
+					}
+				}
+				try{
+					vectors = transformTile(vectors, lengths);
+				}catch(ErrorException e){
+					setFailure(e);
+					return;
+				}
+				for(int z = 0; z < zSize; z++){
+					float[] band = image.getBand(z);
+					for(int p = 0; p < pixels; p++){
+						band[p0 + p] = vectors[0][p][z];
+					}
+				}
+			}
+		});
+		if(failure != null){
+			throw failure;
+		}
+	}
+
+	/**
+	 * Keeps the first error found.
+	 */
+	synchronized void setFailure(ErrorException e){
+		if(failure == null){
+			failure = e;
+		}
+	}
+
+	/**
+	 * Computes all the levels of the transform over the spectral vectors of a tile.
+	 *
+	 * @param vectors spectral vectors (index meaning [0][pixel][z])
+	 * @param lengths length of the vectors filtered at each level, in the order levels are computed
+	 * @return the transformed vectors
+	 *
+	 * @throws ErrorException when the GICI transform fails
+	 */
+	float[][][] transformTile(float[][][] vectors, int[] lengths) throws ErrorException{
+		int lastPixel = vectors[0].length - 1;
+		if(forward){
+			ForwardDWTCore core = new ForwardDWTCore(vectors);
+			for(int level = 0; level < lengths.length; level++){
+				core.setParameters(type, 0, 0, 0, 0, lastPixel, 0, lengths[level] - 1);
+				core.run();
+			}
+			return core.getImageSamples();
+		}else{
+			InverseDWTCore core = new InverseDWTCore(vectors);
+			for(int level = 0; level < lengths.length; level++){
+				core.setParameters(type, 0, 0, 0, 0, lastPixel, 0, lengths[level] - 1);
+				core.run();
+			}
+			return core.getImageSamples();
+		}
+	}
+}
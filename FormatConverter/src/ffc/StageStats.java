@@ -0,0 +1,392 @@
+package ffc;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Statistics of each stage of a conversion ("-st" parameter): wall time, CPU time, samples processed,
+ * bytes read and written, bytes allocated and garbage collections during the stage. They are printed
+ * at the end of the conversion as text or as a JSON object that can be ingested by other tools.<br>
+ * CPU time is the one of the whole process and allocated bytes are the ones of all the threads
+ * (as reported by the virtual machine), so the parallel stages are fully counted; when several
+ * conversions run at once in the same virtual machine (see {@link BatchRunner} and
+ * {@link ConversionServer}), they include the work of the other conversions. The virtual machine
+ * only reports the allocation of live threads, so the threads created by this program record
+ * theirs when they end (see {@link #recordingExit(Runnable)}); the allocation of other threads that
+ * end during a stage is lost, so allocated bytes may be less than the real ones (but never negative).
+ * Values that the virtual machine does not report are -1.<br>
+ * Each stage is also recorded as a Java Flight Recorder event (see {@link FlightEvents}), even when the
+ * statistics are not printed.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class StageStats{
+
+	/**
+	 * Statistics of one stage.
+	 */
+	static class Stage{
+
+		/**
+		 * Name of the stage.
+		 */
+		String name;
+
+		/**
+		 * Samples processed by the stage.
+		 */
+		long samples;
+
+		/**
+		 * Wall and CPU time, in nanoseconds.
+		 */
+		long wallTime;
+		long cpuTime;
+
+		/**
+		 * Bytes read from and written to files.
+		 */
+		long bytesRead = 0;
+		long bytesWritten = 0;
+
+		/**
+		 * Bytes allocated.
+		 */
+		long bytesAllocated;
+
+		/**
+		 * Number of garbage collections and their time, in milliseconds.
+		 */
+		long gcCount;
+		long gcTime;
+
+		Stage(String name, long samples){
+			this.name = name;
+			this.samples = samples;
+		}
+	}
+
+	/**
+	 * True if statistics are recorded.
+	 */
+	boolean enabled;
+
+	/**
+	 * Stages recorded, in order.
+	 */
+	List<Stage> stages = new ArrayList<Stage>();
+
+	/**
+	 * Stage being recorded (null if none).
+	 */
+	Stage current = null;
+
+	/**
+	 * Flight recorder event of the current stage (null if none).
+	 */
+	FlightEvents.StageEvent event = null;
+
+	/**
+	 * Bytes allocated by the threads that have recorded their allocation when ending (see
+	 * {@link #recordingExit(Runnable)}) and that are no longer alive.
+	 */
+	static long endedThreadsBytes = 0;
+
+	/**
+	 * Bytes allocated by the threads that have recorded their allocation when ending but may still
+	 * be alive (index meaning thread identifier). Both are guarded by the class lock.
+	 */
+	static final Map<Long, Long> endingThreadsBytes = new HashMap<Long, Long>();
+
+	/**
+	 * Counters of the virtual machine (null if not available).
+	 */
+	com.sun.management.ThreadMXBean threads = null;
+	com.sun.management.OperatingSystemMXBean system = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param enabled true to record the statistics, false to ignore all the calls
+	 */
+	public StageStats(boolean enabled){
+		this.enabled = enabled;
+		if(!enabled){
+			return;
+		}
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()){
+			threads = (com.sun.management.ThreadMXBean) threadBean;
+			threads.setThreadAllocatedMemoryEnabled(true);
+		}
+		OperatingSystemMXBean systemBean = ManagementFactory.getOperatingSystemMXBean();
+		if(systemBean instanceof com.sun.management.OperatingSystemMXBean){
+			system = (com.sun.management.OperatingSystemMXBean) systemBean;
+		}
+	}
+
+	/**
+	 * Begins a stage (the previous one is ended if it has not been).
+	 *
+	 * @param name name of the stage
+	 * @param samples samples processed by the stage
+	 * @param parameters program arguments of the stage (null if none)
+	 * @param sizes sizes of the image processed by the stage (null if unknown)
+	 */
+	public void begin(String name, long samples, String parameters, int[] sizes){
+		end(0, 0);
+		event = FlightEvents.beginStage(name, parameters, sizes, samples);
+		if(!enabled){
+			return;
+		}
+		current = new Stage(name, samples);
+		current.bytesAllocated = -getAllocatedBytes();
+		current.gcCount = -getGCCount();
+		current.gcTime = -getGCTime();
+		current.cpuTime = -getCPUTime();
+		current.wallTime = -System.nanoTime();
+	}
+
+	/**
+	 * Ends the current stage.
+	 *
+	 * @param bytesRead bytes read from files by the stage
+	 * @param bytesWritten bytes written to files by the stage
+	 */
+	public void end(long bytesRead, long bytesWritten){
+		if(event != null){
+			FlightEvents.end(event);
+			event = null;
+		}
+		if(!enabled || current == null){
+			return;
+		}
+		current.wallTime += System.nanoTime();
+		current.cpuTime = system == null ? -1: current.cpuTime + getCPUTime();
+		current.gcTime += getGCTime();
+		current.gcCount += getGCCount();
+		current.bytesAllocated = threads == null ? -1: Math.max(0, current.bytesAllocated + getAllocatedBytes());
+		current.bytesRead = bytesRead;
+		current.bytesWritten = bytesWritten;
+		stages.add(current);
+		current = null;
+	}
+
+	/**
+	 * Size of a file, to count the bytes written or read by a stage.
+	 *
+	 * @param fileName file name
+	 * @return the size in bytes (0 if it does not exist)
+	 */
+	public static long getFileSize(String fileName){
+		return new File(fileName).length();
+	}
+
+	/**
+	 * Bytes allocated so far by all the live threads and by the threads that have recorded their
+	 * allocation when ending.
+	 */
+	long getAllocatedBytes(){
+		if(threads == null){
+			return 0;
+		}
+		long[] ids = threads.getAllThreadIds();
+		long[] allocated = threads.getThreadAllocatedBytes(ids);
+		synchronized(StageStats.class){
+			removeEndedThreads(ids);
+			long total = endedThreadsBytes;
+			for(int numThread = 0; numThread < ids.length; numThread++){
+				//Threads that have already recorded their allocation are counted below
+				if(!endingThreadsBytes.containsKey(ids[numThread])){
+					total += Math.max(0, allocated[numThread]);
+				}
+			}
+			for(long bytes: endingThreadsBytes.values()){
+				total += bytes;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Moves the allocation recorded by the threads that are no longer alive to {@link #endedThreadsBytes}.
+	 * It must be called with the class lock.
+	 *
+	 * @param ids identifiers of the live threads
+	 */
+	static void removeEndedThreads(long[] ids){
+		Set<Long> live = new HashSet<Long>();
+		for(long id: ids){
+			live.add(id);
+		}
+		Iterator<Map.Entry<Long, Long>> entries = endingThreadsBytes.entrySet().iterator();
+		while(entries.hasNext()){
+			Map.Entry<Long, Long> entry = entries.next();
+			if(!live.contains(entry.getKey())){
+				endedThreadsBytes += entry.getValue();
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Wraps the task of a thread so that, when it ends, the thread records the bytes it has allocated,
+	 * which are otherwise lost for {@link #getAllocatedBytes()} once the thread is no longer alive.
+	 * Threads created by this program (the workers of {@link Parallel} and the threads of
+	 * {@link RawImageWriter}, {@link BatchRunner} and {@link ConversionServer}) are created with it.
+	 *
+	 * @param runnable task of the thread
+	 * @return the task that records the allocation when it ends
+	 */
+	public static Runnable recordingExit(final Runnable runnable){
+		return new Runnable(){
+			public void run(){
+				try{
+					runnable.run();
+				}finally{
+					//Allocation is only measured once some statistics have been requested
+					ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+					com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean
+							? (com.sun.management.ThreadMXBean) threadBean: null;
+					if(allocationBean != null && allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()){
+						long bytes = allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+						long[] ids = allocationBean.getAllThreadIds();
+						synchronized(StageStats.class){
+							removeEndedThreads(ids);
+							if(bytes > 0){
+								endingThreadsBytes.put(Thread.currentThread().getId(), bytes);
+							}
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * CPU time of the process so far, in nanoseconds.
+	 */
+	long getCPUTime(){
+		return system == null ? 0: system.getProcessCpuTime();
+	}
+
+	/**
+	 * Garbage collections so far.
+	 */
+	static long getGCCount(){
+		long count = 0;
+		for(GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Time of the garbage collections so far, in milliseconds.
+	 */
+	static long getGCTime(){
+		long time = 0;
+		for(GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()){
+			time += Math.max(0, collector.getCollectionTime());
+		}
+		return time;
+	}
+
+	/**
+	 * Prints the statistics of the recorded stages and their total (the current stage is ended first).
+	 *
+	 * @param out stream to print to
+	 * @param status exit status of the conversion
+	 * @param json true to print a JSON object, false to print text
+	 */
+	public void print(PrintStream out, int status, boolean json){
+		end(0, 0);
+		if(!enabled){
+			return;
+		}
+		Stage total = new Stage("total", 0);
+		for(Stage stage: stages){
+			total.samples = Math.max(total.samples, stage.samples);
+			total.wallTime += stage.wallTime;
+			total.cpuTime = stage.cpuTime < 0 ? -1: total.cpuTime + stage.cpuTime;
+			total.bytesRead += stage.bytesRead;
+			total.bytesWritten += stage.bytesWritten;
+			total.bytesAllocated = stage.bytesAllocated < 0 ? -1: total.bytesAllocated + stage.bytesAllocated;
+			total.gcCount += stage.gcCount;
+			total.gcTime += stage.gcTime;
+		}
+		if(json){
+			StringBuilder text = new StringBuilder("{\"status\": ").append(status).append(", \"stages\": [");
+			for(int numStage = 0; numStage < stages.size(); numStage++){
+				text.append(numStage > 0 ? ", ": "").append(toJSON(stages.get(numStage)));
+			}
+			text.append("], \"total\": ").append(toJSON(total)).append("}");
+			out.println(text);
+		}else{
+			out.println("Stats:");
+			for(Stage stage: stages){
+				out.println("  " + toText(stage));
+			}
+			out.println("  " + toText(total));
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return the statistics of a stage as a JSON object
+	 */
+	static String toJSON(Stage stage){
+		return "{\"name\": \"" + stage.name.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+				+ ", \"wallMs\": " + toMillis(stage.wallTime)
+				+ ", \"cpuMs\": " + (stage.cpuTime < 0 ? "-1": toMillis(stage.cpuTime))
+				+ ", \"samples\": " + stage.samples
+				+ ", \"samplesPerSecond\": " + getThroughput(stage)
+				+ ", \"bytesRead\": " + stage.bytesRead
+				+ ", \"bytesWritten\": " + stage.bytesWritten
+				+ ", \"bytesAllocated\": " + stage.bytesAllocated
+				+ ", \"gcCount\": " + stage.gcCount
+				+ ", \"gcMs\": " + stage.gcTime + "}";
+	}
+
+	/**
+	 * @return the statistics of a stage as a line of text
+	 */
+	static String toText(Stage stage){
+		return stage.name + ": wall " + toMillis(stage.wallTime) + " ms"
+				+ ", cpu " + (stage.cpuTime < 0 ? "?": toMillis(stage.cpuTime)) + " ms"
+				+ ", " + stage.samples + " samples (" + getThroughput(stage) + " samples/s)"
+				+ ", read " + stage.bytesRead + " B"
+				+ ", written " + stage.bytesWritten + " B"
+				+ ", allocated " + (stage.bytesAllocated < 0 ? "?": stage.bytesAllocated + " B")
+				+ ", GC " + stage.gcCount + " (" + stage.gcTime + " ms)";
+	}
+
+	/**
+	 * @return the nanoseconds in milliseconds, with three decimals
+	 */
+	static String toMillis(long nanos){
+		long micros = nanos / 1000;
+		String decimals = "00" + (micros % 1000);
+		return micros / 1000 + "." + decimals.substring(decimals.length() - 3);
+	}
+
+	/**
+	 * @return the samples processed each second
+	 */
+	static long getThroughput(Stage stage){
+		return stage.wallTime > 0 ? (long) (stage.samples / (stage.wallTime / 1e9)): 0;
+	}
+}
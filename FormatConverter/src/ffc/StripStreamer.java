@@ -0,0 +1,232 @@
+package ffc;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import GiciException.*;
+import GiciFile.LoadFile;
+
+
+/**
+ * Strip streaming execution of ffc. The input image is read by strips of rows (see
+ * {@link MappedRawImage}), each strip is passed through the requested row operations (see
+ * {@link RowOperation}) and written to the output file right away (see {@link RawImageWriter}).
+ * Memory needed is proportional to the strip size instead of to the image size.<br>
+ * Only stages that can be computed row by row are supported: coefficients approximation,
+ * quantization, spatial DPCM, crop and rotation. Both the input and output images must be raw data.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class StripStreamer{
+
+	/**
+	 * Input image.
+	 */
+	MappedRawImage input;
+
+	/**
+	 * Components of the input image that are written (in output order). Components out of the image are written as 0.
+	 */
+	int[] components;
+
+	/**
+	 * Window of the input image that is written.
+	 */
+	int y0;
+	int x0;
+	int yLength;
+	int xLength;
+
+	/**
+	 * True if rows are written in reverse order (180 degrees rotation, see {@link TransformImage#rotateImage(int)}).
+	 */
+	boolean rotate;
+
+	/**
+	 * Operations applied to each row, in order.
+	 */
+	RowOperation[] operations;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param input input image
+	 * @param components definition in {@link #components}
+	 * @param y0 first row of the window
+	 * @param x0 first column of the window
+	 * @param yLength height of the window (0 means the whole height)
+	 * @param xLength width of the window (0 means the whole width)
+	 * @param rotate definition in {@link #rotate}
+	 * @param operations definition in {@link #operations}
+	 */
+	public StripStreamer(MappedRawImage input, int[] components, int y0, int x0, int yLength, int xLength, boolean rotate, RowOperation[] operations){
+		this.input = input;
+		this.components = components;
+		this.y0 = y0;
+		this.x0 = x0;
+		this.yLength = yLength == 0 ? input.getYSize(): yLength;
+		this.xLength = xLength == 0 ? input.getXSize(): xLength;
+		this.rotate = rotate;
+		this.operations = operations;
+	}
+
+	/**
+	 * Checks whether the conversion requested in the program arguments can be done by strips.
+	 *
+	 * @param parser program arguments
+	 * @return null if it can be streamed, otherwise the reason why it can not
+	 */
+	public static String getUnsupportedReason(ArgsParser parser){
+		if(!LoadFile.isRaw(parser.getInputImageFile()) || !LoadFile.isRaw(parser.getOutputImageFile())){
+			return "input and output images must be raw data";
+		}
+		if(parser.getInputImageGeometry() == null || parser.getOutputImageGeometry() == null){
+			return "input and output image geometries are mandatory";
+		}
+		if(parser.getSpectralWaveletType() != 0 || parser.getSpatialWaveletType() != 0){
+			return "wavelet transforms need the whole image";
+		}
+		if(parser.getDPCM() != 0){
+			return "spectral DPCM needs the whole image";
+		}
+		if(parser.getRemoveNullCoefficientsRequested() || parser.getChangeDim() != null || parser.getRangeModification() != null || parser.getPermuteType() != null){
+			return "the requested stage needs the whole image";
+		}
+		if(parser.getPermuteDimension() != -1 || parser.getPermutationSequence() != null){
+			return "dimension permutation needs the whole image";
+		}
+		//Crop and rotation are done while reading, so they must be planned before the row operations
+		int[] inputImageGeometry = parser.getInputImageGeometry();
+		try{
+			boolean rowOperation = false;
+			for(PipelinePlanner.Step step: new PipelinePlanner(parser, inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2]).getSteps()){
+				if(step.has(PipelinePlanner.CROP) || step.has(PipelinePlanner.ROTATE)){
+					if(rowOperation){
+						return "crop and rotation must be done before the other stages";
+					}
+				}else{
+					rowOperation = true;
+				}
+			}
+		}catch(ParameterException e){
+			return e.getMessage();
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the conversion requested in the program arguments by strips.
+	 *
+	 * @param parser program arguments
+	 * @param stripHeight number of rows of each strip
+	 * @param err stream where samples out of range are reported
+	 * @return the bytes read from the input file
+	 *
+	 * @throws ParameterException when the conversion can not be done by strips
+	 * @throws WarningException when some I/O error occurs
+	 */
+	public static long run(ArgsParser parser, int stripHeight, PrintStream err) throws ParameterException, WarningException{
+		String reason = getUnsupportedReason(parser);
+		if(reason != null){
+			throw new ParameterException("Strip streaming can not be used: " + reason + ".");
+		}
+		int[] inputImageGeometry = parser.getInputImageGeometry();
+		int[] outputImageGeometry = parser.getOutputImageGeometry();
+		MappedRawImage input = new MappedRawImage(parser.getInputImageFile(), inputImageGeometry[0], inputImageGeometry[1], inputImageGeometry[2],
+				inputImageGeometry[3], inputImageGeometry[4]);
+
+		int[] components = FormatFileConverter.getCropComponents(parser.getZInit(), parser.getZLength(), parser.getZRanges(), input.getZSize());
+		RowOperation[] operations = getOperations(parser, components.length);
+		StripStreamer streamer = new StripStreamer(input, components, parser.getYInit(), parser.getXInit(), parser.getYLength(), parser.getXLength(),
+				parser.getRotate() != 0, operations);
+
+		RawImageWriter output = new RawImageWriter(parser.getOutputImageFile(), outputImageGeometry[3], outputImageGeometry[4], err);
+		try{
+			streamer.run(output, stripHeight);
+		}finally{
+			output.close();
+		}
+		return input.getBytesRead();
+	}
+
+	/**
+	 * Row operations requested in the program arguments, in the order they are applied in {@link FormatFileConverter} (see "-pl").
+	 *
+	 * @param parser program arguments
+	 * @param zSize number of components of the output image
+	 * @return the row operations
+	 *
+	 * @throws ParameterException when some parameter is not valid
+	 */
+	static RowOperation[] getOperations(ArgsParser parser, int zSize) throws ParameterException{
+		String[] order = parser.getPipeline() != null ? parser.getPipeline(): PipelinePlanner.DEFAULT_ORDER;
+		RowOperation[] candidates = new RowOperation[order.length];
+		for(int numStage = 0; numStage < order.length; numStage++){
+			if(order[numStage].equals(PipelinePlanner.CA)){
+				candidates[numStage] = RowOperations.coefficientsApproximation(parser, zSize);
+			}else if(order[numStage].equals(PipelinePlanner.SPATIAL_DPCM)){
+				candidates[numStage] = RowOperations.spatialDPCM(parser.getSpatialDPCM());
+			}else if(order[numStage].equals(PipelinePlanner.Q)){
+				candidates[numStage] = RowOperations.quantization(parser);
+			}
+		}
+		int numOperations = 0;
+		for(RowOperation operation: candidates){
+			if(operation != null) numOperations++;
+		}
+		RowOperation[] operations = new RowOperation[numOperations];
+		numOperations = 0;
+		for(RowOperation operation: candidates){
+			if(operation != null) operations[numOperations++] = operation;
+		}
+		return operations;
+	}
+
+	/**
+	 * Streams the image to the output.
+	 *
+	 * @param output writer of the output image
+	 * @param stripHeight number of rows of each strip
+	 *
+	 * @throws WarningException when some I/O error occurs
+	 */
+	public void run(RawImageWriter output, int stripHeight) throws WarningException{
+		final int ySize = input.getYSize();
+		int xSize = input.getXSize();
+		stripHeight = Math.max(1, Math.min(stripHeight, yLength));
+
+		//Columns of the window inside the image
+		final int xBegin = Math.max(0, -x0);
+		final int xEnd = Math.min(xLength, xSize - x0);
+
+		final float[][] strip = new float[stripHeight][xLength];
+		for(int z = 0; z < components.length; z++){
+			final int zOut = z;
+			final int comp = components[z];
+			final boolean inImage = comp >= 0 && comp < input.getZSize();
+			for(int yStrip = 0; yStrip < yLength; yStrip += stripHeight){
+				final int firstRow = yStrip;
+				int numRows = Math.min(stripHeight, yLength - yStrip);
+				//Rows of the strip are read and transformed in parallel
+				Parallel.forEach(numRows, new Parallel.Task(){
+					public void run(int row){
+						int y = firstRow + row;
+						int yIn = (rotate ? yLength - 1 - y: y) + y0;
+						float[] samples = strip[row];
+						if(!inImage || yIn < 0 || yIn >= ySize || xBegin >= xEnd){
+							Arrays.fill(samples, 0f);
+						}else{
+							if(xBegin > 0) Arrays.fill(samples, 0, xBegin, 0f);
+							if(xEnd < xLength) Arrays.fill(samples, xEnd, xLength, 0f);
+							input.getRow(comp, yIn, x0 + xBegin, xEnd - xBegin, samples, xBegin);
+						}
+						for(int numOperation = 0; numOperation < operations.length; numOperation++){
+							operations[numOperation].apply(zOut, samples, 0, xLength);
+						}
+					}
+				});
+				output.writeRows(strip, numRows, xLength);
+			}
+		}
+	}
+}
@@ -1,8 +1,7 @@
 package ffc;
 
-import java.util.Arrays;
+import java.io.PrintStream;
 import GiciException.*;
-import GiciTransform.*;
 
 
 
@@ -13,311 +12,196 @@ import GiciTransform.*;
 
 public class TransformImage{
 	/**
-	 * Image samples (index meaning [z][y][x]).
+	 * Image samples.
 	 */
-	float[][][] imageSamples = null;
+	ImageBuffer imageSamples = null;
 	
 	/**
 	 * Constructor, receives the transformed image samples.
 	 *
 	 * @param imageSamples definition in {@link #imageSamples}
 	 */
-	public TransformImage(float[][][] imageSamples){
+	public TransformImage(ImageBuffer imageSamples){
 		//Image data copy
 		this.imageSamples = imageSamples;
 	}
 	
-	public float[][][] forwardSpectralDWT(int spectralWTLevels, int spectralWTType) throws ErrorException {
-		
-		//1D+2D non pyramidal Wavelet Transform
-		int[] levels = new int[3];
-		int[] types = new int[3];
-		for(int k=0;k<2;k++){// no spatial wavelet transform
-			levels[k] = 0;
-			types[k] = 0;
-		}
-		levels[2] = spectralWTLevels;
-		types[2] = spectralWTType;
-		ForwardNonPyramidal3D fwt = new ForwardNonPyramidal3D(imageSamples);
-		fwt.setParameters(types,levels);
-		imageSamples = fwt.run();
-		fwt = null;
-		
+	/**
+	 * Spectral discrete wavelet transform, computed over tiles of spectral vectors in parallel
+	 * (see {@link SpectralWaveletTransform}).
+	 *
+	 * @param spectralWTLevels number of levels
+	 * @param spectralWTType wavelet type
+	 * @return the transformed image
+	 *
+	 * @throws ErrorException when the transform fails
+	 */
+	public ImageBuffer forwardSpectralDWT(int spectralWTLevels, int spectralWTType) throws ErrorException {
+		new SpectralWaveletTransform(imageSamples, spectralWTType, spectralWTLevels, true).run();
 		return imageSamples;
 	}
 	
-	public float[][][] inverseSpectralDWT(int spectralWTLevels, int spectralWTType) throws ErrorException {
-		
-		//1D+2D non pyramidal Wavelet Transform
-		int[] levels = new int[3];
-		int[] types = new int[3];
-		for(int k=0;k<2;k++){// no spatial wavelet transform
-			levels[k] =0;
-			types[k] = 0;
-		}
-		levels[2] = spectralWTLevels;
-		types[2] = spectralWTType;
-		InverseNonPyramidal3D iwt = new InverseNonPyramidal3D(imageSamples);
-		iwt.setParameters(types,levels);
-		imageSamples = iwt.run();
-		iwt = null;		
+	/**
+	 * Inverse of {@link #forwardSpectralDWT(int, int)}.
+	 *
+	 * @param spectralWTLevels number of levels
+	 * @param spectralWTType wavelet type
+	 * @return the transformed image
+	 *
+	 * @throws ErrorException when the transform fails
+	 */
+	public ImageBuffer inverseSpectralDWT(int spectralWTLevels, int spectralWTType) throws ErrorException {
+		new SpectralWaveletTransform(imageSamples, spectralWTType, spectralWTLevels, false).run();
 		return imageSamples;
 	}
 	
-	public float[][][] coefficientsApproximation(int[] coefficientsApproximation,
+	public ImageBuffer coefficientsApproximation(int[] coefficientsApproximation,
 						     float[] minValue, float[] maxValue, float[] lowerThresholdValue, float[] upperThresholdValue, float[] subtractValue, float[] subtractValueForNonZeroPixels, float[] subtractValueIfMatch)  throws ErrorException {
 		
-		int zSize = imageSamples.length;
-		// int comptador = 0;
+		int zSize = imageSamples.getZSize();
+		int ySize = imageSamples.getYSize();
+		int xSize = imageSamples.getXSize();
 
 		for(int z=0; z<zSize ; z++){
-			int ySize = imageSamples[z].length;
-			int xSize = imageSamples[z][0].length;
+			float[] band = imageSamples.getBand(z);
 			
 			for(int y=0; y<ySize ; y++){
-				for(int x=0; x<xSize ; x++){
-					
-					if (maxValue!=null){
-						if (imageSamples[z][y][x] > maxValue[z]){
-							imageSamples[z][y][x] = maxValue[z];
-						}
-					}
-					
-					if (minValue!=null){
-						if (imageSamples[z][y][x] < minValue[z] ){
-							imageSamples[z][y][x] = minValue[z];
-						}
-					}
-					
+				coefficientsApproximation(z, band, y*xSize, xSize, coefficientsApproximation, minValue, maxValue, lowerThresholdValue,
+						upperThresholdValue, subtractValue, subtractValueForNonZeroPixels, subtractValueIfMatch);
+			}
+		}
+		return imageSamples;
+	}
 
-					if (lowerThresholdValue!=null){
-					    if (Math.abs(imageSamples[z][y][x]) < lowerThresholdValue[z] ){
-							imageSamples[z][y][x] = 0;
-						}
-					}
+	/**
+	 * Coefficients approximation over a run of samples of one component. Parameters that are null are not applied.
+	 *
+	 * @param z component of the samples (index of the parameter arrays)
+	 * @param samples array containing the samples
+	 * @param offset position of the first sample
+	 * @param length number of samples
+	 */
+	static void coefficientsApproximation(int z, float[] samples, int offset, int length, int[] coefficientsApproximation,
+			float[] minValue, float[] maxValue, float[] lowerThresholdValue, float[] upperThresholdValue, float[] subtractValue, float[] subtractValueForNonZeroPixels, float[] subtractValueIfMatch){
 
-					if (upperThresholdValue!=null){
-					    if (Math.abs(imageSamples[z][y][x]) >= upperThresholdValue[z] ){
-							imageSamples[z][y][x] = 0;
-						}
-					}
+		for(int x=offset; x<offset+length ; x++){
+			
+			if (maxValue!=null){
+				if (samples[x] > maxValue[z]){
+					samples[x] = maxValue[z];
+				}
+			}
+			
+			if (minValue!=null){
+				if (samples[x] < minValue[z] ){
+					samples[x] = minValue[z];
+				}
+			}
+			
 
-					if (subtractValue!=null){
-							// System.out.println("comptador: " + comptador);
-							// System.out.println("imageSamples[z][y][x]" + imageSamples[z][y][x] + " subtractValue[z]: " + subtractValue[z]);
-							imageSamples[z][y][x] -= (float) subtractValue[z];
-							imageSamples[z][y][x] = (float) imageSamples[z][y][x];
-							// System.out.println("updated imageSamples[z][y][x]" + imageSamples[z][y][x]);
-							// comptador += 1;
-					}
-					
-					if (subtractValueForNonZeroPixels!=null){
-					    if (imageSamples[z][y][x] != 0){
-						imageSamples[z][y][x] -= subtractValueForNonZeroPixels[z];
-					    }
-					}
-					
-					if (subtractValueIfMatch!=null){
-					    if (imageSamples[z][y][x] == subtractValueIfMatch[z]){
-						imageSamples[z][y][x] = 0;
-					    }
-					}
+			if (lowerThresholdValue!=null){
+			    if (Math.abs(samples[x]) < lowerThresholdValue[z] ){
+					samples[x] = 0;
+				}
+			}
 
-					if (coefficientsApproximation[z]==1){
-						imageSamples[z][y][x]= (float) Math.rint(imageSamples[z][y][x]);
-					} else if (coefficientsApproximation[z]==2){
-						imageSamples[z][y][x]= (float) Math.floor(imageSamples[z][y][x]);
-					} else if (coefficientsApproximation[z]==3){
-						imageSamples[z][y][x]= (float) Math.ceil(imageSamples[z][y][x]);
-					}
+			if (upperThresholdValue!=null){
+			    if (Math.abs(samples[x]) >= upperThresholdValue[z] ){
+					samples[x] = 0;
 				}
 			}
+
+			if (subtractValue!=null){
+					samples[x] -= (float) subtractValue[z];
+			}
+			
+			if (subtractValueForNonZeroPixels!=null){
+			    if (samples[x] != 0){
+				samples[x] -= subtractValueForNonZeroPixels[z];
+			    }
+			}
+			
+			if (subtractValueIfMatch!=null){
+			    if (samples[x] == subtractValueIfMatch[z]){
+				samples[x] = 0;
+			    }
+			}
+
+			if (coefficientsApproximation[z]==1){
+				samples[x]= (float) Math.rint(samples[x]);
+			} else if (coefficientsApproximation[z]==2){
+				samples[x]= (float) Math.floor(samples[x]);
+			} else if (coefficientsApproximation[z]==3){
+				samples[x]= (float) Math.ceil(samples[x]);
+			}
 		}
-		return imageSamples;
 	}
 	
-	public float[][][] selectBands(int firstBand, int numBands){
+	public ImageBuffer selectBands(int firstBand, int numBands){
 		
 		int zSize = numBands ;
 		
-		float newImage[][][] = new float[zSize][][];
+		float newBands[][] = new float[zSize][];
 		for(int z=0;z<zSize;z++){
-			int ySize = imageSamples[z+firstBand].length;
-			newImage[z] = new float[ySize][];
-			for(int y=0;y<ySize;y++){
-				int xSize = imageSamples[z+firstBand][y].length;
-				newImage[z][y] = new float[xSize];
-				for(int x=0;x<xSize;x++){
-					newImage[z][y][x] = imageSamples[z+firstBand][y][x];
-				}
-			}
+			newBands[z] = imageSamples.getBand(z+firstBand);
 		}
+		ImageBuffer newImage = new ImageBuffer(newBands, imageSamples.getYSize(), imageSamples.getXSize());
 		imageSamples = null;
 		return newImage;
 	}
 
-    public float[][][] nonNullCoefficients(int outZsize, int outYsize, int outXsize, int NumberNonNullPixels){
-
-		int zSize = imageSamples.length;
-		int ySize = imageSamples[0].length;
-		int xSize = imageSamples[0][0].length;
-
-		int index=0;
-		
-		int outZ=0;
-		int outY=0;
-		int outX=0;
-
-		float newImage[][][] = new float[outZsize][outYsize][outXsize];
-
-		for(int z=0;z<outZsize;z++){
-			for(int y=0;y<outYsize;y++){
-				for(int x=0;x<outXsize;x++){
-					newImage[outZ][outY][outX] = 0;
-				}
-			}
-		}
-
-		for(int z=0;z<zSize;z++){
-			for(int y=0;y<ySize;y++){
-				for(int x=0;x<xSize;x++){
-				    if (Math.abs(imageSamples[z][y][x]) > 0 ){
-					newImage[outZ][outY][outX] = imageSamples[z][y][x];
-					index++;
-					outX++;
-				    }
-				    if ( outX == outXsize ) {
-					outY++;
-					outX=0;
-				    }
-				    if ( outY == outYsize ) {
-					outZ++;
-					outY=0;
-				    }
-				}
-			}
-		}
+    public ImageBuffer nonNullCoefficients(int outZsize, int outYsize, int outXsize, int NumberNonNullPixels, PrintStream err) throws ErrorException{
 
-		if (NumberNonNullPixels != index){
-		    System.err.println("Gici ERROR: Transform Image. NotZero: " + index);
+		NonNullCompaction compaction = new NonNullCompaction(imageSamples);
+		if (NumberNonNullPixels != compaction.getCount()){
+		    err.println("Gici ERROR: Transform Image. NotZero: " + compaction.getCount());
 		}
 
-		return newImage;
+		return compaction.compact(outZsize, outYsize, outXsize);
 	}
 
-    public float[][][] SpatialForwardLeftDPCM(){
-	
-	int zSize = imageSamples.length;
-	int ySize = imageSamples[0].length;
-	int xSize = imageSamples[0][0].length;
-	
-	float newImage[][][] = new float[zSize][ySize][xSize];
-	
-	for(int z=0;z<zSize;z++){
-	    for(int y=0;y<ySize;y++){
-		newImage[z][y][0] = imageSamples[z][y][0];
-		for(int x=1;x<xSize;x++){
-		    newImage[z][y][x] = imageSamples[z][y][x] - imageSamples[z][y][x-1];
-		}
-	    }
-	}
-	
-	return newImage;
+    /**
+     * Spatial DPCM, computed in place (see {@link SpatialDPCM}).
+     *
+     * @param mode DPCM mode (1, -1, 2 or -2)
+     * @return the transformed image
+     */
+    ImageBuffer spatialDPCM(int mode){
+	new SpatialDPCM(mode).run(imageSamples);
+	return imageSamples;
     }
-    
-    public float[][][] SpatialReverseLeftDPCM(){
-
-	int zSize = imageSamples.length;
-	int ySize = imageSamples[0].length;
-	int xSize = imageSamples[0][0].length;
-
-	float newImage[][][] = new float[zSize][ySize][xSize];
-
-	for(int z=0;z<zSize;z++){
-	    for(int y=0;y<ySize;y++){
-		newImage[z][y][0] = imageSamples[z][y][0];
-		for(int x=1;x<xSize;x++){
-		    newImage[z][y][x] = imageSamples[z][y][x] + newImage[z][y][x-1];
-		}
-	    }
-	}
 
-	return newImage;
+    public ImageBuffer SpatialForwardLeftDPCM(){
+	return spatialDPCM(1);
+    }
+    
+    public ImageBuffer SpatialReverseLeftDPCM(){
+	return spatialDPCM(-1);
     }
 
-    public float[][][] SpatialForwardRightDPCM(){
-	
-	int zSize = imageSamples.length;
-	int ySize = imageSamples[0].length;
-	int xSize = imageSamples[0][0].length;
-	
-	float newImage[][][] = new float[zSize][ySize][xSize];
-	
-	for(int z=0;z<zSize;z++){
-	    for(int y=0;y<ySize;y++){
-		newImage[z][y][xSize-1] = imageSamples[z][y][xSize-1];
-		for(int x=(xSize-2);x>=0;x--){
-		    newImage[z][y][x] = imageSamples[z][y][x] - imageSamples[z][y][x+1];
-		}
-	    }
-	}
-	
-	return newImage;
+    public ImageBuffer SpatialForwardRightDPCM(){
+	return spatialDPCM(2);
     }
 	
-    public float[][][] SpatialReverseRightDPCM(){
-	
-	int zSize = imageSamples.length;
-	int ySize = imageSamples[0].length;
-	int xSize = imageSamples[0][0].length;
-	
-	float newImage[][][] = new float[zSize][ySize][xSize];
-	
-	for(int z=0;z<zSize;z++){
-	    for(int y=0;y<ySize;y++){
-		newImage[z][y][xSize-1] = imageSamples[z][y][xSize-1];
-		for(int x=(xSize-2);x>=0;x--){
-		    newImage[z][y][x] = imageSamples[z][y][x] + newImage[z][y][x+1];
-		}
-	    }
-	}
-	
-	return newImage;
+    public ImageBuffer SpatialReverseRightDPCM(){
+	return spatialDPCM(-2);
     }
 
-	public float[][][] cropImage(int z0, int y0, int x0, int zLength, int yLength, int xLength){
+	public ImageBuffer cropImage(int z0, int y0, int x0, int zLength, int yLength, int xLength){
 		
-		int zSize = imageSamples.length;
-		int ySize = imageSamples[0].length;
-		int xSize = imageSamples[0][0].length;
+		int zSize = imageSamples.getZSize();
 		
 		if (zLength == 0){
 			zLength = zSize;
 		}
-		if (yLength == 0){
-			yLength = ySize;
-		}
-		if (xLength == 0){
-			xLength = xSize;
-		}
-		float newImage[][][] = new float[zLength][yLength][xLength];
+		int[] comps = new int[zLength];
 		for(int z=0;z<zLength;z++){
-			for(int y=0;y<yLength;y++){
-				for(int x=0;x<xLength;x++){
-					if (z+z0 < 0 || y+y0 < 0 || x+x0 < 0
-							|| z+z0 >= zSize || y+y0 >= ySize || x+x0 >= xSize) {
-						continue;
-					}
-					
-					newImage[z][y][x] = imageSamples[z+z0][y+y0][x+x0];
-				}
-			}
+			comps[z] = z+z0;
 		}
-		
-		return newImage;
+		return cropImage(comps, y0, x0, yLength, xLength);
 	}
 	
-		public float[][][] cropImage(int[][] zr, int y0, int x0, int yLength, int xLength) {
+	public ImageBuffer cropImage(int[][] zr, int y0, int x0, int yLength, int xLength) {
 		
 		// Converts zRanges to an array of components
 		int numComps = 0;
@@ -329,62 +213,36 @@ public class TransformImage{
 				comps[compIndex++] = c;
 			}
 		}
-		
-		int ySize = imageSamples[0].length;
-		int xSize = imageSamples[0][0].length;
-		
-		if (yLength == 0){
-			yLength = ySize;
-		}
-		if (xLength == 0){
-			xLength = xSize;
-		}
-		
-		float newImage[][][] = new float[numComps][yLength][xLength];
-		int z = 0;
-		for(int comp : comps){
-			for(int y=0;y<yLength;y++){
-				for(int x=0;x<xLength;x++){
-					if (y+y0 < 0 || x+x0 < 0 || y+y0 >= ySize || x+x0 >= xSize) {
-						continue;
-					}
-					
-					newImage[z][y][x] = imageSamples[comp][y+y0][x+x0];
-				}
-			}
-			z++;
-		}
-		
-		return newImage;
+		return cropImage(comps, y0, x0, yLength, xLength);
 	}
-	
-	public float[][][] rotateImage(int rotate){
-		
-		int zSize = imageSamples.length;
-		int ySize = imageSamples[0].length;
-		int xSize = imageSamples[0][0].length;
 
-		float newImage[][][] = new float[zSize][ySize][xSize];
-		
-		for(int z=0;z<zSize;z++){
-			for(int y=0;y<ySize;y++){
-					newImage[z][(ySize-1)-y] = imageSamples[z][y];
-			}
-		}
-		
-		return newImage;
+	/**
+	 * Crops a window of the given components. Positions out of the image are set to 0.
+	 *
+	 * @param comps components to select (in output order)
+	 * @param y0 first row of the window
+	 * @param x0 first column of the window
+	 * @param yLength height of the window (0 means the whole height)
+	 * @param xLength width of the window (0 means the whole width)
+	 * @return the cropped image
+	 */
+	ImageBuffer cropImage(int[] comps, int y0, int x0, int yLength, int xLength) {
+		return new ImageView(imageSamples).crop(comps, y0, x0, yLength, xLength).toBuffer();
+	}
+	
+	public ImageBuffer rotateImage(int rotate){
+		return new ImageView(imageSamples).rotate().toBuffer();
 	}
 
-	public float[][][] permuteComponents(int permutation,int zSize){
-		float[][][] newImage = new float[imageSamples.length][imageSamples[0].length][imageSamples[0][0].length];
-		int nComponents=imageSamples.length;
-		System.out.println("ncomponents: "+nComponents);
+	public ImageBuffer permuteComponents(int permutation,int zSize){
+		int nComponents=imageSamples.getZSize();
+		float[][] newBands = new float[nComponents][];
 		int value=0;
 		switch (permutation) {
 		case 0:
 			for(int i=0;i<nComponents;i++){
 				for(int j=0;j<nComponents/zSize;j++){
-					newImage[i+j]=imageSamples[j*zSize+value];
+					newBands[i+j]=imageSamples.getBand(j*zSize+value);
 				}
 				i=i+nComponents/zSize-1;
 				value++;
@@ -393,60 +251,16 @@ public class TransformImage{
 		default:
 			break;
 		}
-		return newImage;
-	}
-	
-	public float[][][] permuteImage(int dimension, int [] permutation){
-		
-		assert (dimension >= 0 && dimension <= 2);
-		
-		int zSize = imageSamples.length;
-		int ySize = imageSamples[0].length;
-		int xSize = imageSamples[0][0].length;
-		
-		float newImage[][][] = new float[zSize][ySize][xSize];
-		
-		/* Check permutation for correctness */
-		int[] permTest = new int[permutation.length];
-		System.arraycopy(permutation, 0, permTest, 0, permutation.length);
-		Arrays.sort(permTest);
-		for (int i = 0; i < permTest.length; i++) {
-			assert(permTest[i] == i);
-		}
-		
-		switch(dimension) {
-		case 0:
-			assert(permutation.length == zSize);
-			
-			for (int z = 0; z < zSize; z++) {
-				newImage[z] = imageSamples[permutation[z]];
+		// Components not assigned by the permutation are left to 0
+		for(int z=0;z<nComponents;z++){
+			if(newBands[z] == null){
+				newBands[z] = new float[imageSamples.getBand(z).length];
 			}
-			
-			break;
-		case 1:
-			assert(permutation.length == ySize);
-			
-			for (int z = 0; z < zSize; z++) {
-				for (int y = 0; y < ySize; y++) {
-					newImage[z][y] = imageSamples[z][permutation[y]];
-				}
-			}
-			
-			break;
-		case 2:
-			assert(permutation.length == xSize);
-			
-			for (int z = 0; z < zSize; z++) {
-				for (int y = 0; y < ySize; y++) {
-					for (int x = 0; y < ySize; y++) {
-						newImage[z][y][x] = imageSamples[z][y][permutation[x]];
-					}
-				}
-			}
-			
-			break;
 		}
-		
-		return newImage;
+		return new ImageBuffer(newBands, imageSamples.getYSize(), imageSamples.getXSize());
+	}
+	
+	public ImageBuffer permuteImage(int dimension, int [] permutation) throws ParameterException{
+		return new ImageView(imageSamples).permute(dimension, permutation).toBuffer();
 	}
-}
\ No newline at end of file
+}
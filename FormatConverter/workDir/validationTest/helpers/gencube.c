@@ -0,0 +1,17 @@
+#include <stdio.h>
+#include <stdlib.h>
+
+/* Writes the given number of pseudo-random bytes (always the same ones) */
+int
+main (int argc, char *argv[]){
+
+	unsigned long state = 12345;
+	long n = argc > 1 ? atol(argv[1]) : 0;
+	long i;
+
+	for(i = 0; i < n; i++){
+		state = (state * 1103515245 + 12345) & 0x7fffffff;
+		putchar((int) (state >> 16) & 0xff);
+	}
+	return 0;
+}
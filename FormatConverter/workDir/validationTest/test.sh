@@ -1,5 +1,7 @@
 #!/bin/bash
 
+JAR=${JAR:-../../dist/ffc.jar};
+
 INGEO=( "1 1 24 0 0" "1 1 24 1 0" "1 1 12 2 0" "1 1 12 3 0" "1 1 6 4 0" "1 1 3 5 0" "1 1 6 6 0" "1 1 3 7 0" "1 1 24 0 1" "1 1 24 1 1" "1 1 12 2 1" "1 1 12 3 1" "1 1 6 4 1" "1 1 3 5 1" "1 1 6 6 1" "1 1 3 7 1");
 OUTGEO=("0 0" "1 0" "2 0" "3 0" "4 0" "5 0" "6 0" "7 0" "0 1" "1 1" "2 1" "3 1" "4 1" "5 1" "6 1" "7 1");
 COUNTSI=(24 24 12 12 6 3 6 3 24 24 12 12 6 3 6 3);
@@ -17,7 +19,7 @@ do
 		#out=results/$c.raw;
 		out=validate.raw;
 
-		java -Xms2m -jar ../../dist/ffc.jar -i test.raw -o $out -ig ${INGEO[$i]} 0 -og 1 1 $ci ${OUTGEO[$o]} 0
+		java -Xms2m -jar $JAR -i test.raw -o $out -ig ${INGEO[$i]} 0 -og 1 1 $ci ${OUTGEO[$o]} 0
 	
 		#cp $out validate.raw
 
@@ -96,3 +98,98 @@ do
 done
 
 rm -f swaped.raw validate.raw;
+
+# STAGES, PLANNER, INTEGER PATH, HALF PRECISION, BATCH AND SERVER
+# Each conversion is compared with the same conversion computed another way: the planned pipeline
+# with its stages run one by one (in the order of -pl), the integer path with the float path, half
+# precision with 32 bit floats (on 8 bit samples, which half precision keeps exactly), and the jobs
+# of -bt and -srv with the same conversions run alone.
+
+[[ -x gencube ]] || cc -o gencube helpers/gencube.c || { echo "ERROR: gencube can not be compiled"; exit 1; };
+
+GEO="4 32 40";
+./gencube 10240 > cube16.raw;
+./gencube 5120 > cube8.raw;
+java -jar $JAR -i cube16.raw -ig $GEO 2 0 0 -o cubef.raw -og $GEO 6 0 0 || { echo "ERROR: cube16.raw can not be converted"; exit 1; };
+
+# Stages of each planned conversion (separated by |, in the order of -pl). Crops are the last stage,
+# so the planner moves them (or their component selection) before the other stages when it can
+PLANS=("wt crop" "swt crop" "df crop" "sptDpcm q crop" "rotate wt crop" "q wt" "ca rm" "swt df crop");
+PLANSTAGES=("-wt 1 -wl 2|-z0 1 -zl 2 -y0 4 -yl 20 -x0 3 -xl 30" "-swt 1 -swl 1|-y0 4 -yl 20 -x0 3 -xl 30" "-df 1|-z0 1 -zl 3 -y0 2 -yl 9" "-sptDpcm 1|-q 1 0 4|-z0 2 -zl 2 -y0 5 -yl 10" "-ro 1|-wt 8 -wl 1|-z0 0 -zl 1 -x0 0 -xl 20" "-q 1 1 3|-wt 1 -wl 1" "-ca 1 -mn 100|-rm 3" "-swt 8 -swl 1|-df -1|-z0 1 -zl 2 -x0 10 -xl 10");
+
+for ((p=0; p < ${#PLANS[@]}; p++));
+do
+	IFS='|' read -a stages <<< "${PLANSTAGES[$p]}";
+
+	java -jar $JAR -i cube16.raw -ig $GEO 2 0 0 -o planned.raw -og $GEO 6 0 0 ${PLANSTAGES[$p]//|/ } -pl ${PLANS[$p]} || { echo "ERROR: plan \"${PLANS[$p]}\" failed"; exit 1; };
+
+	cp cubef.raw step.raw;
+	for ((s=0; s < ${#stages[@]}; s++));
+	do
+		java -jar $JAR -i step.raw -ig $GEO 6 0 0 -o stepout.raw -og $GEO 6 0 0 ${stages[$s]} || { echo "ERROR: stage \"${stages[$s]}\" failed"; exit 1; };
+		mv stepout.raw step.raw;
+	done
+
+	cmp planned.raw step.raw || { echo "ERROR: plan \"${PLANS[$p]}\" differs from its stages run one by one"; exit 1; };
+	echo "Plan ${PLANS[$p]}: OK";
+done
+
+# Conversions of the integer path (16 bit input, 32 bit output), compared with the float path
+INTEGER=("-df 1" "-df -2 -di 1" "-sptDpcm 2" "-wt 1 -wl 2" "-wt -8 -wl 3 -wo 1" "-swt 1 -swl 2" "-swt -8 -swl 1" "-q 1 0 4" "-q 1 1 3" "-q -1 1 3" "-cd 2 0 1" "-ro 1 -df 1 -x0 3 -xl 20 -pl rotate df crop" "-mm -z0 1 -zl 2 -y0 3 -yl 10 -wt 1 -wl 1 -pl crop wt");
+
+for ((n=0; n < ${#INTEGER[@]}; n++));
+do
+	java -jar $JAR -i cube16.raw -ig $GEO 2 0 0 -o integer.raw -og $GEO 4 0 0 ${INTEGER[$n]} -st > stats.txt || { echo "ERROR: \"${INTEGER[$n]}\" failed"; exit 1; };
+	grep -q "integer stages" stats.txt || { echo "ERROR: \"${INTEGER[$n]}\" has not used the integer path"; exit 1; };
+	java -jar $JAR -i cubef.raw -ig $GEO 6 0 0 -o float.raw -og $GEO 4 0 0 ${INTEGER[$n]} || { echo "ERROR: \"${INTEGER[$n]}\" failed"; exit 1; };
+
+	cmp integer.raw float.raw || { echo "ERROR: integer path of \"${INTEGER[$n]}\" differs from the float path"; exit 1; };
+	echo "Integer ${INTEGER[$n]}: OK";
+done
+
+# Conversions in half precision (8 bit input, float output), compared with 32 bit floats
+HALF=("-df 1" "-sptDpcm 1" "-wt 1 -wl 2" "-swt 8 -swl 2" "-q 1 0 2" "-ro 1 -cd 1 0 2" "-wt 8 -wl 1 -z0 1 -zl 2 -pl wt crop");
+
+for ((n=0; n < ${#HALF[@]}; n++));
+do
+	java -jar $JAR -i cube8.raw -ig $GEO 1 0 0 -o half.raw -og $GEO 6 0 0 ${HALF[$n]} -hp || { echo "ERROR: \"${HALF[$n]}\" failed"; exit 1; };
+	java -jar $JAR -i cube8.raw -ig $GEO 1 0 0 -o float.raw -og $GEO 6 0 0 ${HALF[$n]} || { echo "ERROR: \"${HALF[$n]}\" failed"; exit 1; };
+
+	cmp half.raw float.raw || { echo "ERROR: half precision of \"${HALF[$n]}\" differs from 32 bit floats"; exit 1; };
+	echo "Half precision ${HALF[$n]}: OK";
+done
+
+# Batch (-bt) and server (-srv) jobs, compared with the same conversions run alone
+rm -f jobs.txt;
+for ((n=0; n < ${#INTEGER[@]}; n++));
+do
+	echo "-i cube16.raw -ig $GEO 2 0 0 -o alone$n.raw -og $GEO 4 0 0 ${INTEGER[$n]}" >> jobs.txt;
+	java -jar $JAR -i cube16.raw -ig $GEO 2 0 0 -o alone$n.raw -og $GEO 4 0 0 ${INTEGER[$n]} || { echo "ERROR: \"${INTEGER[$n]}\" failed"; exit 1; };
+done
+sed 's/-o alone/-o batch/' jobs.txt > batch.txt;
+java -jar $JAR -bt batch.txt -bj 3 > /dev/null || { echo "ERROR: batch failed"; exit 1; };
+
+java -cp $JAR ffc.FormatFileConverter -srv 0 -bj 2 > server.txt &
+server=$!;
+for ((w=0; w < 100; w++));
+do
+	port=$(sed -n 's/^Listening on 127.0.0.1:\([0-9]*\) .*/\1/p' server.txt);
+	[[ -n $port ]] && break;
+	sleep 0.1;
+done
+[[ -n $port ]] || { echo "ERROR: server has not started"; kill $server; exit 1; };
+while read -r job;
+do
+	java -cp $JAR ffc.ConversionClient $port ${job/-o alone/-o server} > /dev/null || { echo "ERROR: server job \"$job\" failed"; kill $server; exit 1; };
+done < jobs.txt
+java -cp $JAR ffc.ConversionClient $port SHUTDOWN > /dev/null;
+wait $server;
+
+for ((n=0; n < ${#INTEGER[@]}; n++));
+do
+	cmp alone$n.raw batch$n.raw || { echo "ERROR: batch job \"${INTEGER[$n]}\" differs"; exit 1; };
+	cmp alone$n.raw server$n.raw || { echo "ERROR: server job \"${INTEGER[$n]}\" differs"; exit 1; };
+done
+echo "Batch and server: OK";
+
+rm -f cube16.raw cube8.raw cubef.raw planned.raw step.raw integer.raw float.raw half.raw stats.txt jobs.txt batch.txt server.txt alone*.raw batch*.raw server*.raw;